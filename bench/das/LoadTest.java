@@ -0,0 +1,386 @@
+package das;
+
+import java.io.File;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.biojava.bio.seq.FeatureFilter;
+import org.biojava.bio.seq.FeatureHolder;
+import org.biojava.bio.symbol.RangeLocation;
+import org.biojava.servlets.dazzle.datasource.TilingFeatureSource;
+
+import utils.AbstractLineProcessor;
+import utils.BenchmarkFixtures;
+import utils.LineFields;
+import utils.LongList;
+import das.bam.BAMMappingFeatureSource;
+import das.jkdb.JKCompositionSource;
+import das.jkdb.JKSequenceSource;
+
+/**
+ * Replays genome-browser traffic against the BAM, 2bit sequence and
+ * composition datasources from many threads, and reports latency
+ * percentiles, throughput and allocation rate for each source.  Runs
+ * offline against the benchmark fixtures (see {@link BenchmarkFixtures}),
+ * generating them first if they're missing.
+ *
+ * <pre>
+ * LoadTest [-threads n] [-seconds s] [-warmup s] [-maxbins n] [-sources bam,seq,comp] [-trace file]
+ * </pre>
+ *
+ * <p>
+ * Every view is requested from each source in turn, as a browser showing
+ * all the tracks would.  Without a trace, each thread browses on its own:
+ * from a random view it pans by half a window, zooms in or out, or
+ * occasionally jumps somewhere new.  A trace is a tab-separated file of
+ * views (ref, start, end and optionally maxbins), replayed in order,
+ * repeatedly, by all the threads together.  Narrow views of the sequence
+ * source fetch bases rather than repeat tiles.
+ * </p>
+ */
+public class LoadTest {
+	private static final int MIN_WINDOW = 1000;
+	private static final int SEQUENCE_WINDOW = 20000;
+
+	private static final Writer NULL_WRITER = new Writer() {
+		public void write(char[] cbuf, int off, int len) {
+		}
+
+		public void flush() {
+		}
+
+		public void close() {
+		}
+	};
+
+	private static class View {
+		final String ref;
+		final int start;
+		final int end;
+		final int maxbins;
+
+		View(String ref, int start, int end, int maxbins) {
+			this.ref = ref;
+			this.start = start;
+			this.end = end;
+			this.maxbins = maxbins;
+		}
+	}
+
+	private interface ViewSource {
+		public View next();
+	}
+
+	/**
+	 * One simulated user panning and zooming around a sequence.
+	 */
+	private static class Session implements ViewSource {
+		private final Random random;
+		private final String ref;
+		private final int length;
+		private final int maxbins;
+		private int start;
+		private int width;
+
+		Session(Random random, String ref, int length, int maxbins) {
+			this.random = random;
+			this.ref = ref;
+			this.length = length;
+			this.maxbins = maxbins;
+			jump();
+		}
+
+		private void jump() {
+			// Log-uniform between the narrowest view and the whole sequence.
+			width = (int) Math.exp(Math.log(MIN_WINDOW) + random.nextDouble() * (Math.log(length) - Math.log(MIN_WINDOW)));
+			start = 1 + random.nextInt(Math.max(1, length - width));
+		}
+
+		public View next() {
+			int r = random.nextInt(10);
+			if (r < 5) {
+				start += (random.nextBoolean() ? 1 : -1) * (width / 2);
+			} else if (r < 7) {
+				if (width / 2 >= MIN_WINDOW) {
+					start += width / 4;
+					width /= 2;
+				}
+			} else if (r < 9) {
+				start -= width / 2;
+				width = Math.min(length, width * 2);
+			} else {
+				jump();
+			}
+			start = Math.max(1, Math.min(start, length - width + 1));
+			return new View(ref, start, start + width - 1, maxbins);
+		}
+	}
+
+	/**
+	 * Views from a trace, shared between all the threads.
+	 */
+	private static class Trace implements ViewSource {
+		private final List<View> views;
+		private final AtomicInteger position = new AtomicInteger();
+
+		Trace(List<View> views) {
+			this.views = views;
+		}
+
+		public View next() {
+			return views.get((position.getAndIncrement() & Integer.MAX_VALUE) % views.size());
+		}
+	}
+
+	private static class Target {
+		final String name;
+		final TilingFeatureSource source;
+		final LongList latencies = new LongList();
+		long allocated;
+		int errors;
+		Throwable firstError;
+
+		Target(String name, TilingFeatureSource source) {
+			this.name = name;
+			this.source = source;
+		}
+
+		synchronized void add(LongList l, long bytes, int errs, Throwable error) {
+			latencies.addAll(l);
+			allocated += bytes;
+			errors += errs;
+			if (firstError == null) {
+				firstError = error;
+			}
+		}
+	}
+
+	public static void main(String[] args)
+		throws Exception
+	{
+		int threads = Runtime.getRuntime().availableProcessors();
+		int seconds = 30, warmup = 5, maxbins = 500;
+		String sources = "bam,seq,comp";
+		File trace = null;
+		int a = 0;
+		while (a < args.length && args[a].startsWith("-")) {
+			if (a + 1 >= args.length) {
+				usage();
+				return;
+			}
+			String opt = args[a], val = args[a + 1];
+			if ("-threads".equals(opt)) {
+				threads = Integer.parseInt(val);
+			} else if ("-seconds".equals(opt)) {
+				seconds = Integer.parseInt(val);
+			} else if ("-warmup".equals(opt)) {
+				warmup = Integer.parseInt(val);
+			} else if ("-maxbins".equals(opt)) {
+				maxbins = Integer.parseInt(val);
+			} else if ("-sources".equals(opt)) {
+				sources = val;
+			} else if ("-trace".equals(opt)) {
+				trace = new File(val);
+			} else {
+				usage();
+				return;
+			}
+			a += 2;
+		}
+		if (a < args.length) {
+			usage();
+			return;
+		}
+
+		BenchmarkFixtures.main(new String[0]);
+		List<Target> targets = new ArrayList<Target>();
+		for (String name : sources.split(",")) {
+			targets.add(new Target(name, createSource(name)));
+		}
+		Trace views = trace == null ? null : new Trace(readTrace(trace, maxbins));
+
+		System.err.printf("Running %d threads for %ds (after %ds warm-up)%n", threads, seconds, warmup);
+		long measureStart = System.nanoTime() + warmup * 1000000000L;
+		long measureEnd = measureStart + seconds * 1000000000L;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < threads; ++t) {
+				ViewSource vs = views;
+				if (vs == null) {
+					vs = new Session(new Random(42 + t), BenchmarkFixtures.SEQ_NAME, BenchmarkFixtures.SEQ_LENGTH, maxbins);
+				}
+				futures.add(pool.submit(worker(targets, vs, measureStart, measureEnd)));
+			}
+			for (Future<?> f : futures) {
+				f.get();
+			}
+		} finally {
+			pool.shutdown();
+			for (Target t : targets) {
+				t.source.destroy();
+			}
+		}
+
+		report(targets, seconds);
+	}
+
+	private static void usage() {
+		System.err.println("Usage: LoadTest [-threads n] [-seconds s] [-warmup s] [-maxbins n] [-sources bam,seq,comp] [-trace file]");
+	}
+
+	private static TilingFeatureSource createSource(String name)
+		throws Exception
+	{
+		TilingFeatureSource source;
+		if ("bam".equals(name)) {
+			BAMMappingFeatureSource s = new BAMMappingFeatureSource();
+			s.setBamPath(BenchmarkFixtures.file(BenchmarkFixtures.BAM).getPath());
+			s.setBamIndexPath(BenchmarkFixtures.file(BenchmarkFixtures.BAM_INDEX).getPath());
+			source = s;
+		} else if ("seq".equals(name)) {
+			JKSequenceSource s = new JKSequenceSource();
+			s.setFileName(BenchmarkFixtures.file(BenchmarkFixtures.TWOBIT).getPath());
+			source = s;
+		} else if ("comp".equals(name)) {
+			JKCompositionSource s = new JKCompositionSource();
+			s.setFileName(BenchmarkFixtures.file(BenchmarkFixtures.TWOBIT).getPath());
+			source = s;
+		} else {
+			throw new IllegalArgumentException("Unknown source " + name + " (expected bam, seq or comp)");
+		}
+		source.init(BenchmarkFixtures.servletContext());
+		return source;
+	}
+
+	private static List<View> readTrace(File f, final int defaultMaxbins)
+		throws Exception
+	{
+		final List<View> views = new ArrayList<View>();
+		new AbstractLineProcessor() {
+			public void processFields(LineFields fields)
+				throws Exception
+			{
+				int maxbins = fields.size() > 3 ? fields.intField(3) : defaultMaxbins;
+				views.add(new View(fields.field(0), fields.intField(1), fields.intField(2), maxbins));
+			}
+		}.main(new String[] {f.getPath()});
+		if (views.isEmpty()) {
+			throw new IllegalArgumentException("No views in " + f);
+		}
+		return views;
+	}
+
+	private static void query(Target t, View v)
+		throws Exception
+	{
+		if (t.source instanceof JKSequenceSource && v.end - v.start < SEQUENCE_WINDOW) {
+			((JKSequenceSource) t.source).writeSequence(v.ref, v.start, v.end, NULL_WRITER);
+		} else {
+			FeatureHolder fh = t.source.getFeatures(v.ref, v.maxbins);
+			fh = fh.filter(new FeatureFilter.OverlapsLocation(new RangeLocation(v.start, v.end)));
+			for (Iterator<?> i = fh.features(); i.hasNext(); ) {
+				i.next();
+			}
+		}
+	}
+
+	private static Callable<Object> worker(final List<Target> targets, final ViewSource views, final long measureStart, final long measureEnd) {
+		return new Callable<Object>() {
+			public Object call() {
+				int n = targets.size();
+				LongList[] latencies = new LongList[n];
+				long[] allocated = new long[n];
+				int[] errors = new int[n];
+				Throwable[] firstErrors = new Throwable[n];
+				for (int i = 0; i < n; ++i) {
+					latencies[i] = new LongList();
+				}
+				long now;
+				while ((now = System.nanoTime()) < measureEnd) {
+					boolean measuring = now >= measureStart;
+					View v = views.next();
+					for (int i = 0; i < n; ++i) {
+						long bytes = allocatedBytes();
+						long start = System.nanoTime();
+						try {
+							query(targets.get(i), v);
+						} catch (Throwable ex) {
+							if (measuring) {
+								++errors[i];
+								if (firstErrors[i] == null) {
+									firstErrors[i] = ex;
+								}
+							}
+						}
+						if (measuring) {
+							latencies[i].add(System.nanoTime() - start);
+							allocated[i] += allocatedBytes() - bytes;
+						}
+					}
+				}
+				for (int i = 0; i < n; ++i) {
+					targets.get(i).add(latencies[i], allocated[i], errors[i], firstErrors[i]);
+				}
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Bytes allocated so far by the current thread, or zero if the JVM
+	 * can't tell us.
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+			if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+				return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return 0;
+	}
+
+	private static double percentileMillis(LongList sorted, double p) {
+		if (sorted.isEmpty()) {
+			return Double.NaN;
+		}
+		int i = (int) Math.ceil(p * sorted.size()) - 1;
+		return sorted.get(Math.max(0, Math.min(i, sorted.size() - 1))) / 1e6;
+	}
+
+	private static void report(List<Target> targets, int seconds) {
+		System.out.printf("%-8s %10s %8s %10s %10s %10s %10s %12s %12s%n",
+				"source", "requests", "errors", "req/s", "p50 ms", "p99 ms", "max ms", "alloc MB/s", "alloc KB/req");
+		for (Target t : targets) {
+			LongList l = t.latencies;
+			l.sort();
+			int requests = l.size();
+			System.out.printf("%-8s %10d %8d %10.1f %10.2f %10.2f %10.2f %12.1f %12.1f%n",
+					t.name,
+					requests,
+					t.errors,
+					(1.0 * requests) / seconds,
+					percentileMillis(l, 0.50),
+					percentileMillis(l, 0.99),
+					percentileMillis(l, 1.0),
+					t.allocated / (1048576.0 * seconds),
+					requests == 0 ? 0.0 : t.allocated / (1024.0 * requests));
+			if (t.firstError != null) {
+				System.err.println("First error from " + t.name + ":");
+				t.firstError.printStackTrace();
+			}
+		}
+	}
+}
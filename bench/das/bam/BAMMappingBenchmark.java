@@ -0,0 +1,84 @@
+package das.bam;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.biojava.bio.seq.FeatureFilter;
+import org.biojava.bio.symbol.RangeLocation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import utils.BenchmarkFixtures;
+
+/**
+ * JMH benchmark for the read scan and density tiling done by
+ * {@link BAMMappingFeatureSource} for a window of the synthetic BAM
+ * fixture.  The <code>density</code> variant only asks for tiles.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BAMMappingBenchmark {
+	@Param({"10000", "1000000"})
+	public int window;
+
+	@Param({"all", "density"})
+	public String types;
+
+	@Param({"false", "true"})
+	public boolean groupPairs;
+
+	private BAMMappingFeatureSource source;
+	private Random random;
+
+	@Setup
+	public void setup()
+		throws Exception
+	{
+		source = new BAMMappingFeatureSource();
+		source.setBamPath(BenchmarkFixtures.file(BenchmarkFixtures.BAM).getPath());
+		source.setBamIndexPath(BenchmarkFixtures.file(BenchmarkFixtures.BAM_INDEX).getPath());
+		source.setGroupPairs(groupPairs);
+		source.init(BenchmarkFixtures.servletContext());
+		random = new Random(42);
+	}
+
+	@TearDown
+	public void tearDown() {
+		source.destroy();
+	}
+
+	@Benchmark
+	public int filter()
+		throws Exception
+	{
+		int start = 1 + random.nextInt(BenchmarkFixtures.SEQ_LENGTH - window);
+		FeatureFilter ff = new FeatureFilter.OverlapsLocation(new RangeLocation(start, start + window - 1));
+		if (!types.equals("all")) {
+			ff = new FeatureFilter.And(ff, new FeatureFilter.ByType(types));
+		}
+		return source.getFeatures(BenchmarkFixtures.SEQ_NAME, 500).filter(ff).countFeatures();
+	}
+
+	public static void main(String[] args)
+		throws Exception
+	{
+		String[] jmhArgs = new String[args.length + 1];
+		jmhArgs[0] = BAMMappingBenchmark.class.getName();
+		System.arraycopy(args, 0, jmhArgs, 1, args.length);
+		org.openjdk.jmh.Main.main(jmhArgs);
+	}
+}
@@ -0,0 +1,78 @@
+package das.jkdb;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.biojava.bio.seq.FeatureFilter;
+import org.biojava.bio.symbol.RangeLocation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import utils.BenchmarkFixtures;
+
+/**
+ * JMH benchmark for {@link JKCompositionSource} tiles, as a DAS client
+ * would request them for a window of the synthetic 2bit fixture.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JKCompositionBenchmark {
+	@Param({"10000", "1000000", "20000000"})
+	public int window;
+
+	@Param({"all", "gc"})
+	public String types;
+
+	private JKCompositionSource source;
+	private Random random;
+
+	@Setup
+	public void setup()
+		throws Exception
+	{
+		source = new JKCompositionSource();
+		source.setFileName(BenchmarkFixtures.file(BenchmarkFixtures.TWOBIT).getPath());
+		source.init(BenchmarkFixtures.servletContext());
+		random = new Random(42);
+	}
+
+	@TearDown
+	public void tearDown() {
+		source.destroy();
+	}
+
+	@Benchmark
+	public int tiles()
+		throws Exception
+	{
+		int start = 1 + random.nextInt(Math.max(1, BenchmarkFixtures.SEQ_LENGTH - window));
+		FeatureFilter ff = new FeatureFilter.OverlapsLocation(new RangeLocation(start, start + window - 1));
+		if (!types.equals("all")) {
+			ff = new FeatureFilter.And(ff, new FeatureFilter.ByType(types));
+		}
+		return source.getFeatures(BenchmarkFixtures.SEQ_NAME, 500).filter(ff).countFeatures();
+	}
+
+	public static void main(String[] args)
+		throws Exception
+	{
+		String[] jmhArgs = new String[args.length + 1];
+		jmhArgs[0] = JKCompositionBenchmark.class.getName();
+		System.arraycopy(args, 0, jmhArgs, 1, args.length);
+		org.openjdk.jmh.Main.main(jmhArgs);
+	}
+}
@@ -0,0 +1,96 @@
+package das.jkdb;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.biojava.bio.symbol.Symbol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import utils.BenchmarkFixtures;
+
+/**
+ * JMH benchmarks for decoding a 2bit sequence a symbol at a time and in
+ * bulk, with and without repeat masking.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JKSequenceBenchmark {
+	private static final int POSITIONS = 4096;
+
+	@Param({"true", "false"})
+	public boolean elideRepeats;
+
+	@Param({"1000", "100000"})
+	public int window;
+
+	private BulkSequence seq;
+	private int[] positions;
+	private int next;
+
+	@Setup
+	public void setup()
+		throws Exception
+	{
+		JKSequenceDB db = new JKSequenceDB(BenchmarkFixtures.file(BenchmarkFixtures.TWOBIT), elideRepeats);
+		seq = (BulkSequence) db.getSequence(BenchmarkFixtures.SEQ_NAME);
+		Random r = new Random(42);
+		positions = new int[POSITIONS];
+		for (int i = 0; i < positions.length; ++i) {
+			positions[i] = 1 + r.nextInt(seq.length() - window);
+		}
+	}
+
+	private int nextPosition() {
+		next = (next + 1) % positions.length;
+		return positions[next];
+	}
+
+	/**
+	 * <code>window</code> consecutive calls to <code>symbolAt</code>.
+	 */
+	@Benchmark
+	public int symbolAt() {
+		int start = nextPosition();
+		int h = 0;
+		for (int i = start; i < start + window; ++i) {
+			Symbol s = seq.symbolAt(i);
+			h += s.hashCode();
+		}
+		return h;
+	}
+
+	@Benchmark
+	public String subStr() {
+		int start = nextPosition();
+		return seq.subStr(start, start + window - 1);
+	}
+
+	@Benchmark
+	public String subListSeqString() {
+		int start = nextPosition();
+		return seq.subList(start, start + window - 1).seqString();
+	}
+
+	public static void main(String[] args)
+		throws Exception
+	{
+		String[] jmhArgs = new String[args.length + 1];
+		jmhArgs[0] = JKSequenceBenchmark.class.getName();
+		System.arraycopy(args, 0, jmhArgs, 1, args.length);
+		org.openjdk.jmh.Main.main(jmhArgs);
+	}
+}
@@ -0,0 +1,70 @@
+package das.jkdb;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures {@link MotifMatcher} throughput, in bases per second, over a
+ * synthetic 2bit sequence.
+ *
+ * <pre>
+ * MotifScanBenchmark [megabases [iterations]]
+ * </pre>
+ */
+public class MotifScanBenchmark {
+	public static void main(String[] args)
+		throws Exception
+	{
+		int megabases = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		
+		File fasta = File.createTempFile("motifbench", ".fa");
+		File twoBit = File.createTempFile("motifbench", ".2bit");
+		fasta.deleteOnExit();
+		twoBit.deleteOnExit();
+		
+		Random r = new Random(42);
+		BufferedWriter w = new BufferedWriter(new FileWriter(fasta));
+		w.write(">chrBench\n");
+		char[] line = new char[60];
+		for (int l = 0; l < megabases * 1000000 / line.length; ++l) {
+			for (int i = 0; i < line.length; ++i) {
+				line[i] = "ACGT".charAt(r.nextInt(4));
+			}
+			w.write(line);
+			w.write('\n');
+		}
+		w.close();
+		new FastaToTwoBit.Converter(twoBit, Runtime.getRuntime().availableProcessors()).main(new String[] {fasta.getPath()});
+		BulkSequence seq = (BulkSequence) new JKSequenceDB(twoBit, true).getSequence("chrBench");
+		
+		String[][] motifSets = new String[][] {
+				{"GAATTC"},
+				{"CCRSNAGRKGGCRS"},
+				{"CCRSNAGRKGGCRS", "GAATTC", "GGATCC", "AAGCTT", "TATAWAWR", "CACGTG"}
+		};
+		for (String[] motifs : motifSets) {
+			MotifMatcher m = new MotifMatcher(Arrays.asList(motifs), true);
+			final long[] hits = new long[1];
+			MotifMatcher.HitHandler h = new MotifMatcher.HitHandler() {
+				public void hit(int motif, int start, boolean reverse) {
+					++hits[0];
+				}
+			};
+			m.scan(seq, 0, seq.length(), h);   // warm up
+			
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; ++i) {
+				m.scan(seq, 0, seq.length(), h);
+			}
+			double secs = (System.nanoTime() - start) / 1e9;
+			System.out.printf("%-60s %12.0f bases/s  (%d hits/pass)%n",
+					Arrays.asList(motifs),
+					(1.0 * seq.length() * iterations) / secs,
+					hits[0] / (iterations + 1));
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package das.jkdb;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Round-trip check for {@link FastaToTwoBit}: writes a multi-sequence FASTA
+ * file with N runs and soft-masked runs in awkward places, converts it,
+ * reads it back through {@link JKSequenceDB} and compares every base,
+ * including case.  Exits with status 1 on any difference.
+ *
+ * <pre>
+ * TwoBitRoundTrip [-threads n]
+ * </pre>
+ */
+public class TwoBitRoundTrip {
+	public static void main(String[] args)
+		throws Exception
+	{
+		int threads = 3;
+		if (args.length == 2 && "-threads".equals(args[0])) {
+			threads = Integer.parseInt(args[1]);
+		}
+
+		Map<String, String> seqs = new LinkedHashMap<String, String>();
+		seqs.put("chrEdges", "NNNNACGTacgtNNNNNNNNNacgTTGCAn");
+		seqs.put("chrMask", "acgtnnnnACGTNNNNacgtnnnnACGTNacgt");
+		seqs.put("chrOne", "g");
+		seqs.put("chrAllN", "NNNNNNN");
+		seqs.put("chrLong", random(new Random(42), 2500003));
+
+		File fasta = File.createTempFile("roundtrip", ".fa");
+		File twoBit = File.createTempFile("roundtrip", ".2bit");
+		fasta.deleteOnExit();
+		twoBit.deleteOnExit();
+		try {
+			Writer w = new BufferedWriter(new FileWriter(fasta));
+			for (Map.Entry<String, String> e : seqs.entrySet()) {
+				w.write(">" + e.getKey() + " description text\n");
+				String s = e.getValue();
+				for (int i = 0; i < s.length(); i += 61) {
+					w.write(s, i, Math.min(61, s.length() - i));
+					w.write('\n');
+				}
+				w.write('\n');
+			}
+			w.close();
+
+			new FastaToTwoBit.Converter(twoBit, threads).main(new String[] {fasta.getPath()});
+
+			int failures = check(new JKSequenceDB(twoBit, false), seqs, true)
+					+ check(new JKSequenceDB(twoBit, true), seqs, false);
+			if (failures > 0) {
+				System.err.println(failures + " sequences differ");
+				System.exit(1);
+			}
+			System.err.println("OK: " + seqs.size() + " sequences");
+		} finally {
+			fasta.delete();
+			twoBit.delete();
+		}
+	}
+
+	/**
+	 * Compare each sequence as streamed, soft-masked or plain lower case.
+	 */
+	private static int check(JKSequenceDB db, Map<String, String> seqs, boolean softMask)
+		throws Exception
+	{
+		int failures = 0;
+		Set<?> ids = db.ids();
+		if (!ids.equals(new HashSet<String>(seqs.keySet()))) {
+			System.err.println("Sequence names differ: " + ids);
+			++failures;
+		}
+		for (Map.Entry<String, String> e : seqs.entrySet()) {
+			BulkSequence seq = (BulkSequence) db.getSequence(e.getKey());
+			// Inputs only use ACGTN, so soft-masked output should match exactly.
+			String expected = softMask ? e.getValue() : e.getValue().toLowerCase();
+			StringWriter sw = new StringWriter();
+			seq.writeBases(1, seq.length(), sw, softMask);
+			String actual = sw.toString();
+			if (!actual.equals(expected)) {
+				int i = 0;
+				while (i < Math.min(actual.length(), expected.length()) && actual.charAt(i) == expected.charAt(i)) {
+					++i;
+				}
+				System.err.println(String.format(
+						"%s (%s): length %d, expected %d, first difference at %d",
+						e.getKey(), softMask ? "soft-masked" : "plain", actual.length(), expected.length(), i + 1
+				));
+				++failures;
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * Random bases with masked runs, N runs and masked N runs, long enough
+	 * to span several conversion chunks.
+	 */
+	private static String random(Random r, int length) {
+		StringBuilder sb = new StringBuilder(length);
+		while (sb.length() < length) {
+			int run = Math.min(length - sb.length(), 1 + r.nextInt(3000));
+			int kind = r.nextInt(10);
+			for (int i = 0; i < run; ++i) {
+				char c = kind < 2 ? 'N' : "ACGT".charAt(r.nextInt(4));
+				sb.append(kind == 1 || kind > 6 ? Character.toLowerCase(c) : c);
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,80 @@
+package io;
+
+import java.io.BufferedReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import utils.BenchmarkFixtures;
+
+/**
+ * JMH benchmarks for reading the text fixture through {@link IOTools}:
+ * uncompressed, plain gzip (inflated on a read-ahead thread) and BGZF
+ * (inflated in parallel), plus the memory-mapped reader.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GzipReadBenchmark {
+	@Param({BenchmarkFixtures.TEXT, BenchmarkFixtures.GZIP, BenchmarkFixtures.BGZF})
+	public String file;
+
+	@Benchmark
+	public long readLines()
+		throws Exception
+	{
+		BufferedReader br = IOTools.fileBufferedReader(BenchmarkFixtures.file(file));
+		long chars = 0;
+		try {
+			for (String line = br.readLine(); line != null; line = br.readLine()) {
+				chars += line.length();
+			}
+		} finally {
+			br.close();
+		}
+		return chars;
+	}
+
+	/**
+	 * The uncompressed fixture through {@link MappedLineReader}.
+	 */
+	@State(Scope.Thread)
+	public static class Mapped {
+		@Benchmark
+		public long mappedLines()
+			throws Exception
+		{
+			MappedLineReader r = IOTools.mappedLineReader(BenchmarkFixtures.file(BenchmarkFixtures.TEXT));
+			long chars = 0;
+			try {
+				for (ByteLine line = r.readLine(); line != null; line = r.readLine()) {
+					chars += line.length();
+				}
+			} finally {
+				r.close();
+			}
+			return chars;
+		}
+	}
+
+	public static void main(String[] args)
+		throws Exception
+	{
+		String[] jmhArgs = new String[args.length + 1];
+		jmhArgs[0] = GzipReadBenchmark.class.getName();
+		System.arraycopy(args, 0, jmhArgs, 1, args.length);
+		org.openjdk.jmh.Main.main(jmhArgs);
+	}
+}
@@ -0,0 +1,282 @@
+package utils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletContext;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+
+import das.jkdb.FastaToTwoBit;
+
+/**
+ * Writes the synthetic 2bit, BAM and text files used by the JMH benchmarks,
+ * and finds them again when the benchmarks run.  Everything is generated
+ * from a fixed seed, so results from different checkouts are comparable.
+ * Files which already exist are left alone.
+ *
+ * <pre>
+ * BenchmarkFixtures [directory]
+ * </pre>
+ *
+ * <p>
+ * Benchmarks look for the fixtures in the directory named by the
+ * <code>bench.fixtures</code> system property (default <code>bench-data</code>).
+ * </p>
+ */
+public class BenchmarkFixtures {
+	public static final String PROPERTY = "bench.fixtures";
+
+	public static final String TWOBIT = "bench.2bit";
+	public static final String BAM = "bench.bam";
+	public static final String BAM_INDEX = "bench.bai";
+	public static final String TEXT = "bench.txt";
+	public static final String GZIP = "bench.txt.gz";
+	public static final String BGZF = "bench.bgzf.gz";
+
+	public static final String SEQ_NAME = "chrBench";
+	public static final int SEQ_LENGTH = 20000000;
+
+	private static final int READ_LENGTH = 50;
+	private static final int READS = 1000000;
+	private static final int LINES = 1000000;
+
+	public static File dir() {
+		return new File(System.getProperty(PROPERTY, "bench-data"));
+	}
+
+	/**
+	 * A fixture file, which must already have been generated.
+	 */
+	public static File file(String name) {
+		File f = new File(dir(), name);
+		if (!f.exists()) {
+			throw new IllegalStateException("Missing benchmark fixture " + f + " (run the bench-fixtures target)");
+		}
+		return f;
+	}
+
+	/**
+	 * A do-nothing <code>ServletContext</code>, for initializing datasources
+	 * outside a container.  Lookups return null (or zero, or an empty
+	 * enumeration) and log messages go to stderr.
+	 */
+	public static ServletContext servletContext() {
+		return (ServletContext) Proxy.newProxyInstance(
+				ServletContext.class.getClassLoader(),
+				new Class<?>[] {ServletContext.class},
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method m, Object[] args) {
+						String name = m.getName();
+						Class<?> rt = m.getReturnType();
+						if (name.equals("equals")) {
+							return proxy == args[0];
+						} else if (name.equals("hashCode")) {
+							return System.identityHashCode(proxy);
+						} else if (name.equals("toString")) {
+							return "BenchmarkServletContext";
+						} else if (name.equals("log")) {
+							System.err.println(args[0]);
+							if (args.length > 1 && args[1] instanceof Throwable) {
+								((Throwable) args[1]).printStackTrace();
+							}
+							return null;
+						} else if (rt == Enumeration.class) {
+							return Collections.enumeration(Collections.emptyList());
+						} else if (rt == Integer.TYPE) {
+							return 0;
+						} else if (rt == Boolean.TYPE) {
+							return false;
+						}
+						return null;
+					}
+				}
+		);
+	}
+
+	public static void main(String[] args)
+		throws Exception
+	{
+		File dir = args.length > 0 ? new File(args[0]) : dir();
+		dir.mkdirs();
+
+		File twoBit = new File(dir, TWOBIT);
+		if (!twoBit.exists()) {
+			writeTwoBit(twoBit);
+		}
+		File bam = new File(dir, BAM);
+		if (!bam.exists() || !new File(dir, BAM_INDEX).exists()) {
+			writeBam(bam);
+		}
+		File text = new File(dir, TEXT);
+		if (!text.exists()) {
+			writeText(new BufferedWriter(new FileWriter(text), 1 << 16));
+		}
+		File gzip = new File(dir, GZIP);
+		if (!gzip.exists()) {
+			writeText(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(gzip), 1 << 16)));
+		}
+		File bgzf = new File(dir, BGZF);
+		if (!bgzf.exists()) {
+			OutputStream os = new BlockCompressedOutputStream(bgzf);
+			writeText(new BufferedWriter(new OutputStreamWriter(os), 1 << 16));
+		}
+	}
+
+	/**
+	 * A single sequence with soft-masked repeats and N runs, written as
+	 * FASTA and converted.
+	 */
+	private static void writeTwoBit(File twoBit)
+		throws Exception
+	{
+		File fasta = File.createTempFile("bench", ".fa");
+		fasta.deleteOnExit();
+		Random r = new Random(42);
+		Writer w = new BufferedWriter(new FileWriter(fasta), 1 << 16);
+		w.write(">" + SEQ_NAME + "\n");
+		int masked = 0, ns = 0;
+		for (int pos = 0; pos < SEQ_LENGTH; ++pos) {
+			if (masked == 0 && ns == 0) {
+				int x = r.nextInt(1000);
+				if (x < 2) {
+					masked = 50 + r.nextInt(500);
+				} else if (x < 3 && r.nextInt(20) == 0) {
+					ns = 100 + r.nextInt(10000);
+				}
+			}
+			char c;
+			if (ns > 0) {
+				c = 'N';
+				--ns;
+			} else {
+				c = "ACGT".charAt(r.nextInt(4));
+				if (masked > 0) {
+					c = Character.toLowerCase(c);
+					--masked;
+				}
+			}
+			w.write(c);
+			if (pos % 60 == 59) {
+				w.write('\n');
+			}
+		}
+		w.write('\n');
+		w.close();
+		new FastaToTwoBit.Converter(twoBit, Runtime.getRuntime().availableProcessors()).main(new String[] {fasta.getPath()});
+		fasta.delete();
+	}
+
+	/**
+	 * Coordinate-sorted reads with an index.  Half of the reads are in proper
+	 * pairs; each mate is queued until the stream reaches its start.
+	 */
+	private static void writeBam(File bam)
+		throws Exception
+	{
+		SAMFileHeader header = new SAMFileHeader();
+		SAMSequenceDictionary dict = new SAMSequenceDictionary();
+		dict.addSequence(new SAMSequenceRecord(SEQ_NAME, SEQ_LENGTH));
+		header.setSequenceDictionary(dict);
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		SAMFileWriter w = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, true, bam);
+
+		Random r = new Random(42);
+		char[] bases = new char[READ_LENGTH];
+		char[] quals = new char[READ_LENGTH];
+		Arrays.fill(quals, 'I');
+		String qualString = new String(quals);
+
+		// {mate start, pair start, read number}
+		PriorityQueue<int[]> mates = new PriorityQueue<int[]>(11, new Comparator<int[]>() {
+			public int compare(int[] a, int[] b) {
+				return a[0] != b[0] ? (a[0] < b[0] ? -1 : 1) : a[2] - b[2];
+			}
+		});
+		double step = (1.0 * (SEQ_LENGTH - 1000)) / READS;
+		for (int i = 0; i < READS; ++i) {
+			int start = 1 + (int) (i * step);
+			while (!mates.isEmpty() && mates.peek()[0] <= start) {
+				int[] m = mates.poll();
+				w.addAlignment(read(header, r, bases, qualString, m[2], m[0], true, false, m[1]));
+			}
+			boolean paired = r.nextBoolean();
+			int mateStart = paired ? start + 100 + r.nextInt(400) : 0;
+			w.addAlignment(read(header, r, bases, qualString, i, start, paired, true, mateStart));
+			if (paired) {
+				mates.add(new int[] {mateStart, start, i});
+			}
+		}
+		while (!mates.isEmpty()) {
+			int[] m = mates.poll();
+			w.addAlignment(read(header, r, bases, qualString, m[2], m[0], true, false, m[1]));
+		}
+		w.close();
+	}
+
+	private static SAMRecord read(SAMFileHeader header, Random r, char[] bases, String quals, int n, int start, boolean paired, boolean first, int mateStart) {
+		for (int b = 0; b < bases.length; ++b) {
+			bases[b] = "ACGT".charAt(r.nextInt(4));
+		}
+		SAMRecord rec = new SAMRecord(header);
+		rec.setReadName("read" + n);
+		rec.setReferenceName(SEQ_NAME);
+		rec.setAlignmentStart(start);
+		rec.setCigarString(READ_LENGTH + "M");
+		rec.setMappingQuality(r.nextInt(61));
+		rec.setReadString(new String(bases));
+		rec.setBaseQualityString(quals);
+		if (paired) {
+			rec.setReadPairedFlag(true);
+			rec.setProperPairFlag(true);
+			rec.setFirstOfPairFlag(first);
+			rec.setSecondOfPairFlag(!first);
+			rec.setReadNegativeStrandFlag(!first);
+			rec.setMateNegativeStrandFlag(first);
+			rec.setMateReferenceName(SEQ_NAME);
+			rec.setMateAlignmentStart(mateStart);
+			int span = Math.max(start, mateStart) + READ_LENGTH - Math.min(start, mateStart);
+			rec.setInferredInsertSize(first ? span : -span);
+		} else {
+			rec.setReadNegativeStrandFlag(r.nextBoolean());
+		}
+		return rec;
+	}
+
+	/**
+	 * BED-like lines: name, start, end, feature name, score, strand.
+	 */
+	private static void writeText(Writer w)
+		throws Exception
+	{
+		Random r = new Random(42);
+		int start = 0;
+		for (int i = 0; i < LINES; ++i) {
+			start += r.nextInt(40);
+			int end = start + 1 + r.nextInt(2000);
+			w.write(SEQ_NAME + "\t" + start + "\t" + end + "\tfeature" + i + "\t" + (r.nextInt(100000) / 1000.0) + "\t" + (r.nextBoolean() ? '+' : '-') + "\n");
+		}
+		w.close();
+	}
+}
@@ -0,0 +1,139 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH comparison of the boxed collection helpers in {@link Collects} with
+ * their primitive counterparts.
+ *
+ * <pre>
+ * java -cp bench-bin:bin:lib/* utils.PrimitiveCollectionsBenchmark [JMH options]
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrimitiveCollectionsBenchmark {
+	@Param({"1000000"})
+	public int size;
+	
+	private List<Double> boxedScores;
+	private DoubleList scores;
+	private int[] keys;
+	private int[] values;
+	
+	@Setup
+	public void setup() {
+		Random r = new Random(42);
+		boxedScores = new ArrayList<Double>(size);
+		scores = new DoubleList(size);
+		keys = new int[size];
+		values = new int[size];
+		for (int i = 0; i < size; ++i) {
+			double d = r.nextGaussian();
+			boxedScores.add(d);
+			scores.add(d);
+			keys[i] = r.nextInt(size / 100);
+			values[i] = i;
+		}
+	}
+	
+	@Benchmark
+	public double meanBoxed() {
+		return Collects.mean(boxedScores);
+	}
+	
+	@Benchmark
+	public double meanPrimitive() {
+		return Collects.mean(scores);
+	}
+	
+	@Benchmark
+	public double reduceBoxed() {
+		return Collects.reduce(boxedScores, new Function2<Double,Double,Double>() {
+			public Double apply(Double a, Double b) {
+				return Math.max(a, b);
+			}
+		});
+	}
+	
+	@Benchmark
+	public double reducePrimitive() {
+		return Collects.reduce(scores, new DoubleFunction2() {
+			public double apply(double a, double b) {
+				return Math.max(a, b);
+			}
+		});
+	}
+	
+	@Benchmark
+	public int retainIfBoxed() {
+		return Collects.retainIf(new Function<Double,Boolean>() {
+			public Boolean apply(Double d) {
+				return d > 1.0;
+			}
+		}, boxedScores).size();
+	}
+	
+	@Benchmark
+	public int retainIfPrimitive() {
+		return Collects.retainIf(new DoublePredicate() {
+			public boolean apply(double d) {
+				return d > 1.0;
+			}
+		}, scores).size();
+	}
+	
+	@Benchmark
+	public int pushOntoMapBoxed() {
+		Map<Integer,List<Integer>> m = new HashMap<Integer,List<Integer>>();
+		for (int i = 0; i < keys.length; ++i) {
+			Collects.pushOntoMap(m, keys[i], values[i]);
+		}
+		return m.size();
+	}
+	
+	@Benchmark
+	public int pushOntoMapPrimitive() {
+		IntListMultimap m = new IntListMultimap();
+		for (int i = 0; i < keys.length; ++i) {
+			Collects.pushOntoMap(m, keys[i], values[i]);
+		}
+		return m.size();
+	}
+	
+	@Benchmark
+	public double summaryStatistics() {
+		DoubleSummary s = new DoubleSummary(scores);
+		return s.variance() + s.quantile(0.99);
+	}
+	
+	public static void main(String[] args)
+		throws Exception
+	{
+		String[] jmhArgs = new String[args.length + 1];
+		jmhArgs[0] = PrimitiveCollectionsBenchmark.class.getName();
+		System.arraycopy(args, 0, jmhArgs, 1, args.length);
+		org.openjdk.jmh.Main.main(jmhArgs);
+	}
+}
@@ -0,0 +1,115 @@
+package utils;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for {@link AbstractLineProcessor} line splitting, over
+ * lines of the text fixture held in memory.  Each processor parses the
+ * start, end and score columns: in place through {@link LineFields}, from
+ * the strings passed to <code>processTokens</code>, and through an
+ * overridden (regex) <code>tokenize</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenizeBenchmark {
+	private static final int LINES = 100000;
+
+	private String[] lines;
+	private double sum;
+
+	private final AbstractLineProcessor fields = new AbstractLineProcessor() {
+		public void processFields(LineFields f) {
+			sum += f.longField(2) - f.longField(1) + f.doubleField(4);
+		}
+	};
+
+	private final AbstractLineProcessor tokens = new AbstractLineProcessor() {
+		public void processTokens(String[] toks) {
+			sum += Long.parseLong(toks[2]) - Long.parseLong(toks[1]) + Double.parseDouble(toks[4]);
+		}
+	};
+
+	private final AbstractLineProcessor regex = new AbstractLineProcessor() {
+		public String[] tokenize(String line)
+			throws Exception
+		{
+			return super.tokenize(line);
+		}
+
+		public void processTokens(String[] toks) {
+			sum += Long.parseLong(toks[2]) - Long.parseLong(toks[1]) + Double.parseDouble(toks[4]);
+		}
+	};
+
+	@Setup
+	public void setup()
+		throws Exception
+	{
+		List<String> l = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new FileReader(BenchmarkFixtures.file(BenchmarkFixtures.TEXT)));
+		for (String line = br.readLine(); line != null && l.size() < LINES; line = br.readLine()) {
+			l.add(line);
+		}
+		br.close();
+		lines = l.toArray(new String[l.size()]);
+	}
+
+	private double run(AbstractLineProcessor p)
+		throws Exception
+	{
+		sum = 0;
+		for (String line : lines) {
+			p.processLine(line);
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public double lineFields()
+		throws Exception
+	{
+		return run(fields);
+	}
+
+	@Benchmark
+	public double stringTokens()
+		throws Exception
+	{
+		return run(tokens);
+	}
+
+	@Benchmark
+	public double regexTokens()
+		throws Exception
+	{
+		return run(regex);
+	}
+
+	public static void main(String[] args)
+		throws Exception
+	{
+		String[] jmhArgs = new String[args.length + 1];
+		jmhArgs[0] = TokenizeBenchmark.class.getName();
+		System.arraycopy(args, 0, jmhArgs, 1, args.length);
+		org.openjdk.jmh.Main.main(jmhArgs);
+	}
+}
@@ -0,0 +1,158 @@
+package das;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.biojava.bio.seq.FeatureFilter;
+import org.biojava.bio.seq.StrandedFeature;
+import org.biojava.bio.symbol.Location;
+import org.biojava.bio.symbol.LocationTools;
+
+/**
+ * What a <code>FeatureFilter</code> can possibly accept, worked out from
+ * the filter tree: the region, the types, the sources and the strand.
+ * Sources use a plan to skip computing features which the filter would
+ * only throw away, then still apply the filter itself to whatever they do
+ * compute.  A plan is conservative: any part of a filter it doesn't
+ * understand (such as <code>Not</code>) leaves the corresponding
+ * constraint open.
+ */
+public class QueryPlan {
+	private static final QueryPlan ALL = new QueryPlan(false, null, null, null, null);
+	private static final QueryPlan NONE = new QueryPlan(true, null, null, null, null);
+
+	private final boolean empty;
+	private final Location location;
+	private final Set<String> types;
+	private final Set<String> sources;
+	private final StrandedFeature.Strand strand;
+
+	private QueryPlan(boolean empty, Location location, Set<String> types, Set<String> sources, StrandedFeature.Strand strand) {
+		this.empty = empty || (location != null && isEmpty(location)) || (types != null && types.isEmpty()) || (sources != null && sources.isEmpty());
+		this.location = location;
+		this.types = types;
+		this.sources = sources;
+		this.strand = strand;
+	}
+
+	private static boolean isEmpty(Location l) {
+		return l == Location.empty || l.getMax() < l.getMin();
+	}
+
+	public static QueryPlan compile(FeatureFilter ff) {
+		if (ff instanceof FeatureFilter.AcceptNoneFilter) {
+			return NONE;
+		} else if (ff instanceof FeatureFilter.OverlapsLocation) {
+			return new QueryPlan(false, ((FeatureFilter.OverlapsLocation) ff).getLocation(), null, null, null);
+		} else if (ff instanceof FeatureFilter.ContainedByLocation) {
+			return new QueryPlan(false, ((FeatureFilter.ContainedByLocation) ff).getLocation(), null, null, null);
+		} else if (ff instanceof FeatureFilter.ShadowOverlapsLocation) {
+			return new QueryPlan(false, ((FeatureFilter.ShadowOverlapsLocation) ff).getLocation(), null, null, null);
+		} else if (ff instanceof FeatureFilter.ByType) {
+			return new QueryPlan(false, null, Collections.singleton(((FeatureFilter.ByType) ff).getType()), null, null);
+		} else if (ff instanceof FeatureFilter.BySource) {
+			return new QueryPlan(false, null, null, Collections.singleton(((FeatureFilter.BySource) ff).getSource()), null);
+		} else if (ff instanceof FeatureFilter.StrandFilter) {
+			return new QueryPlan(false, null, null, null, ((FeatureFilter.StrandFilter) ff).getStrand());
+		} else if (ff instanceof FeatureFilter.And) {
+			FeatureFilter.And ffa = (FeatureFilter.And) ff;
+			return and(compile(ffa.getChild1()), compile(ffa.getChild2()));
+		} else if (ff instanceof FeatureFilter.Or) {
+			FeatureFilter.Or ffo = (FeatureFilter.Or) ff;
+			return or(compile(ffo.getChild1()), compile(ffo.getChild2()));
+		}
+		return ALL;
+	}
+
+	private static QueryPlan and(QueryPlan a, QueryPlan b) {
+		if (a.empty || b.empty) {
+			return NONE;
+		}
+		if (a.strand != null && b.strand != null && a.strand != b.strand) {
+			return NONE;
+		}
+		Location l = a.location == null ? b.location : (b.location == null ? a.location : a.location.intersection(b.location));
+		StrandedFeature.Strand s = a.strand == null ? b.strand : a.strand;
+		return new QueryPlan(false, l, intersection(a.types, b.types), intersection(a.sources, b.sources), s);
+	}
+
+	private static QueryPlan or(QueryPlan a, QueryPlan b) {
+		if (a.empty) {
+			return b;
+		} else if (b.empty) {
+			return a;
+		}
+		Location l = a.location != null && b.location != null ? LocationTools.union(a.location, b.location) : null;
+		StrandedFeature.Strand s = a.strand == b.strand ? a.strand : null;
+		return new QueryPlan(false, l, union(a.types, b.types), union(a.sources, b.sources), s);
+	}
+
+	/**
+	 * Intersection of two sets where null means unconstrained.
+	 */
+	private static Set<String> intersection(Set<String> a, Set<String> b) {
+		if (a == null) {
+			return b;
+		} else if (b == null) {
+			return a;
+		}
+		Set<String> s = new HashSet<String>(a);
+		s.retainAll(b);
+		return s;
+	}
+
+	private static Set<String> union(Set<String> a, Set<String> b) {
+		if (a == null || b == null) {
+			return null;
+		}
+		Set<String> s = new HashSet<String>(a);
+		s.addAll(b);
+		return s;
+	}
+
+	/**
+	 * True if the filter can't accept anything.
+	 */
+	public boolean isEmpty() {
+		return empty;
+	}
+
+	/**
+	 * The region features must overlap, or null if the filter doesn't say.
+	 * This may not be contiguous.
+	 */
+	public Location getLocation() {
+		return location;
+	}
+
+	/**
+	 * The types which can be accepted, or null for any type.
+	 */
+	public Set<String> getTypes() {
+		return types;
+	}
+
+	public boolean acceptsType(String type) {
+		return !empty && (types == null || types.contains(type));
+	}
+
+	public boolean acceptsSource(String source) {
+		return !empty && (sources == null || sources.contains(source));
+	}
+
+	/**
+	 * Whether features on <code>s</code> can be accepted.  Features which
+	 * aren't stranded count as {@link StrandedFeature#UNKNOWN}.
+	 */
+	public boolean acceptsStrand(StrandedFeature.Strand s) {
+		return !empty && (strand == null || strand == s);
+	}
+
+	/**
+	 * Whether any features of this type and source can be accepted.
+	 */
+	public boolean accepts(String type, String source) {
+		return acceptsType(type) && acceptsSource(source);
+	}
+}
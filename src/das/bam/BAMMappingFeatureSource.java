@@ -3,11 +3,16 @@
 package das.bam;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.util.*;
+import java.util.concurrent.Callable;
 
+import javax.management.ObjectName;
 import javax.servlet.ServletContext;
 import javax.sql.DataSource;
 
@@ -27,13 +32,16 @@ import org.biojava.bio.seq.StrandedFeature;
 import org.biojava.bio.seq.impl.SimpleSequence;
 import org.biojava.bio.symbol.DummySymbolList;
 import org.biojava.bio.symbol.Location;
-import org.biojava.bio.symbol.LocationTools;
 import org.biojava.bio.symbol.RangeLocation;
 import org.biojava.servlets.dazzle.datasource.*;
 import org.biojava.utils.JDBCPooledDataSource;
 import org.biojava.utils.SmallSet;
 
+import das.QueryPlan;
+import io.FileFingerprint;
 import utils.Collects;
+import utils.ConcurrencyLimiter;
+import utils.WarmUp;
 
 /**
  * DAS source backed by an (indexed) BAM file.
@@ -48,6 +56,20 @@ public class BAMMappingFeatureSource extends AbstractDataSource implements Tilin
     private int qualityThreshold = -1;
     private boolean groupPairs = false;
     private Set<String> seqNames;
+    private FileFingerprint fingerprint;
+    private boolean warmUp = false;
+    private int warmUpThreads = 2;
+    private String warmRegions;
+    private WarmUp warmer;
+    private long maxScanMillis = -1;
+    private long maxScanRecords = -1;
+    private final ScanStats scanStats = new ScanStats();
+    private ObjectName statsName;
+    private int maxConcurrent = 0;
+    private int maxQueued = 16;
+    private long maxQueueMillis = 5000;
+    private ConcurrencyLimiter.Overload overload = ConcurrencyLimiter.Overload.REJECT;
+    private ConcurrencyLimiter limiter;
 
     private SAMFileReader db;
 	
@@ -70,6 +92,90 @@ public class BAMMappingFeatureSource extends AbstractDataSource implements Tilin
     public void setBamIndexPath(String s) {
 	this.bamIndexPath = s;
     }
+
+    /**
+     * If true, <code>init</code> starts a background warm-up which reads the
+     * index into the page cache, loads each reference's part of it and
+     * requests any {@link #setWarmRegions(String) hot regions}.  See
+     * {@link #isReady()}.
+     */
+    public void setWarmUp(boolean b) {
+	this.warmUp = b;
+    }
+
+    public void setWarmUpThreads(int i) {
+	this.warmUpThreads = i;
+    }
+
+    /**
+     * Regions to request during warm-up, as a comma-separated list of
+     * <code>ref:start-end</code> or <code>ref</code>.
+     */
+    public void setWarmRegions(String s) {
+	this.warmRegions = s;
+    }
+
+    /**
+     * Stop scanning once a request has taken this long, counting time spent
+     * waiting for the reader.  Zero or less (the default) means no limit.
+     */
+    public void setMaxScanMillis(long l) {
+	this.maxScanMillis = l;
+    }
+
+    /**
+     * Stop scanning once a request has read this many records.  Zero or
+     * less (the default) means no limit.
+     */
+    public void setMaxScanRecords(long l) {
+	this.maxScanRecords = l;
+    }
+
+    /**
+     * Let at most this many requests work in this source at once, or any
+     * number if zero or less (the default).  Since requests take turns
+     * with the reader anyway, a small limit mostly stops a slow region
+     * from tying up every thread in the container.  See
+     * {@link ConcurrencyLimiter}.
+     */
+    public void setMaxConcurrent(int i) {
+	this.maxConcurrent = i;
+    }
+
+    /**
+     * How many requests may wait for a turn before more are turned away.
+     */
+    public void setMaxQueued(int i) {
+	this.maxQueued = i;
+    }
+
+    /**
+     * How long a request may wait for a turn, or zero or less to wait
+     * indefinitely.
+     */
+    public void setMaxQueueMillis(long l) {
+	this.maxQueueMillis = l;
+    }
+
+    /**
+     * What to do with requests which can't get a turn: <code>reject</code>
+     * (the default) fails them, <code>run</code> lets them in anyway.
+     */
+    public void setOverload(String s) {
+	this.overload = ConcurrencyLimiter.Overload.valueOf(s.toUpperCase());
+    }
+
+    public ScanStats getScanStats() {
+	return scanStats;
+    }
+
+    /**
+     * False until any warm-up started by <code>init</code> has finished,
+     * and false again once a warm-up is cancelled by <code>destroy</code>.
+     */
+    public boolean isReady() {
+	return warmer == null || warmer.isReady();
+    }
 	
 
     public void init(ServletContext context)
@@ -81,6 +187,7 @@ public class BAMMappingFeatureSource extends AbstractDataSource implements Tilin
 		bamIndexPath = bamPath + ".bai";
 	    }
 	    db = new SAMFileReader(new File(bamPath), new File(bamIndexPath));
+	    fingerprint = FileFingerprint.of(new File(bamPath), new File(bamIndexPath));
 	    db.setValidationStringency(SAMFileReader.ValidationStringency.LENIENT);
 
             seqNames = new HashSet<String>();
@@ -90,6 +197,73 @@ public class BAMMappingFeatureSource extends AbstractDataSource implements Tilin
     	} catch (Exception ex) {
 	    throw new DataSourceException(ex);
     	}
+	try {
+	    statsName = ObjectName.getInstance("das.bam:type=ScanStats,name=" + ObjectName.quote(getName() + " (" + bamPath + ")"));
+	    ManagementFactory.getPlatformMBeanServer().registerMBean(scanStats, statsName);
+	} catch (Exception ex) {
+	    System.err.println("Couldn't publish scan statistics for " + bamPath + ": " + ex);
+	    statsName = null;
+	}
+	limiter = new ConcurrencyLimiter(getName() + " (" + getDataSourceType() + ":" + bamPath + ")", maxConcurrent, maxQueued, maxQueueMillis, overload);
+	limiter.register();
+	if (warmUp) {
+	    warmer = new WarmUp(bamPath);
+	    addWarmUpTasks(warmer);
+	    warmer.start(warmUpThreads);
+	}
+    }
+
+    public void destroy() {
+	if (warmer != null) {
+	    warmer.cancel();
+	}
+	if (limiter != null) {
+	    limiter.unregister();
+	}
+	if (statsName != null) {
+	    try {
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(statsName);
+	    } catch (Exception ex) {
+	    }
+	    statsName = null;
+	}
+	super.destroy();
+    }
+
+    private void addWarmUpTasks(WarmUp w) {
+	w.add(new Callable<Object>() {
+	    public Object call()
+		throws Exception
+	    {
+		// Sequential reads, so the index is in the page cache before
+		// anything seeks around it.
+		InputStream is = new FileInputStream(bamIndexPath);
+		try {
+		    byte[] buf = new byte[1 << 16];
+		    while (is.read(buf) >= 0) {
+		    }
+		} finally {
+		    is.close();
+		}
+		for (String name : seqNames) {
+		    synchronized (db) {
+			db.query(name, 1, 1, false).close();
+		    }
+		}
+		return null;
+	    }
+	});
+	for (final WarmUp.Region r : WarmUp.parseRegions(warmRegions)) {
+	    w.add(new Callable<Object>() {
+		public Object call() {
+		    FeatureHolder fh = makeSeq(r.ref, defaultMaxBins);
+		    if (r.start > 0) {
+			fh = fh.filter(new FeatureFilter.OverlapsLocation(new RangeLocation(r.start, r.end)));
+		    }
+		    return fh.countFeatures();
+		}
+	    });
+	}
     }
 	
 	@Override
@@ -116,8 +290,11 @@ public class BAMMappingFeatureSource extends AbstractDataSource implements Tilin
 		return "0.1.0";
 	}
 
+	/**
+	 * Fingerprint of the BAM file and its index, taken at <code>init</code>.
+	 */
 	public String getLandmarkVersion(String ref) throws DataSourceException, NoSuchElementException {
-		return "";
+		return fingerprint.version(getVersion());
 	}
 
 	public String getMapMaster() {
@@ -134,14 +311,6 @@ public class BAMMappingFeatureSource extends AbstractDataSource implements Tilin
 	} 
 	
 	
-	private double mean(Collection<? extends Number> l) {
-		double tot = 0;
-		for (Number n : l) {
-			tot += n.doubleValue();
-		}
-		return tot / l.size();
-	}
-	
     private Seq makeSeq(String name, int maxbins) {
         if (!seqNames.contains(name)) {
             if (name.startsWith("chr")) {
@@ -173,102 +342,169 @@ public class BAMMappingFeatureSource extends AbstractDataSource implements Tilin
                         this.maxbins = maxbins;
             }
 		
+		/**
+		 * If a scan runs out of budget (see {@link BAMMappingFeatureSource#setMaxScanMillis(long)}
+		 * and {@link BAMMappingFeatureSource#setMaxScanRecords(long)}) it stops where it is and
+		 * returns what it has: mappings up to that point, and density tiles
+		 * of which any not completely scanned have a <code>truncated</code>
+		 * property, their scores being lower bounds.
+		 */
 		public FeatureHolder filter(FeatureFilter ff) {
+			boolean held = limiter.acquire();
 			try {
+				long startTime = System.nanoTime();
+				SimpleFeatureHolder result = new SimpleFeatureHolder();
+				QueryPlan plan = QueryPlan.compile(ff);
+				boolean wantMappings = plan.accepts("mapping", "sam");
+				boolean wantDensity = plan.accepts("density", "sam") && plan.acceptsStrand(StrandedFeature.UNKNOWN);
+				if (!wantMappings && !wantDensity) {
+					return result;
+				}
+				
+				Location loc = plan.getLocation();
+				if (loc == null) {
+					loc = new RangeLocation(1, length());
+				}
+				if (maxbins < 0) {
+					maxbins = defaultMaxBins;
+				}
+				
+				int tileSize = Math.max(minTile, (loc.getMax() - loc.getMin() + 1) / maxbins);
+				int minTile = (int) Math.floor((1.0 * loc.getMin()) / tileSize);
+				int maxTile = (int) Math.ceil((1.0 * loc.getMax()) / tileSize);
+				double[] tileCounts = wantDensity ? new double[maxTile - minTile + 1] : null;
+				
+				StrandedFeature.Template templ = new StrandedFeature.Template();
+				templ.source = "sam";
+				templ.type = "mapping";
+				templ.annotation = new SmallAnnotation();
+				
+				// Counts are complete for tiles ending at or before this.
+				int completeTo = 0;
+				// A pair is counted from its mate's start, which can be up to
+				// this far before the read the scan has reached.
+				int maxSpan = 0;
+				ScanStats.Limit limit = ScanStats.Limit.NONE;
 				synchronized (db) {
-					Location loc = extractShadowOverlappingLocation(ff);
-					if (loc == null) {
-						loc = new RangeLocation(1, length());
-					}
-					if (maxbins < 0) {
-						maxbins = defaultMaxBins;
-					}
-					
-					int tileSize = Math.max(minTile, (loc.getMax() - loc.getMin() + 1) / maxbins);
-					int minTile = (int) Math.floor((1.0 * loc.getMin()) / tileSize);
-					int maxTile = (int) Math.ceil((1.0 * loc.getMax()) / tileSize);
-					double[] tileCounts = new double[maxTile - minTile + 1];
-					
-					StrandedFeature.Template templ = new StrandedFeature.Template();
-					templ.source = "sam";
-					templ.type = "mapping";
-					templ.annotation = new SmallAnnotation();
-					SimpleFeatureHolder result = new SimpleFeatureHolder();
-					
-					CloseableIterator<SAMRecord> i = db.query(getName() , loc.getMin(), loc.getMax(), false);
-					try {
-						for (; i.hasNext(); ) {
-							SAMRecord r = i.next();
-							
-							if (r.getAlignmentStart() <= 0 || r.getAlignmentEnd() <= 0) {
-								continue;
-							}
-							
-							if (r.getMappingQuality() < qualityThreshold) {
-								continue;
-							}
-							
-							templ.location = new RangeLocation(r.getAlignmentStart(), r.getAlignmentEnd());
-							templ.strand = r.getReadNegativeStrandFlag() ? StrandedFeature.NEGATIVE : StrandedFeature.POSITIVE;
-							// templ.annotation.setProperty("score", new Double(score));
-							if (groupPairs) {
-							    templ.annotation.setProperty("pair", r.getReadName());
-							}
-							Feature f = this.createFeature(templ);
-							if (ff.accept(f)) {
-								result.addFeature(f);
-							}
-							
-							if (!r.getReadPairedFlag() || (r.getFirstOfPairFlag() && r.getProperPairFlag())) {
-							    int minPos = templ.location.getMin();
-							    int maxPos = templ.location.getMax();
-							    if (r.getReadPairedFlag()) {
-								int as = r.getAlignmentStart();
-								int ae = r.getAlignmentEnd();
-								int ms = r.getMateAlignmentStart();
-								if (as < ms) {
-								    minPos = as;
-								    maxPos = ms + (ae - as);
-								} else {
-								    minPos = ms;
-								    maxPos = ae;
+					long lockTime = System.nanoTime();
+					long deadline = startTime + maxScanMillis * 1000000L;
+					long records = 0;
+					int scanned = 0;
+					scan:
+					for (int[] range : scanRanges(loc, wantDensity ? tileSize : 1)) {
+						CloseableIterator<SAMRecord> i = db.query(getName(), range[0], range[1], false);
+						try {
+							for (; i.hasNext(); ++records) {
+								if (maxScanRecords > 0 && records >= maxScanRecords) {
+									limit = ScanStats.Limit.RECORDS;
+								} else if (maxScanMillis > 0 && (records & 0xff) == 0 && System.nanoTime() - deadline > 0) {
+									limit = ScanStats.Limit.TIME;
+								}
+								if (limit != ScanStats.Limit.NONE) {
+									completeTo = Math.max(scanned, completeTo);
+									break scan;
+								}
+								
+								SAMRecord r = i.next();
+								
+								if (r.getAlignmentStart() <= 0 || r.getAlignmentEnd() <= 0) {
+									continue;
 								}
-							    }
-
-							    int minReadTile = Math.max(minTile, minPos / tileSize);
-							    int maxReadTile = Math.min(maxTile, maxPos / tileSize);
-							    
-							    for (int t = minReadTile; t <= maxReadTile; ++t) {
-								int tileStart = (t) * tileSize + 1;
-								int tileEnd = (t + 1) * tileSize;
-								int lapStart = Math.max(tileStart, minPos);
-								int lapEnd = Math.min(tileEnd, maxPos);
+								// Everything starting before this read has been seen.
+								completeTo = r.getAlignmentStart() - 1;
 								
-								tileCounts[t - minTile] += ((1.0 * (lapEnd - lapStart + 1)) / (maxPos - minPos + 1));
-							    }
+								// Already seen when scanning the previous range.
+								if (r.getAlignmentStart() <= scanned) {
+									continue;
+								}
+								
+								if (r.getMappingQuality() < qualityThreshold) {
+									continue;
+								}
+								
+								if (wantMappings) {
+									StrandedFeature.Strand strand = r.getReadNegativeStrandFlag() ? StrandedFeature.NEGATIVE : StrandedFeature.POSITIVE;
+									if (plan.acceptsStrand(strand)) {
+										templ.location = new RangeLocation(r.getAlignmentStart(), r.getAlignmentEnd());
+										templ.strand = strand;
+										if (groupPairs) {
+										    templ.annotation.setProperty("pair", r.getReadName());
+										}
+										Feature f = this.createFeature(templ);
+										if (ff.accept(f)) {
+											result.addFeature(f);
+										}
+									}
+								}
+								
+								if (wantDensity && (!r.getReadPairedFlag() || (r.getFirstOfPairFlag() && r.getProperPairFlag()))) {
+								    int minPos = r.getAlignmentStart();
+								    int maxPos = r.getAlignmentEnd();
+								    if (r.getReadPairedFlag()) {
+									int as = r.getAlignmentStart();
+									int ae = r.getAlignmentEnd();
+									int ms = r.getMateAlignmentStart();
+									if (as < ms) {
+									    minPos = as;
+									    maxPos = ms + (ae - as);
+									} else {
+									    minPos = ms;
+									    maxPos = ae;
+									}
+								    }
+								    maxSpan = Math.max(maxSpan, maxPos - minPos);
+	
+								    int minReadTile = Math.max(minTile, minPos / tileSize);
+								    int maxReadTile = Math.min(maxTile, maxPos / tileSize);
+								    
+								    for (int t = minReadTile; t <= maxReadTile; ++t) {
+									int tileStart = (t) * tileSize + 1;
+									int tileEnd = (t + 1) * tileSize;
+									int lapStart = Math.max(tileStart, minPos);
+									int lapEnd = Math.min(tileEnd, maxPos);
+									
+									tileCounts[t - minTile] += ((1.0 * (lapEnd - lapStart + 1)) / (maxPos - minPos + 1));
+								    }
+								}
 							}
+						} finally {
+							i.close();
 						}
-					} finally {
-						i.close();
+						scanned = range[1];
+						completeTo = scanned;
+					}
+					if (limit == ScanStats.Limit.NONE) {
+						completeTo = Integer.MAX_VALUE;
+					} else {
+						// Pairs not yet reached may still spread back this far.
+						completeTo = Math.max(0, completeTo - maxSpan);
 					}
-					
+					scanStats.record(records, lockTime - startTime, System.nanoTime() - lockTime, limit);
+				}
+				
+				if (wantDensity) {
 					templ.source = "sam";
 					templ.type = "density";
 					templ.strand = StrandedFeature.UNKNOWN;
-					templ.annotation = new SmallAnnotation();
 					for (int t = 0; t < tileCounts.length; ++t) {
 						templ.location = new RangeLocation((minTile + t) * tileSize + 1, (minTile + t + 1) * tileSize);
+						templ.annotation = new SmallAnnotation();
 						templ.annotation.setProperty("score", new Double((1000.0 * tileCounts[t]) / tileSize));
+						if (templ.location.getMax() > completeTo) {
+							templ.annotation.setProperty("truncated", Boolean.TRUE);
+						}
 						Feature f = this.createFeature(templ);
 						if (ff.accept(f)) {
 							result.addFeature(f);
 						}
 					}
-					
-					return result;
 				}
+				
+				return result;
 			} catch (Exception ex) {
 				throw new RuntimeException(ex);
+			} finally {
+				limiter.release(held);
 			}
 		}
 		
@@ -295,42 +531,33 @@ public class BAMMappingFeatureSource extends AbstractDataSource implements Tilin
     }
 
 	
-    public static Location extractShadowOverlappingLocation(FeatureFilter ff) {
-    	if (ff instanceof FeatureFilter.OverlapsLocation) {
-    	    return ((FeatureFilter.OverlapsLocation) ff).getLocation();
-    	} else if (ff instanceof FeatureFilter.ContainedByLocation) {
-    	    return ((FeatureFilter.ContainedByLocation) ff).getLocation();
-    	} if (ff instanceof FeatureFilter.ShadowOverlapsLocation) {
-    	    return ((FeatureFilter.ShadowOverlapsLocation) ff).getLocation();
-    	} else if (ff instanceof FeatureFilter.And) {
-    	    FeatureFilter.And ffa = (FeatureFilter.And) ff;
-    	    Location l1 = extractShadowOverlappingLocation(ffa.getChild1());
-    	    Location l2 = extractShadowOverlappingLocation(ffa.getChild2());
-
-    	    if (l1 != null) {
-    		if (l2 != null) {
-    		    return l1.intersection(l2);
-    		} else {
-    		    return l1;
-    		}
-    	    } else {
-    		if (l2 != null) {
-    		    return l2;
-    		} else {
-    		    return null;
-    		}
-    	    }
-    	} else if (ff instanceof FeatureFilter.Or) {
-    	    FeatureFilter.Or ffo = (FeatureFilter.Or) ff;
-    	    Location l1 = extractShadowOverlappingLocation(ffo.getChild1());
-    	    Location l2 = extractShadowOverlappingLocation(ffo.getChild2());
-
-    	    if (l1 != null && l2 != null) {
-    		return LocationTools.union(l1, l2);
-    	    }
-    	}
-
-    	return null;
+    /**
+     * The ranges to scan for <code>loc</code>: its blocks, in order, widened
+     * to whole tiles so that every tile they touch gets complete counts,
+     * and merged where they then meet.
+     */
+    private static List<int[]> scanRanges(Location loc, int tileSize) {
+	List<Location> blocks = new ArrayList<Location>();
+	for (Iterator<?> bi = loc.blockIterator(); bi.hasNext(); ) {
+	    blocks.add((Location) bi.next());
+	}
+	Collections.sort(blocks, new Comparator<Location>() {
+	    public int compare(Location a, Location b) {
+		return a.getMin() < b.getMin() ? -1 : (a.getMin() > b.getMin() ? 1 : 0);
+	    }
+	});
+	List<int[]> ranges = new ArrayList<int[]>();
+	for (Location b : blocks) {
+	    int min = (int) ((Math.max(1L, b.getMin()) - 1) / tileSize * tileSize + 1);
+	    int max = (int) Math.min(Integer.MAX_VALUE, ((b.getMax() - 1L) / tileSize + 1) * tileSize);
+	    int[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+	    if (last != null && min <= last[1] + 1L) {
+		last[1] = Math.max(last[1], max);
+	    } else {
+		ranges.add(new int[] {min, max});
+	    }
+	}
+	return ranges;
     }
 
 }
@@ -0,0 +1,75 @@
+package das.bam;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the scans made by a {@link BAMMappingFeatureSource}: how
+ * many records they read, how long they waited for and then held the
+ * reader, and how many were cut short by a budget.
+ */
+public class ScanStats implements ScanStatsMBean {
+	public enum Limit {
+		NONE, TIME, RECORDS
+	}
+	
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong records = new AtomicLong();
+	private final AtomicLong truncatedByTime = new AtomicLong();
+	private final AtomicLong truncatedByRecords = new AtomicLong();
+	private final AtomicLong lockWaitNanos = new AtomicLong();
+	private final AtomicLong scanNanos = new AtomicLong();
+	private final AtomicLong maxScanNanos = new AtomicLong();
+	
+	void record(long records, long lockWaitNanos, long scanNanos, Limit limit) {
+		this.requests.incrementAndGet();
+		this.records.addAndGet(records);
+		this.lockWaitNanos.addAndGet(lockWaitNanos);
+		this.scanNanos.addAndGet(scanNanos);
+		for (long max = maxScanNanos.get(); scanNanos > max; max = maxScanNanos.get()) {
+			if (maxScanNanos.compareAndSet(max, scanNanos)) {
+				break;
+			}
+		}
+		if (limit == Limit.TIME) {
+			truncatedByTime.incrementAndGet();
+		} else if (limit == Limit.RECORDS) {
+			truncatedByRecords.incrementAndGet();
+		}
+	}
+	
+	public long getRequests() {
+		return requests.get();
+	}
+	
+	public long getRecords() {
+		return records.get();
+	}
+	
+	public long getTruncatedByTime() {
+		return truncatedByTime.get();
+	}
+	
+	public long getTruncatedByRecords() {
+		return truncatedByRecords.get();
+	}
+	
+	public long getLockWaitMillis() {
+		return lockWaitNanos.get() / 1000000;
+	}
+	
+	public long getScanMillis() {
+		return scanNanos.get() / 1000000;
+	}
+	
+	public long getMaxScanMillis() {
+		return maxScanNanos.get() / 1000000;
+	}
+	
+	public String toString() {
+		return String.format(
+				"%d requests, %d records, %d truncated (time), %d truncated (records), %d ms waiting, %d ms scanning (max %d ms)",
+				getRequests(), getRecords(), getTruncatedByTime(), getTruncatedByRecords(),
+				getLockWaitMillis(), getScanMillis(), getMaxScanMillis()
+		);
+	}
+}
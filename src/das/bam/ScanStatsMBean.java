@@ -0,0 +1,20 @@
+package das.bam;
+
+/**
+ * Management interface for {@link ScanStats}.
+ */
+public interface ScanStatsMBean {
+	public long getRequests();
+	
+	public long getRecords();
+	
+	public long getTruncatedByTime();
+	
+	public long getTruncatedByRecords();
+	
+	public long getLockWaitMillis();
+	
+	public long getScanMillis();
+	
+	public long getMaxScanMillis();
+}
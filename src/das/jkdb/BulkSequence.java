@@ -0,0 +1,344 @@
+package das.jkdb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import org.biojava.bio.Annotation;
+import org.biojava.bio.BioError;
+import org.biojava.bio.BioException;
+import org.biojava.bio.SmallAnnotation;
+import org.biojava.bio.seq.DNATools;
+import org.biojava.bio.seq.Feature;
+import org.biojava.bio.seq.FeatureFilter;
+import org.biojava.bio.seq.FeatureHolder;
+import org.biojava.bio.seq.FilterUtils;
+import org.biojava.bio.seq.Sequence;
+import org.biojava.bio.seq.SimpleFeatureHolder;
+import org.biojava.bio.seq.Feature.Template;
+import org.biojava.bio.seq.impl.FeatureImpl;
+import org.biojava.bio.symbol.AbstractSymbolList;
+import org.biojava.bio.symbol.Alphabet;
+import org.biojava.bio.symbol.Location;
+import org.biojava.bio.symbol.RangeLocation;
+import org.biojava.bio.symbol.Symbol;
+import org.biojava.bio.symbol.SymbolList;
+import org.biojava.utils.ChangeVetoException;
+
+/**
+ * Read-only DNA sequence which can unpack runs of bases in bulk.  Text
+ * conversion, streaming and composition counting are all built on
+ * {@link #unpack}, so they never go via BioJava symbols.
+ */
+abstract class BulkSequence extends AbstractSymbolList implements Sequence {
+	/**
+	 * Set on codes returned by {@link #unpack} for bases inside an N block.
+	 */
+	static final byte N_FLAG = 0x4;
+	
+	/**
+	 * Set on codes returned by {@link #unpack} for soft-masked bases.
+	 */
+	static final byte MASK_FLAG = 0x8;
+	
+	/**
+	 * Unpack <code>len</code> bases, starting at the zero-based position
+	 * <code>start</code>, into <code>dest</code> as 2bit codes (T=0, C=1,
+	 * A=2, G=3).  Bases in N blocks have {@link #N_FLAG} set and, if
+	 * <code>mask</code> is true, soft-masked bases have {@link #MASK_FLAG}
+	 * set.
+	 */
+	abstract void unpack(int start, int len, byte[] dest, int off, boolean mask);
+	
+	/**
+	 * Do the work a first request would otherwise pay for: parse any
+	 * per-sequence metadata and fault in the mapped pages holding the bases.
+	 */
+	abstract void warm();
+	
+	private static final int PAGE_SIZE = 4096;
+	private static volatile int touched;   // so that page touches aren't optimized away.
+	
+	/**
+	 * Read one byte from each page of <code>buffer</code> between
+	 * <code>start</code> and <code>start + len</code>.
+	 */
+	static void touch(ByteBuffer buffer, int start, int len) {
+		int end = (int) Math.min(buffer.limit(), (long) start + len);
+		int sum = 0;
+		for (int p = start; p < end; p += PAGE_SIZE) {
+			sum += buffer.get(p);
+		}
+		touched += sum;
+	}
+	
+	private static final int DECODE_CHUNK = 1 << 16;
+	
+	// Characters for each unpacked code (including flags), in BioJava's
+	// all-lower-case DNA tokenization and in soft-masked form.
+	private static final byte[] TOKENS = new byte[16];
+	private static final byte[] SOFT_MASKED_TOKENS = new byte[16];
+	static {
+		for (int c = 0; c < 16; ++c) {
+			char b = "TCAG".charAt(c & 0x3);
+			if ((c & N_FLAG) != 0) {
+				b = 'N';
+			}
+			TOKENS[c] = (byte) Character.toLowerCase(b);
+			SOFT_MASKED_TOKENS[c] = (byte) ((c & MASK_FLAG) != 0 ? Character.toLowerCase(b) : b);
+		}
+	}
+	
+	/**
+	 * Decode <code>len</code> bases, starting at the zero-based position
+	 * <code>start</code>, into <code>dest</code> as ASCII.  By default bases
+	 * are lower case, matching the DNA alphabet's tokenization.  If
+	 * <code>softMask</code> is true, bases are upper case except in masked
+	 * regions.
+	 */
+	void decode(int start, int len, byte[] dest, int off, boolean softMask) {
+		unpack(start, len, dest, off, softMask);
+		byte[] tokens = softMask ? SOFT_MASKED_TOKENS : TOKENS;
+		for (int i = off; i < off + len; ++i) {
+			dest[i] = tokens[dest[i]];
+		}
+	}
+	
+	/**
+	 * Write the (one-based, inclusive) region <code>min</code>..<code>max</code>
+	 * to <code>os</code> as ASCII, one chunk at a time.
+	 */
+	void writeBases(int min, int max, OutputStream os, boolean softMask)
+		throws IOException
+	{
+		checkRange(min, max);
+		byte[] chunk = new byte[Math.min(DECODE_CHUNK, max - min + 1)];
+		for (int pos = min - 1; pos < max; pos += chunk.length) {
+			int len = Math.min(chunk.length, max - pos);
+			decode(pos, len, chunk, 0, softMask);
+			os.write(chunk, 0, len);
+		}
+	}
+	
+	/**
+	 * Write the (one-based, inclusive) region <code>min</code>..<code>max</code>
+	 * to <code>w</code>, one chunk at a time.
+	 */
+	void writeBases(int min, int max, Writer w, boolean softMask)
+		throws IOException
+	{
+		checkRange(min, max);
+		int chunkSize = Math.min(DECODE_CHUNK, max - min + 1);
+		byte[] chunk = new byte[chunkSize];
+		char[] chars = new char[chunkSize];
+		for (int pos = min - 1; pos < max; pos += chunkSize) {
+			int len = Math.min(chunkSize, max - pos);
+			decode(pos, len, chunk, 0, softMask);
+			for (int i = 0; i < len; ++i) {
+				chars[i] = (char) chunk[i];
+			}
+			w.write(chars, 0, len);
+		}
+	}
+	
+	void checkRange(int min, int max) {
+		if (min < 1 || max > length() || max < min - 1) {
+			throw new IndexOutOfBoundsException(String.format("%d..%d is outside 1:%d", min, max, length()));
+		}
+	}
+	
+	/**
+	 * Decoded directly from the underlying data rather than symbol by symbol.
+	 */
+	public String subStr(int min, int max) {
+		checkRange(min, max);
+		byte[] bases = new byte[max - min + 1];
+		decode(min - 1, bases.length, bases, 0, false);
+		try {
+			return new String(bases, "US-ASCII");
+		} catch (UnsupportedEncodingException ex) {
+			throw new BioError(ex);
+		}
+	}
+	
+	public String seqString() {
+		return subStr(1, length());
+	}
+	
+	public SymbolList subList(int min, int max) {
+		checkRange(min, max);
+		return new SubList(min, max);
+	}
+	
+	/**
+	 * View of part of this sequence which keeps the fast string conversions.
+	 */
+	private class SubList extends AbstractSymbolList {
+		private final int offset;
+		private final int length;
+		
+		SubList(int min, int max) {
+			this.offset = min - 1;
+			this.length = max - min + 1;
+		}
+		
+		public Alphabet getAlphabet() {
+			return BulkSequence.this.getAlphabet();
+		}
+		
+		public int length() {
+			return length;
+		}
+		
+		public Symbol symbolAt(int index) {
+			if (index < 1 || index > length) {
+				throw new IndexOutOfBoundsException(String.format("%d is outside 1:%d", index, length));
+			}
+			return BulkSequence.this.symbolAt(offset + index);
+		}
+		
+		public String subStr(int min, int max) {
+			if (min < 1 || max > length) {
+				throw new IndexOutOfBoundsException(String.format("%d..%d is outside 1:%d", min, max, length));
+			}
+			return BulkSequence.this.subStr(offset + min, offset + max);
+		}
+		
+		public String seqString() {
+			return subStr(1, length);
+		}
+		
+		public SymbolList subList(int min, int max) {
+			if (min < 1 || max > length) {
+				throw new IndexOutOfBoundsException(String.format("%d..%d is outside 1:%d", min, max, length));
+			}
+			return BulkSequence.this.subList(offset + min, offset + max);
+		}
+	}
+	
+	public String getURN() {
+		return getName();
+	}
+
+	public Alphabet getAlphabet() {
+		return DNATools.getDNA();
+	}
+
+	public boolean containsFeature(Feature f) {
+		return f.getSequence() == this;
+	}
+
+	public int countFeatures() {
+		return filter(FeatureFilter.all).countFeatures(); // EEP this is inefficient!
+	}
+
+	public Feature createFeature(Template ft) throws BioException, ChangeVetoException {
+		throw new ChangeVetoException();
+	}
+
+	public Iterator features() {
+		return filter(FeatureFilter.all).features();
+	}
+
+	public FeatureHolder filter(FeatureFilter fc, boolean recurse) {
+		return filter(fc);
+	}
+
+	/**
+	 * False if soft-masking information is being ignored for this sequence.
+	 */
+	abstract boolean hasMask();
+	
+	/**
+	 * Add the number of masked bases in each tile of the zero-based,
+	 * half-open region <code>min</code>..<code>max</code> to
+	 * <code>masked</code>, where tile <code>t</code> covers
+	 * <code>(firstTile + t) * tileSize</code> onwards.  Returns the number of
+	 * masked runs overlapping the region.
+	 */
+	int countMasked(int min, int max, int tileSize, int firstTile, long[] masked) {
+		byte[] codes = new byte[DECODE_CHUNK];
+		int runs = 0;
+		boolean inRun = false;
+		for (int pos = min; pos < max; pos += DECODE_CHUNK) {
+			int len = Math.min(DECODE_CHUNK, max - pos);
+			unpack(pos, len, codes, 0, true);
+			for (int i = 0; i < len; ++i) {
+				if ((codes[i] & MASK_FLAG) != 0) {
+					++masked[(pos + i) / tileSize - firstTile];
+					if (!inRun) {
+						++runs;
+						inRun = true;
+					}
+				} else {
+					inRun = false;
+				}
+			}
+		}
+		return runs;
+	}
+	
+	/**
+	 * Repeat features for a request with a bin limit.  If the region holds no
+	 * more masked runs than <code>maxbins</code> they are returned
+	 * individually, as by {@link #filter(FeatureFilter)}, otherwise as
+	 * <code>repeat-density</code> tiles scored by masked fraction.
+	 */
+	FeatureHolder filter(FeatureFilter ff, int maxbins) {
+		if (!hasMask() || length() == 0) {
+			return FeatureHolder.EMPTY_FEATURE_HOLDER;
+		}
+		
+		int min = 0, max = length();
+		Location ol = FilterUtils.extractOverlappingLocation(ff);
+		if (ol != null) {
+			min = Math.max(0, ol.getMin() - 1);
+			max = Math.min(length(), ol.getMax());
+		}
+		if (max <= min) {
+			return FeatureHolder.EMPTY_FEATURE_HOLDER;
+		}
+		
+		int tileSize = Math.max(1, (max - min) / Math.max(1, maxbins));
+		int firstTile = min / tileSize;
+		int lastTile = (max - 1) / tileSize;
+		long[] masked = new long[lastTile - firstTile + 1];
+		// Count whole tiles, so that edge tiles aren't under-reported.
+		int runs = countMasked(firstTile * tileSize, Math.min(length(), (lastTile + 1) * tileSize), tileSize, firstTile, masked);
+		if (runs <= maxbins) {
+			return filter(ff);
+		}
+		
+		SimpleFeatureHolder fh = new SimpleFeatureHolder();
+		Feature.Template temp = new Feature.Template();
+		temp.type = "repeat-density";
+		temp.source = "ucsc";
+		temp.annotation = new SmallAnnotation();
+		for (int t = 0; t < masked.length; ++t) {
+			int tmin = (firstTile + t) * tileSize + 1;
+			int tmax = Math.min(length(), (firstTile + t + 1) * tileSize);
+			temp.location = new RangeLocation(tmin, tmax);
+			temp.annotation.setProperty("score", new Double((1.0 * masked[t]) / (tmax - tmin + 1)));
+			try {
+				Feature f = FeatureImpl.DEFAULT.realizeFeature(this, this, temp);
+				if (ff.accept(f)) {
+					fh.addFeature(f);
+				}
+			} catch (Exception ex) {
+				throw new BioError(ex);
+			}
+		}
+		return fh;
+	}
+
+	public void removeFeature(Feature f) throws ChangeVetoException, BioException {
+		throw new ChangeVetoException();
+	}
+
+	public Annotation getAnnotation() {
+		return Annotation.EMPTY_ANNOTATION;
+	}
+}
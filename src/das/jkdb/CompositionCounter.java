@@ -0,0 +1,139 @@
+package das.jkdb;
+
+import java.util.Arrays;
+
+/**
+ * Accumulates base composition statistics over a window of a sequence in a
+ * single pass over its bulk-unpacked bases.  Only the statistics selected when
+ * the counter is constructed are evaluated; plain base and N counts are
+ * always available.
+ */
+class CompositionCounter {
+	static final int CPG = 0x1;
+	static final int MASK = 0x2;
+	static final int KMER2 = 0x4;
+	static final int KMER3 = 0x8;
+	static final int KMER4 = 0x10;
+
+	private static final int CHUNK = 1 << 16;
+	private static final double LOG2 = Math.log(2);
+
+	// 2bit codes
+	static final int T = 0, C = 1, A = 2, G = 3;
+
+	private final int flags;
+	private final byte[] codes;
+	private final int[][] kmerCounts = new int[5][];
+	private final int maxK;
+
+	final long[] bases = new long[4];
+	long n;
+	long masked;
+	long cpg;
+
+	CompositionCounter(int flags) {
+		this.flags = flags;
+		int k = 0;
+		if ((flags & KMER2) != 0) {
+			kmerCounts[2] = new int[1 << 4];
+			k = 2;
+		}
+		if ((flags & KMER3) != 0) {
+			kmerCounts[3] = new int[1 << 6];
+			k = 3;
+		}
+		if ((flags & KMER4) != 0) {
+			kmerCounts[4] = new int[1 << 8];
+			k = 4;
+		}
+		this.maxK = k;
+		this.codes = new byte[CHUNK];
+	}
+
+	private void reset() {
+		for (int b = 0; b < 4; ++b) {
+			bases[b] = 0;
+		}
+		n = masked = cpg = 0;
+		for (int k = 2; k <= 4; ++k) {
+			if (kmerCounts[k] != null) {
+				Arrays.fill(kmerCounts[k], 0);
+			}
+		}
+	}
+
+	/**
+	 * Count the (one-based, inclusive) region <code>min</code>..<code>max</code>
+	 * of <code>seq</code>, replacing any previous counts.
+	 */
+	void count(BulkSequence seq, int min, int max) {
+		reset();
+
+		boolean doCpg = (flags & CPG) != 0;
+		boolean doMask = (flags & MASK) != 0;
+		int prev = -1;     // previous base, or -1 after an N.
+		int kmer = 0;      // last (up to) four bases, two bits each.
+		int run = 0;       // number of valid bases in kmer.
+
+		for (int pos = min - 1; pos < max; pos += CHUNK) {
+			int len = Math.min(CHUNK, max - pos);
+			seq.unpack(pos, len, codes, 0, doMask);
+			for (int i = 0; i < len; ++i) {
+				int c = codes[i];
+				if ((c & BulkSequence.MASK_FLAG) != 0) {
+					++masked;
+				}
+				if ((c & BulkSequence.N_FLAG) != 0) {
+					++n;
+					prev = -1;
+					run = 0;
+					continue;
+				}
+				c &= 0x3;
+				++bases[c];
+				if (doCpg && prev == C && c == G) {
+					++cpg;
+				}
+				prev = c;
+				if (maxK > 0) {
+					kmer = ((kmer << 2) | c) & 0xff;
+					if (run < maxK) {
+						++run;
+					}
+					for (int k = 2; k <= run; ++k) {
+						int[] kc = kmerCounts[k];
+						if (kc != null) {
+							++kc[kmer & ((1 << (2*k)) - 1)];
+						}
+					}
+				}
+			}
+		}
+	}
+
+	long gc() {
+		return bases[G] + bases[C];
+	}
+
+	/**
+	 * Shannon entropy, in bits, of the distribution of N-free k-mers seen by
+	 * the last count.
+	 */
+	double entropy(int k) {
+		int[] kc = kmerCounts[k];
+		long tot = 0;
+		for (int i = 0; i < kc.length; ++i) {
+			tot += kc[i];
+		}
+		double h = 0;
+		if (tot > 0) {
+			for (int i = 0; i < kc.length; ++i) {
+				if (kc[i] > 0) {
+					double p = (1.0 * kc[i]) / tot;
+					h -= p * Math.log(p);
+				}
+			}
+		}
+		return h / LOG2;
+	}
+}
@@ -0,0 +1,179 @@
+package das.jkdb;
+
+import java.nio.ByteBuffer;
+
+import org.biojava.bio.BioError;
+import org.biojava.bio.SmallAnnotation;
+import org.biojava.bio.seq.DNATools;
+import org.biojava.bio.seq.Feature;
+import org.biojava.bio.seq.FeatureFilter;
+import org.biojava.bio.seq.FeatureHolder;
+import org.biojava.bio.seq.FilterUtils;
+import org.biojava.bio.seq.SimpleFeatureHolder;
+import org.biojava.bio.seq.impl.FeatureImpl;
+import org.biojava.bio.symbol.Location;
+import org.biojava.bio.symbol.RangeLocation;
+import org.biojava.bio.symbol.Symbol;
+
+/**
+ * Sequence stored as line-wrapped text in a memory-mapped FASTA file.
+ * Lower-case runs are exposed as <code>repeat</code> features, as for 2bit
+ * mask blocks.
+ * 
+ */
+class FaidxSequence extends BulkSequence {
+	private final static Symbol[] LUT = new Symbol[] {DNATools.t(), DNATools.c(), DNATools.a(), DNATools.g()};
+	
+	// 2bit code (plus flags) for each byte, ignoring and honouring case.
+	private final static byte[] CODES = new byte[256];
+	private final static byte[] MASKED_CODES = new byte[256];
+	static {
+		for (int b = 0; b < 256; ++b) {
+			CODES[b] = N_FLAG;
+		}
+		String bases = "TCAG";
+		for (int c = 0; c < 4; ++c) {
+			CODES[bases.charAt(c)] = (byte) c;
+			CODES[Character.toLowerCase(bases.charAt(c))] = (byte) c;
+		}
+		for (int b = 0; b < 256; ++b) {
+			MASKED_CODES[b] = CODES[b];
+			if (b >= 'a' && b <= 'z') {
+				MASKED_CODES[b] |= MASK_FLAG;
+			}
+		}
+	}
+	
+	private static final int SCAN_CHUNK = 1 << 16;
+	
+	private final String name;
+	private final ByteBuffer buffer;
+	private final int length;
+	private final int lineBases;
+	private final int lineBytes;
+	private final boolean elideRepeats;
+	
+	FaidxSequence(String name, ByteBuffer buffer, int length, int lineBases, int lineBytes, boolean elideRepeats) {
+		this.name = name;
+		this.buffer = buffer;
+		this.length = length;
+		this.lineBases = lineBases;
+		this.lineBytes = lineBytes;
+		this.elideRepeats = elideRepeats;
+	}
+	
+	void unpack(int start, int len, byte[] dest, int off, boolean mask) {
+		if (start < 0 || start + len > length) {
+			throw new IndexOutOfBoundsException(String.format("%d+%d is outside 0:%d", start, len, length));
+		}
+		
+		byte[] codes = mask ? MASKED_CODES : CODES;
+		int pos = start, end = start + len, o = off;
+		while (pos < end) {
+			int line = pos / lineBases;
+			int col = pos - line * lineBases;
+			int n = Math.min(lineBases - col, end - pos);
+			int b = line * lineBytes + col;
+			for (int i = 0; i < n; ++i) {
+				dest[o++] = codes[buffer.get(b + i) & 0xff];
+			}
+			pos += n;
+		}
+	}
+	
+	boolean hasMask() {
+		return !elideRepeats;
+	}
+	
+	void warm() {
+		touch(buffer, 0, (length / lineBases + 1) * lineBytes);
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public int length() {
+		return length;
+	}
+	
+	public Symbol symbolAt(int index) throws IndexOutOfBoundsException {
+		if (index < 1 || index > length) {
+			throw new IndexOutOfBoundsException(String.format("%d is outside 1:%d", index, length));
+		}
+		
+		index -= 1;
+		int line = index / lineBases;
+		int code = CODES[buffer.get(line * lineBytes + index - line * lineBases) & 0xff];
+		if ((code & N_FLAG) != 0) {
+			return DNATools.n();
+		}
+		return LUT[code];
+	}
+	
+	private boolean isMasked(int pos) {
+		int line = pos / lineBases;
+		return (MASKED_CODES[buffer.get(line * lineBytes + pos - line * lineBases) & 0xff] & MASK_FLAG) != 0;
+	}
+	
+	public FeatureHolder filter(FeatureFilter filter) {
+		SimpleFeatureHolder fh = new SimpleFeatureHolder();
+		if (elideRepeats || length == 0) {
+			return fh;
+		}
+		
+		// Zero-based, half-open region to scan, widened to whole masked runs.
+		int min = 0, max = length;
+		Location ol = FilterUtils.extractOverlappingLocation(filter);
+		if (ol != null) {
+			min = Math.max(0, ol.getMin() - 1);
+			max = Math.min(length, ol.getMax());
+		}
+		while (min > 0 && isMasked(min - 1)) {
+			--min;
+		}
+		while (max < length && isMasked(max)) {
+			++max;
+		}
+		
+		Feature.Template temp = new Feature.Template();
+		temp.type = "repeat";
+		temp.source = "fasta";
+		temp.annotation = new SmallAnnotation();
+		byte[] codes = new byte[SCAN_CHUNK];
+		int runStart = -1;
+		for (int pos = min; pos < max; pos += SCAN_CHUNK) {
+			int len = Math.min(SCAN_CHUNK, max - pos);
+			unpack(pos, len, codes, 0, true);
+			for (int i = 0; i < len; ++i) {
+				boolean masked = (codes[i] & MASK_FLAG) != 0;
+				if (masked && runStart < 0) {
+					runStart = pos + i;
+				} else if (!masked && runStart >= 0) {
+					addRepeat(fh, filter, temp, runStart, pos + i);
+					runStart = -1;
+				}
+			}
+		}
+		if (runStart >= 0) {
+			addRepeat(fh, filter, temp, runStart, max);
+		}
+		return fh;
+	}
+	
+	private void addRepeat(SimpleFeatureHolder fh, FeatureFilter filter, Feature.Template temp, int start, int end) {
+		temp.location = new RangeLocation(start + 1, end);
+		try {
+			Feature f = FeatureImpl.DEFAULT.realizeFeature(this, this, temp);
+			if (filter.accept(f)) {
+				fh.addFeature(f);
+			}
+		} catch (Exception ex) {
+			throw new BioError(ex);
+		}
+	}
+	
+	public FeatureFilter getSchema() {
+		return new FeatureFilter.ByType("repeat");
+	}
+}
@@ -0,0 +1,205 @@
+package das.jkdb;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.biojava.bio.BioException;
+import org.biojava.bio.seq.FeatureFilter;
+import org.biojava.bio.seq.FeatureHolder;
+import org.biojava.bio.seq.Sequence;
+import org.biojava.bio.seq.SequenceIterator;
+import org.biojava.bio.seq.db.IllegalIDException;
+import org.biojava.bio.seq.db.SequenceDB;
+import org.biojava.utils.ChangeVetoException;
+import org.biojava.utils.Unchangeable;
+
+/**
+ * SequenceDB backed by a FASTA file with a samtools <code>.fai</code> index.
+ * Each sequence is memory-mapped when first requested, and bases are located
+ * using the line length information in the index.  Lower-case bases are
+ * treated as soft-masked.
+ * 
+ */
+public class FaidxSequenceDB extends Unchangeable implements SequenceDB {
+	private static final int DEFAULT_MAX_CACHED_SEQUENCES = 128;
+	
+	private final FileChannel channel;
+	private final boolean elideRepeats;
+	private final Map<String,Integer> index = new HashMap<String, Integer>();
+	private long[] offsets;
+	private int[] lengths;
+	private int[] lineBases;
+	private int[] lineBytes;
+	
+	private final SequenceCache<FaidxSequence> seqCache = new SequenceCache<FaidxSequence>(DEFAULT_MAX_CACHED_SEQUENCES);
+	
+	public FaidxSequenceDB(File f)
+		throws Exception
+	{
+		this(f, false);
+	}
+	
+	public FaidxSequenceDB(File f, boolean elideRepeats)
+		throws Exception
+	{
+		this.elideRepeats = elideRepeats;
+		readIndex(indexFile(f));
+		channel = new RandomAccessFile(f, "r").getChannel();
+	}
+	
+	/**
+	 * The index file expected alongside a FASTA file.
+	 */
+	public static File indexFile(File f) {
+		return new File(f.getPath() + ".fai");
+	}
+	
+	private void readIndex(File fai)
+		throws Exception
+	{
+		int cnt = 0;
+		offsets = new long[64];
+		lengths = new int[64];
+		lineBases = new int[64];
+		lineBytes = new int[64];
+		
+		BufferedReader br = new BufferedReader(new FileReader(fai));
+		try {
+			for (String line = br.readLine(); line != null; line = br.readLine()) {
+				if (line.length() == 0) {
+					continue;
+				}
+				String[] toks = line.split("\t");
+				if (toks.length < 5) {
+					throw new BioException("Bad index line: " + line);
+				}
+				if (cnt == offsets.length) {
+					offsets = grow(offsets);
+					lengths = grow(lengths);
+					lineBases = grow(lineBases);
+					lineBytes = grow(lineBytes);
+				}
+				lengths[cnt] = Integer.parseInt(toks[1]);
+				offsets[cnt] = Long.parseLong(toks[2]);
+				lineBases[cnt] = Integer.parseInt(toks[3]);
+				lineBytes[cnt] = Integer.parseInt(toks[4]);
+				if (lineBases[cnt] <= 0 || lineBytes[cnt] < lineBases[cnt]) {
+					throw new BioException("Bad line lengths in index line: " + line);
+				}
+				index.put(toks[0], cnt);
+				++cnt;
+			}
+		} finally {
+			br.close();
+		}
+	}
+	
+	private static long[] grow(long[] a) {
+		long[] b = new long[a.length * 2];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+	
+	private static int[] grow(int[] a) {
+		int[] b = new int[a.length * 2];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+	
+	/**
+	 * Set the maximum number of sequences kept mapped by this database.
+	 */
+	public void setMaxCachedSequences(int i) {
+		seqCache.setMaxSize(i);
+	}
+	
+	public int getMaxCachedSequences() {
+		return seqCache.getMaxSize();
+	}
+	
+	/**
+	 * Make room to keep at least <code>i</code> sequences mapped.
+	 */
+	public void ensureCacheCapacity(int i) {
+		seqCache.ensureCapacity(i);
+	}
+	
+	public boolean isElideRepeats() {
+		return elideRepeats;
+	}
+	
+	/**
+	 * Close the underlying file.  Sequences which are already mapped remain
+	 * usable.
+	 */
+	public void close()
+		throws IOException
+	{
+		channel.close();
+	}
+
+	public FeatureHolder filter(FeatureFilter filter) {
+		return FeatureHolder.EMPTY_FEATURE_HOLDER;
+	}
+
+	public Set ids() {
+		return Collections.unmodifiableSet(index.keySet());
+	}
+
+	public SequenceIterator sequenceIterator() {
+		return null;
+	}
+
+	public void addSequence(Sequence seq) throws IllegalIDException,
+			BioException, ChangeVetoException 
+	{
+		throw new ChangeVetoException();
+	}
+
+	public String getName() {
+		return null;
+	}
+
+	public Sequence getSequence(String id) throws IllegalIDException,
+			BioException 
+	{
+		Integer idx = index.get(id);
+		if (idx == null) {
+			throw new IllegalIDException(String.format("Can't find %s", id));
+		}
+		
+		FaidxSequence seq = seqCache.get(id);
+		if (seq == null) {
+			int i = idx.intValue();
+			// Bytes from the first base to the end of the last one.
+			long lines = lengths[i] == 0 ? 0 : (lengths[i] - 1) / lineBases[i];
+			long size = lines * lineBytes[i] + (lengths[i] - lines * lineBases[i]);
+			if (size > Integer.MAX_VALUE) {
+				throw new BioException(String.format("Sequence %s is too large to map", id));
+			}
+			ByteBuffer buffer;
+			try {
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, offsets[i], size);
+			} catch (IOException ex) {
+				throw new BioException(ex, String.format("Couldn't map %s", id));
+			}
+			seq = seqCache.put(id, new FaidxSequence(id, buffer, lengths[i], lineBases[i], lineBytes[i], elideRepeats));
+		}
+		return seq;
+	}
+
+	public void removeSequence(String id) throws IllegalIDException,
+			BioException, ChangeVetoException 
+	{
+		throw new ChangeVetoException();
+	}
+}
@@ -0,0 +1,420 @@
+package das.jkdb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import utils.AbstractLineProcessor;
+
+/**
+ * Convert FASTA to Jim Kent's 2bit format, as read by {@link JKSequenceDB}.
+ *
+ * <p>
+ * Input is streamed a line at a time.  Bases are accumulated into
+ * fixed-size chunks which are packed on a pool of worker threads, and the
+ * packed data is spooled to a temporary file, so memory use doesn't depend
+ * on chromosome size.  N runs and lower-case (soft-masked) runs are recorded
+ * as blocks.  Files whose records don't fit 32-bit offsets are written as
+ * version 1 2bit files with 64-bit offsets.
+ * </p>
+ *
+ * <pre>
+ * FastaToTwoBit [-threads n] output.2bit [input.fa ...]
+ * </pre>
+ */
+public class FastaToTwoBit {
+	private static final int TWOBIT_SIGNATURE = 0x1a412743;
+	private static final int CHUNK = 1 << 20;   // bases; must be a multiple of 4.
+
+	// 2bit code for each input character, or -1 for anything to be stored as N.
+	private static final byte[] CODES = new byte[128];
+	static {
+		Arrays.fill(CODES, (byte) -1);
+		String bases = "TCAG";
+		for (int c = 0; c < 4; ++c) {
+			CODES[bases.charAt(c)] = (byte) c;
+			CODES[Character.toLowerCase(bases.charAt(c))] = (byte) c;
+		}
+	}
+
+	public static void main(String[] args)
+		throws Exception
+	{
+		int threads = Runtime.getRuntime().availableProcessors();
+		int a = 0;
+		while (a < args.length && args[a].startsWith("-") && args[a].length() > 1) {
+			if ("-threads".equals(args[a]) && a + 1 < args.length) {
+				threads = Integer.parseInt(args[a + 1]);
+				a += 2;
+			} else {
+				usage();
+				return;
+			}
+		}
+		if (a >= args.length) {
+			usage();
+			return;
+		}
+
+		Converter c = new Converter(new File(args[a]), threads);
+		c.main(Arrays.asList(args).subList(a + 1, args.length).toArray(new String[0]));
+	}
+
+	private static void usage() {
+		System.err.println("Usage: FastaToTwoBit [-threads n] output.2bit [input.fa ...]");
+	}
+
+	/**
+	 * Line processor doing the actual conversion.  The 2bit file is written
+	 * by {@link #post()}.
+	 */
+	public static class Converter extends AbstractLineProcessor {
+		private final File output;
+		private final int threads;
+		private ExecutorService workers;
+		private File spoolFile;
+		private FileChannel spool;
+		private final LinkedList<Future<ByteBuffer>> pending = new LinkedList<Future<ByteBuffer>>();
+		private final List<Record> records = new ArrayList<Record>();
+
+		// State of the sequence currently being read.
+		private Record current;
+		private byte[] chunk;
+		private int chunkFill;
+		private int nRunStart;
+		private int maskRunStart;
+
+		public Converter(File output, int threads) {
+			this.output = output;
+			this.threads = Math.max(1, threads);
+		}
+
+		/**
+		 * Runs the conversion, making sure the worker threads and the spool
+		 * file are cleaned up even if it fails part way.
+		 */
+		public void main(String[] args)
+			throws Exception
+		{
+			try {
+				super.main(args);
+			} finally {
+				cleanUp();
+			}
+		}
+
+		public void pre()
+			throws Exception
+		{
+			workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "FastaToTwoBit");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			spoolFile = File.createTempFile("fa2bit", ".tmp", output.getAbsoluteFile().getParentFile());
+			spoolFile.deleteOnExit();
+			spool = new RandomAccessFile(spoolFile, "rw").getChannel();
+		}
+
+		public void processLine(String line)
+			throws Exception
+		{
+			if (line.startsWith(">")) {
+				endSequence();
+				String name = line.substring(1).trim();
+				int space = name.indexOf(' ');
+				if (space > 0) {
+					name = name.substring(0, space);
+				}
+				byte[] nameBytes = name.getBytes("UTF-8");
+				if (nameBytes.length == 0 || nameBytes.length > 255) {
+					throw new Exception("Bad sequence name: " + line);
+				}
+				current = new Record(nameBytes, spool.position());
+				chunk = new byte[CHUNK];
+				chunkFill = 0;
+				nRunStart = maskRunStart = -1;
+				return;
+			}
+			if (current == null) {
+				if (line.trim().length() == 0) {
+					return;
+				}
+				throw new Exception("Sequence data before first FASTA header");
+			}
+
+			for (int i = 0; i < line.length(); ++i) {
+				char ch = line.charAt(i);
+				if (Character.isWhitespace(ch)) {
+					continue;
+				}
+				int pos = current.length;
+				byte code = ch < 128 ? CODES[ch] : -1;
+				if (code < 0) {
+					code = 0;
+					if (nRunStart < 0) {
+						nRunStart = pos;
+					}
+				} else if (nRunStart >= 0) {
+					current.nBlocks.add(nRunStart, pos - nRunStart);
+					nRunStart = -1;
+				}
+				if (Character.isLowerCase(ch)) {
+					if (maskRunStart < 0) {
+						maskRunStart = pos;
+					}
+				} else if (maskRunStart >= 0) {
+					current.maskBlocks.add(maskRunStart, pos - maskRunStart);
+					maskRunStart = -1;
+				}
+
+				chunk[chunkFill++] = code;
+				++current.length;
+				if (chunkFill == CHUNK) {
+					submitChunk();
+				}
+			}
+		}
+
+		private void submitChunk()
+			throws Exception
+		{
+			final byte[] codes = chunk;
+			final int fill = chunkFill;
+			pending.add(workers.submit(new Callable<ByteBuffer>() {
+				public ByteBuffer call() {
+					return pack(codes, fill);
+				}
+			}));
+			chunk = new byte[CHUNK];
+			chunkFill = 0;
+
+			// Bound the number of chunks in memory.
+			while (pending.size() > 2 * threads) {
+				spoolNext();
+			}
+		}
+
+		private void spoolNext()
+			throws Exception
+		{
+			ByteBuffer packed = pending.removeFirst().get();
+			while (packed.hasRemaining()) {
+				spool.write(packed);
+			}
+		}
+
+		private void endSequence()
+			throws Exception
+		{
+			if (current == null) {
+				return;
+			}
+			if (nRunStart >= 0) {
+				current.nBlocks.add(nRunStart, current.length - nRunStart);
+			}
+			if (maskRunStart >= 0) {
+				current.maskBlocks.add(maskRunStart, current.length - maskRunStart);
+			}
+			if (chunkFill > 0) {
+				submitChunk();
+			}
+			while (pending.size() > 0) {
+				spoolNext();
+			}
+			records.add(current);
+			current = null;
+			chunk = null;
+		}
+
+		public void post()
+			throws Exception
+		{
+			endSequence();
+			write();
+		}
+
+		private void cleanUp()
+			throws Exception
+		{
+			if (workers != null) {
+				workers.shutdownNow();
+				workers = null;
+			}
+			if (spool != null) {
+				spool.close();
+				spool = null;
+				spoolFile.delete();
+			}
+		}
+
+		private void write()
+			throws Exception
+		{
+			int version = 0;
+			long[] offsets = layout(version);
+			if (offsets[offsets.length - 1] > 0xffffffffL) {
+				version = 1;
+				offsets = layout(version);
+			}
+
+			FileChannel out = new FileOutputStream(output).getChannel();
+			try {
+				ByteBuffer header = le(16);
+				header.putInt(TWOBIT_SIGNATURE);
+				header.putInt(version);
+				header.putInt(records.size());
+				header.putInt(0);
+				writeFully(out, header);
+
+				for (int r = 0; r < records.size(); ++r) {
+					byte[] name = records.get(r).name;
+					ByteBuffer entry = le(1 + name.length + 8);
+					entry.put((byte) name.length);
+					entry.put(name);
+					if (version == 0) {
+						entry.putInt((int) offsets[r]);
+					} else {
+						entry.putLong(offsets[r]);
+					}
+					writeFully(out, entry);
+				}
+
+				for (Record rec : records) {
+					ByteBuffer rh = le(rec.headerSize());
+					rh.putInt(rec.length);
+					rec.nBlocks.put(rh);
+					rec.maskBlocks.put(rh);
+					rh.putInt(0);
+					writeFully(out, rh);
+
+					long done = 0, todo = rec.packedSize();
+					while (done < todo) {
+						done += spool.transferTo(rec.spoolOffset + done, todo - done, out);
+					}
+				}
+			} finally {
+				out.close();
+			}
+		}
+
+		/**
+		 * Offsets of each record for the given file version.  The final
+		 * element is the total file size.
+		 */
+		private long[] layout(int version) {
+			long[] offsets = new long[records.size() + 1];
+			long pos = 16;
+			for (Record rec : records) {
+				pos += 1 + rec.name.length + (version == 0 ? 4 : 8);
+			}
+			for (int r = 0; r < records.size(); ++r) {
+				offsets[r] = pos;
+				pos += records.get(r).headerSize() + records.get(r).packedSize();
+			}
+			offsets[records.size()] = pos;
+			return offsets;
+		}
+	}
+
+	/**
+	 * Pack 2bit codes four to a byte, first base in the high bits.
+	 */
+	static ByteBuffer pack(byte[] codes, int len) {
+		byte[] packed = new byte[(len + 3) / 4];
+		int full = len & ~0x3;
+		for (int i = 0, o = 0; i < full; i += 4, ++o) {
+			packed[o] = (byte) (codes[i] << 6 | codes[i + 1] << 4 | codes[i + 2] << 2 | codes[i + 3]);
+		}
+		for (int i = full; i < len; ++i) {
+			packed[i >> 2] |= codes[i] << (6 - 2 * (i & 0x3));
+		}
+		return ByteBuffer.wrap(packed);
+	}
+
+	private static ByteBuffer le(int size) {
+		ByteBuffer b = ByteBuffer.allocate(size);
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		return b;
+	}
+
+	private static void writeFully(FileChannel out, ByteBuffer b)
+		throws Exception
+	{
+		b.flip();
+		while (b.hasRemaining()) {
+			out.write(b);
+		}
+	}
+
+	private static class Record {
+		final byte[] name;   // UTF-8
+		final long spoolOffset;
+		int length = 0;
+		final Blocks nBlocks = new Blocks();
+		final Blocks maskBlocks = new Blocks();
+
+		Record(byte[] name, long spoolOffset) {
+			this.name = name;
+			this.spoolOffset = spoolOffset;
+		}
+
+		int headerSize() {
+			return 4 + nBlocks.size() + maskBlocks.size() + 4;
+		}
+
+		long packedSize() {
+			return (length + 3L) / 4;
+		}
+	}
+
+	/**
+	 * Growable start/size block table.
+	 */
+	private static class Blocks {
+		private int[] starts = new int[16];
+		private int[] sizes = new int[16];
+		private int count = 0;
+
+		void add(int start, int size) {
+			if (count == starts.length) {
+				starts = Arrays.copyOf(starts, count * 2);
+				sizes = Arrays.copyOf(sizes, count * 2);
+			}
+			starts[count] = start;
+			sizes[count] = size;
+			++count;
+		}
+
+		/**
+		 * Size in bytes when written.
+		 */
+		int size() {
+			return 4 + 8 * count;
+		}
+
+		void put(ByteBuffer b) {
+			b.putInt(count);
+			for (int i = 0; i < count; ++i) {
+				b.putInt(starts[i]);
+			}
+			for (int i = 0; i < count; ++i) {
+				b.putInt(sizes[i]);
+			}
+		}
+	}
+}
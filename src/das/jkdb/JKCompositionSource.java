@@ -31,16 +31,18 @@ import org.biojava.bio.seq.*;
 import org.biojava.bio.seq.db.SequenceDB;
 import org.biojava.bio.seq.impl.SimpleSequence;
 import org.biojava.bio.symbol.Location;
-import org.biojava.bio.symbol.LocationTools;
 import org.biojava.bio.symbol.RangeLocation;
-import org.biojava.bio.symbol.Symbol;
-import org.biojava.bio.symbol.SymbolList;
 import org.biojava.servlets.dazzle.datasource.AbstractDataSource;
 import org.biojava.servlets.dazzle.datasource.DataSourceException;
 import org.biojava.servlets.dazzle.datasource.DazzleReferenceSource;
 import org.biojava.servlets.dazzle.datasource.TilingFeatureSource;
 import org.biojava.utils.SmallSet;
 
+import das.QueryPlan;
+import io.FileFingerprint;
+import utils.ConcurrencyLimiter;
+import utils.WarmUp;
+
 /**
  * Simple example datasource backed by an EMBL file.
  *
@@ -50,12 +52,26 @@ import org.biojava.utils.SmallSet;
 
 public class JKCompositionSource extends AbstractDataSource implements TilingFeatureSource, DazzleReferenceSource {
     private String fileName;
-    private Map<String,Sequence> seqs = new HashMap<String, Sequence>();
     private SequenceDB db;
+    private FileFingerprint fingerprint;
+    private boolean warmUp = false;
+    private int warmUpThreads = 2;
+    private String warmRegions;
+    private boolean warmAllSequences = false;
+    private WarmUp warmer;
+    private int maxConcurrent = 0;
+    private int maxQueued = 16;
+    private long maxQueueMillis = 5000;
+    private ConcurrencyLimiter.Overload overload = ConcurrencyLimiter.Overload.REJECT;
+    private ConcurrencyLimiter limiter;
     
 	private int minTile = 10;
 	private int minWindow = 500;
 	private int defaultMaxBins = 500;
+	
+	private static final List<String> TYPES = Arrays.asList(new String[] {
+		"gc", "cpgoe", "gcskew", "atskew", "nfrac", "repeatfrac", "entropy2", "entropy3", "entropy4"
+	});
     
     public String getDataSourceType() {
         return "2bit-comp";
@@ -65,10 +81,83 @@ public class JKCompositionSource extends AbstractDataSource implements TilingFea
         return "1.00";
     }
 
+    /**
+     * A 2bit file, or a FASTA file with a samtools <code>.fai</code> index.
+     */
     public void setFileName(String s) {
         fileName = s;
     }
 
+    /**
+     * If true, <code>init</code> starts a background warm-up which parses
+     * the sequence headers, faults in the mapped file and requests any
+     * {@link #setWarmRegions(String) hot regions}.  See {@link #isReady()}.
+     */
+    public void setWarmUp(boolean b) {
+        warmUp = b;
+    }
+
+    public void setWarmUpThreads(int i) {
+        warmUpThreads = i;
+    }
+
+    /**
+     * Regions to request during warm-up, as a comma-separated list of
+     * <code>ref:start-end</code> or <code>ref</code>.
+     */
+    public void setWarmRegions(String s) {
+        warmRegions = s;
+    }
+
+    /**
+     * If true, warm-up parses every sequence in the file and grows the
+     * shared sequence cache to hold them all.  By default only the
+     * sequences holding hot regions, then others up to the cache's size,
+     * are warmed.
+     */
+    public void setWarmAllSequences(boolean b) {
+        warmAllSequences = b;
+    }
+
+    /**
+     * Let at most this many requests work in this source at once, or any
+     * number if zero or less (the default).  See {@link ConcurrencyLimiter}.
+     */
+    public void setMaxConcurrent(int i) {
+        maxConcurrent = i;
+    }
+
+    /**
+     * How many requests may wait for a turn before more are turned away.
+     */
+    public void setMaxQueued(int i) {
+        maxQueued = i;
+    }
+
+    /**
+     * How long a request may wait for a turn, or zero or less to wait
+     * indefinitely.
+     */
+    public void setMaxQueueMillis(long l) {
+        maxQueueMillis = l;
+    }
+
+    /**
+     * What to do with requests which can't get a turn: <code>reject</code>
+     * (the default) fails them, <code>run</code> lets them in anyway.
+     */
+    public void setOverload(String s) {
+        overload = ConcurrencyLimiter.Overload.valueOf(s.toUpperCase());
+    }
+
+    /**
+     * False until any warm-up started by <code>init</code> has finished,
+     * and false again once a warm-up is cancelled by <code>destroy</code>.
+     */
+    public boolean isReady() {
+        return warmer == null || warmer.isReady();
+    }
+
     public String getMapMaster() {
         return null;
     }
@@ -78,42 +167,74 @@ public class JKCompositionSource extends AbstractDataSource implements TilingFea
     {
         super.init(ctx);
         try {
-        	db = new JKSequenceDB(new File(fileName), true);  // elide repeats.
+        	db = JKSequenceDBRegistry.acquire(new File(fileName), true);  // elide repeats.
+        	fingerprint = FileFingerprint.of(new File(fileName), new File(fileName + ".fai"));
         } catch (Exception ex) {
             throw new DataSourceException(ex, "Couldn't load sequence file");
         }
+        limiter = new ConcurrencyLimiter(getName() + " (" + getDataSourceType() + ":" + fileName + ")", maxConcurrent, maxQueued, maxQueueMillis, overload);
+        limiter.register();
+        if (warmUp) {
+            warmer = new WarmUp(fileName);
+            JKSequenceDBRegistry.addWarmUpTasks(warmer, db, this, defaultMaxBins, warmRegions, warmAllSequences);
+            warmer.start(warmUpThreads);
+        }
     }
 
+    public void destroy() {
+        if (warmer != null) {
+            warmer.cancel();
+        }
+        if (limiter != null) {
+            limiter.unregister();
+        }
+        if (db != null) {
+            JKSequenceDBRegistry.release(db);
+            db = null;
+        }
+        super.destroy();
+    }
 
+
+    /**
+     * Fingerprint of the sequence file (and index) taken at <code>init</code>.
+     */
     public String getLandmarkVersion(String ref)
         throws DataSourceException, NoSuchElementException
     {
-        return getVersion();
+        return fingerprint.version(getVersion());
     }
 
+    /**
+     * The sequence, read under this source's concurrency limit (see
+     * {@link #setMaxConcurrent(int)}).
+     */
     public Sequence getSequence(String ref)
         throws NoSuchElementException, DataSourceException
     {
-        Sequence seq = (Sequence) seqs.get(ref);
-        if (seq == null) {
-        	if (db.ids().contains(ref)) {
-        		try {
-        			seq = db.getSequence(ref);
-        		} catch (Exception ex) {
-        			throw new DataSourceException(ex);
-        		}
-        	} else if (!ref.startsWith("chr") && db.ids().contains("chr" + ref)) {
-        		try {
-        			seq = db.getSequence("chr" + ref);
-        		} catch (Exception ex) {
-        			throw new DataSourceException(ex);
-        		}
-        	} else {
-        		throw new NoSuchElementException("No sequence " + ref);
-        	}
-        	seqs.put(ref, seq);
-        }
-        return seq;
+        return new LimitedSequence(lookup(ref), limiter);
+    }
+
+    private BulkSequence lookup(String ref)
+        throws NoSuchElementException, DataSourceException
+    {
+    	String id;
+    	if (db.ids().contains(ref)) {
+    		id = ref;
+    	} else if (!ref.startsWith("chr") && db.ids().contains("chr" + ref)) {
+    		id = "chr" + ref;
+    	} else {
+    		throw new NoSuchElementException("No sequence " + ref);
+    	}
+    	
+    	// The shared database caches sequences (and their parsed metadata).
+    	Sequence seq;
+    	try {
+    		seq = db.getSequence(id);
+    	} catch (Exception ex) {
+    		throw new DataSourceException(ex);
+    	}
+        return (BulkSequence) seq;
     }
 
     private Set ids;
@@ -143,14 +264,15 @@ public class JKCompositionSource extends AbstractDataSource implements TilingFea
     }
 
     public FeatureHolder getFeatures(String ref) throws DataSourceException, NoSuchElementException {
-    	return new Seq(getSequence(ref));
+    	return new Seq(lookup(ref));
     }
     
 	public FeatureHolder getFeatures(String ref, int maxbins) throws DataSourceException, NoSuchElementException {
-		return new Seq(getSequence(ref), maxbins);
+		return new Seq(lookup(ref), maxbins);
 	}
 	
 	private class Seq extends SimpleSequence {
+		private final BulkSequence seq;
 		private int maxbins = -1;
 		
 		public Seq(Sequence p) {
@@ -160,6 +282,7 @@ public class JKCompositionSource extends AbstractDataSource implements TilingFea
 					p.getURN(), 
 					Annotation.EMPTY_ANNOTATION
 			);
+			this.seq = (BulkSequence) p;
 		}
 		
 		public Seq(Sequence p, int maxbins) {
@@ -168,8 +291,14 @@ public class JKCompositionSource extends AbstractDataSource implements TilingFea
 		}
 		
 		public FeatureHolder filter(FeatureFilter ff) {
+			boolean held = limiter.acquire();
 			try {
-				Location loc = extractShadowOverlappingLocation(ff);
+				SimpleFeatureHolder result = new SimpleFeatureHolder();
+				QueryPlan plan = QueryPlan.compile(ff);
+				if (!plan.acceptsSource("comp") || !plan.acceptsStrand(StrandedFeature.UNKNOWN)) {
+					return result;
+				}
+				Location loc = plan.getLocation();
 				if (loc == null) {
 					loc = new RangeLocation(1, length());
 				}
@@ -177,6 +306,20 @@ public class JKCompositionSource extends AbstractDataSource implements TilingFea
 					maxbins = defaultMaxBins;
 				}
 				
+				// Only count what the requested types need.
+				List<String> types = new ArrayList<String>();
+				int flags = 0;
+				for (String type : TYPES) {
+					if (plan.acceptsType(type)) {
+						types.add(type);
+						flags |= countFlags(type);
+					}
+				}
+				if (types.size() == 0) {
+					return result;
+				}
+				CompositionCounter c = new CompositionCounter(flags);
+				
 				int tileSize = Math.max(minTile, (loc.getMax() - loc.getMin() + 1) / maxbins);
 				int minTile = (int) Math.floor((1.0 * loc.getMin()) / tileSize);
 				int maxTile = (int) Math.ceil((1.0 * loc.getMax()) / tileSize);
@@ -185,10 +328,12 @@ public class JKCompositionSource extends AbstractDataSource implements TilingFea
 				templ.source = "comp";
 				templ.type = "gc";
 				templ.annotation = new SmallAnnotation();
-				SimpleFeatureHolder result = new SimpleFeatureHolder();
 				for (int t = minTile; t <= maxTile; ++t) {
 					int tmin = (t * tileSize) + 1;
 					int tmax = (t+ 1) * tileSize;
+					if (!loc.isContiguous() && !loc.overlaps(new RangeLocation(tmin, tmax))) {
+						continue;
+					}
 					
 					int cmin = tmin, cmax = tmax;
 					if (tileSize < minWindow) {
@@ -205,21 +350,12 @@ public class JKCompositionSource extends AbstractDataSource implements TilingFea
 						continue;
 					}
 					
-					Count c = count(this, new RangeLocation(cmin, cmax));
+					c.count(seq, cmin, cmax);
 					
 					templ.location = new RangeLocation(tmin, tmax);
-					
-					{
-						templ.type = "gc";
-						templ.annotation.setProperty("score", new Double((1.0 * c.gc) / (cmax - cmin + 1)));
-						Feature f = this.createFeature(templ);
-						if (ff.accept(f)) {
-							result.addFeature(f);
-						}
-					}
-					{
-						templ.type = "cpgoe";
-						templ.annotation.setProperty("score", new Double(c.oe));
+					for (String type : types) {
+						templ.type = type;
+						templ.annotation.setProperty("score", new Double(score(type, c, cmax - cmin + 1)));
 						Feature f = this.createFeature(templ);
 						if (ff.accept(f)) {
 							result.addFeature(f);
@@ -230,6 +366,8 @@ public class JKCompositionSource extends AbstractDataSource implements TilingFea
 				return result;
 			} catch (Exception ex) {
 				throw new RuntimeException(ex);
+			} finally {
+				limiter.release(held);
 			}
 		}
 		
@@ -246,40 +384,51 @@ public class JKCompositionSource extends AbstractDataSource implements TilingFea
 		}
 	}
 	
-	private Count count(SymbolList seq, Location block) {
-		SymbolList sl = seq.subList(block.getMin(), block.getMax());
-		int gCount = 0, cCount = 0;
-		for (int p = 1; p <= sl.length(); ++p) {
-			Symbol s = sl.symbolAt(p);
-			if (s == DNATools.c()) {
-				++cCount;
-			} else if (s == DNATools.g()) {
-				++gCount;
-			}
+	private static int countFlags(String type) {
+		if ("cpgoe".equals(type)) {
+			return CompositionCounter.CPG;
+		} else if ("repeatfrac".equals(type)) {
+			return CompositionCounter.MASK;
+		} else if ("entropy2".equals(type)) {
+			return CompositionCounter.KMER2;
+		} else if ("entropy3".equals(type)) {
+			return CompositionCounter.KMER3;
+		} else if ("entropy4".equals(type)) {
+			return CompositionCounter.KMER4;
+		} else {
+			return 0;
 		}
-		int gcCount = gCount + cCount;
-		int cpgCount = 0;
-		for (int p = 1; p < sl.length(); ++p) {
-			if (sl.symbolAt(p) == DNATools.c() && sl.symbolAt(p + 1) == DNATools.g()) {
-				++cpgCount;
-			}
+	}
+	
+	private static double score(String type, CompositionCounter c, int len) {
+		if ("gc".equals(type)) {
+			return (1.0 * c.gc()) / len;
+		} else if ("cpgoe".equals(type)) {
+			return (1.0 * c.cpg * len) / (c.bases[CompositionCounter.C] * c.bases[CompositionCounter.G]);
+		} else if ("gcskew".equals(type)) {
+			return skew(c.bases[CompositionCounter.G], c.bases[CompositionCounter.C]);
+		} else if ("atskew".equals(type)) {
+			return skew(c.bases[CompositionCounter.A], c.bases[CompositionCounter.T]);
+		} else if ("nfrac".equals(type)) {
+			return (1.0 * c.n) / len;
+		} else if ("repeatfrac".equals(type)) {
+			return (1.0 * c.masked) / len;
+		} else if ("entropy2".equals(type)) {
+			return c.entropy(2);
+		} else if ("entropy3".equals(type)) {
+			return c.entropy(3);
+		} else if ("entropy4".equals(type)) {
+			return c.entropy(4);
+		} else {
+			throw new IllegalArgumentException("Unknown composition type " + type);
 		}
-		double cpgRat = (1.0 * cpgCount * sl.length()) / (cCount * gCount);
-		
-		return new Count(gcCount, cpgCount, cpgRat);
-		
 	}
 	
-	private static class Count {
-		final int gc;
-		final int cpg;
-		final double oe;
-		
-		public Count(int gc, int cpg, double oe) {
-			this.gc = gc;
-			this.cpg = cpg;
-			this.oe = oe;
+	private static double skew(long x, long y) {
+		if (x + y == 0) {
+			return 0.0;
 		}
+		return (1.0 * (x - y)) / (x + y);
 	}
 	
 	public String getScore(Feature f) {
@@ -288,46 +437,7 @@ public class JKCompositionSource extends AbstractDataSource implements TilingFea
 	
 	public Set getAllTypes() {
 		Set<String> s = new SmallSet();
-		s.add("cpgoe");
-		s.add("gc");
+		s.addAll(TYPES);
 		return s;
 	}
-	
-	   public static Location extractShadowOverlappingLocation(FeatureFilter ff) {
-	    	if (ff instanceof FeatureFilter.OverlapsLocation) {
-	    	    return ((FeatureFilter.OverlapsLocation) ff).getLocation();
-	    	} else if (ff instanceof FeatureFilter.ContainedByLocation) {
-	    	    return ((FeatureFilter.ContainedByLocation) ff).getLocation();
-	    	} if (ff instanceof FeatureFilter.ShadowOverlapsLocation) {
-	    	    return ((FeatureFilter.ShadowOverlapsLocation) ff).getLocation();
-	    	} else if (ff instanceof FeatureFilter.And) {
-	    	    FeatureFilter.And ffa = (FeatureFilter.And) ff;
-	    	    Location l1 = extractShadowOverlappingLocation(ffa.getChild1());
-	    	    Location l2 = extractShadowOverlappingLocation(ffa.getChild2());
-
-	    	    if (l1 != null) {
-	    		if (l2 != null) {
-	    		    return l1.intersection(l2);
-	    		} else {
-	    		    return l1;
-	    		}
-	    	    } else {
-	    		if (l2 != null) {
-	    		    return l2;
-	    		} else {
-	    		    return null;
-	    		}
-	    	    }
-	    	} else if (ff instanceof FeatureFilter.Or) {
-	    	    FeatureFilter.Or ffo = (FeatureFilter.Or) ff;
-	    	    Location l1 = extractShadowOverlappingLocation(ffo.getChild1());
-	    	    Location l2 = extractShadowOverlappingLocation(ffo.getChild2());
-
-	    	    if (l1 != null && l2 != null) {
-	    		return LocationTools.union(l1, l2);
-	    	    }
-	    	}
-
-	    	return null;
-	    }
 }
@@ -1,14 +1,10 @@
 package das.jkdb;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Iterator;
-import java.util.List;
 
-import org.biojava.bio.Annotation;
 import org.biojava.bio.BioError;
-import org.biojava.bio.BioException;
 import org.biojava.bio.SmallAnnotation;
 import org.biojava.bio.seq.DNATools;
 import org.biojava.bio.seq.Feature;
@@ -16,31 +12,42 @@ import org.biojava.bio.seq.FeatureFilter;
 import org.biojava.bio.seq.FeatureHolder;
 import org.biojava.bio.seq.FeatureRealizer;
 import org.biojava.bio.seq.FilterUtils;
-import org.biojava.bio.seq.Sequence;
 import org.biojava.bio.seq.SimpleFeatureHolder;
 import org.biojava.bio.seq.SimpleFeatureRealizer;
-import org.biojava.bio.seq.Feature.Template;
 import org.biojava.bio.seq.impl.FeatureImpl;
-import org.biojava.bio.symbol.AbstractSymbolList;
-import org.biojava.bio.symbol.Alphabet;
 import org.biojava.bio.symbol.Location;
-import org.biojava.bio.symbol.LocationTools;
 import org.biojava.bio.symbol.RangeLocation;
 import org.biojava.bio.symbol.Symbol;
 import org.biojava.utils.AssertionFailure;
-import org.biojava.utils.ChangeVetoException;
 
-class JKSequence extends AbstractSymbolList implements Sequence {
+import utils.IntervalSet;
+
+class JKSequence extends BulkSequence {
 	private final static Symbol[] LUT = new Symbol[] {DNATools.t(), DNATools.c(), DNATools.a(), DNATools.g()};
 	
+	// Four 2bit codes for each possible packed byte.
+	private final static byte[] UNPACK = new byte[256 * 4];
+	static {
+		for (int b = 0; b < 256; ++b) {
+			UNPACK[4*b] = (byte) (b>>6 & 0x3);
+			UNPACK[4*b + 1] = (byte) (b>>4 & 0x3);
+			UNPACK[4*b + 2] = (byte) (b>>2 & 0x3);
+			UNPACK[4*b + 3] = (byte) (b & 0x3);
+		}
+	}
+	
 	private final String name;
 	private final ByteBuffer buffer;
 	private final int length;
-	private Location nLocation;
-	private Location maskLocation;
+	private volatile boolean initialized = false;
+	private int[] nBlockStarts;
+	private int[] nBlockSizes;
+	private volatile int[] mBlockStarts;
+	private int[] mBlockSizes;
+	private int mBlockOffset;
+	private IntervalSet maskIntervals;
 	private final int seqStart;
 	private int dnaStart;
-	private int longestMaskBlock = 0;
 	private boolean elideRepeats;
 	
 	JKSequence(String name, ByteBuffer buffer, int start, boolean elideRepeats) {
@@ -55,60 +62,168 @@ class JKSequence extends AbstractSymbolList implements Sequence {
 		}
 	}
 	
+	private void ensureInit() {
+		if (!initialized) {
+			synchronized (this) {
+				if (!initialized) {
+					init();
+					initialized = true;
+				}
+			}
+		}
+	}
+	
 	private void init() {
 		synchronized (buffer) {
 			buffer.position(seqStart + 4);
 			{
 				int nBlockCnt = buffer.getInt();
-				int[] nBlockStarts = new int[nBlockCnt];
+				nBlockStarts = new int[nBlockCnt];
 				for (int i = 0; i < nBlockCnt; ++i) {
 					nBlockStarts[i] = buffer.getInt();
 				}
-				int[] nBlockSizes = new int[nBlockCnt];
+				nBlockSizes = new int[nBlockCnt];
 				for (int i = 0; i < nBlockCnt; ++i) {
 					nBlockSizes[i] = buffer.getInt();
 				}
-				List<Location> nBlocks = new ArrayList<Location>();
-				for (int i = 0; i < nBlockCnt; ++i) {
-					nBlocks.add(new RangeLocation(nBlockStarts[i], nBlockStarts[i] + nBlockSizes[i] - 1));
-				}
-				nLocation = LocationTools.union(nBlocks);
 			}
 			int mBlockCnt = buffer.getInt();
+			mBlockOffset = buffer.position() - 4;
 			if (!elideRepeats) {
-				int[] mBlockStarts = new int[mBlockCnt];
+				readMaskBlocks();
+				// One-based and inclusive, like feature locations (and
+				// FaidxSequence's repeats); the block table is zero-based.
+				int[] starts = new int[mBlockCnt];
+				int[] ends = new int[mBlockCnt];
 				for (int i = 0; i < mBlockCnt; ++i) {
-					mBlockStarts[i] = buffer.getInt();
+					starts[i] = mBlockStarts[i] + 1;
+					ends[i] = mBlockStarts[i] + mBlockSizes[i];
 				}
-				int[] mBlockSizes = new int[mBlockCnt];
-				for (int i = 0; i < mBlockCnt; ++i) {
-					mBlockSizes[i] = buffer.getInt();
-					longestMaskBlock = Math.max(longestMaskBlock, mBlockSizes[i]);
-				}
-				List<Location> mBlocks = new ArrayList<Location>();
-				for (int i = 0; i < mBlockCnt; ++i) {
-					mBlocks.add(new RangeLocation(mBlockStarts[i], mBlockStarts[i] + mBlockSizes[i] - 1));
-				}
-				maskLocation = LocationTools.union(mBlocks);
+				maskIntervals = IntervalSet.of(starts, ends);
 			} else {
 				buffer.position(buffer.position() + (mBlockCnt*8));
-				maskLocation = Location.empty;
+				maskIntervals = IntervalSet.EMPTY;
 			}
 			buffer.getInt();
 			dnaStart = buffer.position();
 		}
 	}
 	
-	public String getName() {
-		return name;
+	/**
+	 * Read the mask block table.  When repeats are elided this only happens
+	 * if something actually asks for mask information.
+	 */
+	private void readMaskBlocks() {
+		synchronized (buffer) {
+			if (mBlockStarts != null) {
+				return;
+			}
+			buffer.position(mBlockOffset);
+			int mBlockCnt = buffer.getInt();
+			int[] starts = new int[mBlockCnt];
+			for (int i = 0; i < mBlockCnt; ++i) {
+				starts[i] = buffer.getInt();
+			}
+			int[] sizes = new int[mBlockCnt];
+			for (int i = 0; i < mBlockCnt; ++i) {
+				sizes[i] = buffer.getInt();
+			}
+			mBlockSizes = sizes;
+			mBlockStarts = starts;
+		}
 	}
-
-	public String getURN() {
-		return getName();
+	
+	/**
+	 * Index of the last block starting at or before <code>pos</code>, or
+	 * zero if there is no such block.
+	 */
+	private static int firstBlock(int[] starts, int pos) {
+		int i = Arrays.binarySearch(starts, pos);
+		if (i < 0) {
+			i = -i - 2;
+		}
+		return Math.max(i, 0);
 	}
-
-	public Alphabet getAlphabet() {
-		return DNATools.getDNA();
+	
+	private static boolean inBlock(int[] starts, int[] sizes, int pos) {
+		int i = firstBlock(starts, pos);
+		return i < starts.length && starts[i] <= pos && pos < starts[i] + sizes[i];
+	}
+	
+	private static void overlay(int[] starts, int[] sizes, byte flag, int start, int end, byte[] dest, int off) {
+		for (int i = firstBlock(starts, start); i < starts.length && starts[i] < end; ++i) {
+			int bmin = Math.max(start, starts[i]);
+			int bmax = Math.min(end, starts[i] + sizes[i]);
+			for (int p = bmin; p < bmax; ++p) {
+				dest[off + p - start] |= flag;
+			}
+		}
+	}
+	
+	void unpack(int start, int len, byte[] dest, int off, boolean mask) {
+		ensureInit();
+		if (start < 0 || start + len > length) {
+			throw new IndexOutOfBoundsException(String.format("%d+%d is outside 0:%d", start, len, length));
+		}
+		
+		int pos = start, end = start + len, o = off;
+		while (pos < end && (pos & 0x3) != 0) {
+			dest[o++] = UNPACK[((buffer.get(dnaStart + (pos >> 2)) & 0xff) << 2) + (pos & 0x3)];
+			++pos;
+		}
+		while (pos + 4 <= end) {
+			int b = (buffer.get(dnaStart + (pos >> 2)) & 0xff) << 2;
+			dest[o] = UNPACK[b];
+			dest[o + 1] = UNPACK[b + 1];
+			dest[o + 2] = UNPACK[b + 2];
+			dest[o + 3] = UNPACK[b + 3];
+			o += 4;
+			pos += 4;
+		}
+		while (pos < end) {
+			dest[o++] = UNPACK[((buffer.get(dnaStart + (pos >> 2)) & 0xff) << 2) + (pos & 0x3)];
+			++pos;
+		}
+		
+		overlay(nBlockStarts, nBlockSizes, N_FLAG, start, end, dest, off);
+		if (mask) {
+			readMaskBlocks();
+			overlay(mBlockStarts, mBlockSizes, MASK_FLAG, start, end, dest, off);
+		}
+	}
+	
+	boolean hasMask() {
+		return !elideRepeats;
+	}
+	
+	void warm() {
+		ensureInit();
+		touch(buffer, dnaStart, (length + 3) / 4);
+	}
+	
+	/**
+	 * Works directly from the mask block table.
+	 */
+	int countMasked(int min, int max, int tileSize, int firstTile, long[] masked) {
+		ensureInit();
+		readMaskBlocks();
+		int runs = 0;
+		for (int i = firstBlock(mBlockStarts, min); i < mBlockStarts.length && mBlockStarts[i] < max; ++i) {
+			int bmin = Math.max(min, mBlockStarts[i]);
+			int bmax = Math.min(max, mBlockStarts[i] + mBlockSizes[i]);
+			if (bmax <= bmin) {
+				continue;
+			}
+			++runs;
+			for (int t = bmin / tileSize; t <= (bmax - 1) / tileSize; ++t) {
+				masked[t - firstTile] += Math.min(bmax, (t + 1) * tileSize) - Math.max(bmin, t * tileSize);
+			}
+		}
+		return runs;
+	}
+	
+	public String getName() {
+		return name;
 	}
 
 	public int length() {
@@ -117,16 +232,14 @@ class JKSequence extends AbstractSymbolList implements Sequence {
 
 	public Symbol symbolAt(int index) throws IndexOutOfBoundsException 
 	{
-		if (nLocation == null) {
-			init();
-		}
+		ensureInit();
 		
 		if (index < 1 || index > length) {
 			throw new IndexOutOfBoundsException(String.format("%d is outside 1:%d", index, length));
 		}
 		
 		index -= 1;
-		if (nLocation.contains(index)) {
+		if (inBlock(nBlockStarts, nBlockSizes, index)) {
 			return DNATools.n();
 		}
 		
@@ -147,46 +260,22 @@ class JKSequence extends AbstractSymbolList implements Sequence {
 		throw new AssertionFailure("Fall-though in 2bit unpacker");
 	}
 
-	public boolean containsFeature(Feature f) {
-		return f.getSequence() == this;
-	}
-
-	public int countFeatures() {
-		return filter(FeatureFilter.all).countFeatures(); // EEP this is inefficient!
-	}
-
-	public Feature createFeature(Template ft) throws BioException, ChangeVetoException {
-		throw new ChangeVetoException();
-	}
-
-	public Iterator features() {
-		return filter(FeatureFilter.all).features();
-	}
-
-	public FeatureHolder filter(FeatureFilter fc, boolean recurse) {
-		return filter(fc);
-	}
-
 	public FeatureHolder filter(FeatureFilter filter) {
-		if (maskLocation == null) {
-			init();
-		}
+		ensureInit();
 		
 		Location ol = FilterUtils.extractOverlappingLocation(filter);
-		Location l;
-		if (ol == null) {
-			l = maskLocation;
-		} else {
-			l = LocationTools.intersection(maskLocation, new RangeLocation(ol.getMin() - longestMaskBlock, ol.getMax() + longestMaskBlock));
+		int first = 0, max = Integer.MAX_VALUE;
+		if (ol != null) {
+			first = maskIntervals.firstEndingAfter(ol.getMin());
+			max = ol.getMax();
 		}
 		SimpleFeatureHolder fh = new SimpleFeatureHolder();
 		Feature.Template temp = new Feature.Template();
 		temp.type = "repeat";
 		temp.source = "ucsc";
 		temp.annotation = new SmallAnnotation();
-		for (Iterator<?> i = l.blockIterator(); i.hasNext(); ) {
-			Location bloc = (Location) i.next();
-			temp.location = bloc;
+		for (int i = first; i < maskIntervals.size() && maskIntervals.start(i) <= max; ++i) {
+			temp.location = new RangeLocation(maskIntervals.start(i), maskIntervals.end(i));
 			try {
 				Feature f = FeatureImpl.DEFAULT.realizeFeature(this, this, temp);
 				if (filter.accept(f)) {
@@ -202,12 +291,4 @@ class JKSequence extends AbstractSymbolList implements Sequence {
 	public FeatureFilter getSchema() {
 		return new FeatureFilter.ByType("repeat");
 	}
-
-	public void removeFeature(Feature f) throws ChangeVetoException, BioException {
-		throw new ChangeVetoException();
-	}
-
-	public Annotation getAnnotation() {
-		return Annotation.EMPTY_ANNOTATION;
-	}
 }
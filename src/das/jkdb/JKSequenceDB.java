@@ -5,6 +5,8 @@ import java.io.FileInputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -27,11 +29,18 @@ import org.biojava.utils.Unchangeable;
  */
 public class JKSequenceDB extends Unchangeable implements SequenceDB {
 	private static final int TWOBIT_SIGNATURE = 0x1a412743;
+	private static final int DEFAULT_MAX_CACHED_SEQUENCES = 128;
+	private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
 	
 	private ByteBuffer buffer;
 	private Map<String,Integer> seqOffsets = new HashMap<String, Integer>();
+	private Map<String,ByteBuffer> seqBuffers = new HashMap<String, ByteBuffer>();
 	private boolean elideRepeats;
 	
+	// Sequences hold their parsed N- and mask-block metadata, so keep the most
+	// recently created ones around rather than re-parsing on every request.
+	private final SequenceCache<JKSequence> seqCache = new SequenceCache<JKSequence>(DEFAULT_MAX_CACHED_SEQUENCES);
+	
 	public JKSequenceDB(File f)
 		throws Exception
 	{
@@ -44,35 +53,119 @@ public class JKSequenceDB extends Unchangeable implements SequenceDB {
 		this.elideRepeats = elideRepeats;
 		
 		long size = f.length();
-		buffer = new FileInputStream(f).getChannel().map(FileChannel.MapMode.READ_ONLY, 0, (int) size);
-		int sig = buffer.getInt();
-		if (sig != TWOBIT_SIGNATURE) {
-			buffer.order(buffer.order() == ByteOrder.LITTLE_ENDIAN ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
-			buffer.rewind();
-			sig = buffer.getInt();
-		}
-		if (sig != TWOBIT_SIGNATURE) {
-			throw new BioException("Bad signature");
+		FileInputStream fis = new FileInputStream(f);
+		try {
+			FileChannel fc = fis.getChannel();
+			buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, MAX_SEGMENT_SIZE));
+			int sig = buffer.getInt();
+			if (sig != TWOBIT_SIGNATURE) {
+				buffer.order(buffer.order() == ByteOrder.LITTLE_ENDIAN ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+				buffer.rewind();
+				sig = buffer.getInt();
+			}
+			if (sig != TWOBIT_SIGNATURE) {
+				throw new BioException("Bad signature");
+			}
+			
+			int version = buffer.getInt();
+			if (version != 0 && version != 1) {
+				throw new BioException(String.format("Unsupported 2bit version %d", version));
+			}
+			
+			int seqCnt = buffer.getInt();
+			buffer.getInt();  // reserved word.
+			
+			String[] names = new String[seqCnt];
+			long[] offsets = new long[seqCnt];
+			for (int s = 0; s < seqCnt; ++s) {
+				int ns = buffer.get() & 0xff;
+				byte[] nameBuffer = new byte[ns];
+				buffer.get(nameBuffer);
+				names[s] = new String(nameBuffer, "UTF-8");
+				// Version 1 files have 64-bit offsets.
+				offsets[s] = version == 0 ? buffer.getInt() & 0xffffffffL : buffer.getLong();
+			}
+			
+			if (size <= MAX_SEGMENT_SIZE) {
+				for (int s = 0; s < seqCnt; ++s) {
+					seqOffsets.put(names[s], (int) offsets[s]);
+					seqBuffers.put(names[s], buffer);
+				}
+			} else {
+				mapSegments(fc, size, names, offsets);
+			}
+		} finally {
+			fis.close();   // The mappings stay valid once the channel is closed.
 		}
-		
-		int version = buffer.getInt();
-		if (version != 0) {
-			throw new BioException(String.format("Unsupported 2bit version %d", version));
+	}
+	
+	/**
+	 * Files too big for a single buffer are mapped as a series of segments,
+	 * each holding a run of whole sequence records.
+	 */
+	private void mapSegments(FileChannel fc, long size, final String[] names, final long[] offsets)
+		throws Exception
+	{
+		Integer[] order = new Integer[names.length];
+		for (int s = 0; s < order.length; ++s) {
+			order[s] = s;
 		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return offsets[a] < offsets[b] ? -1 : (offsets[a] > offsets[b] ? 1 : 0);
+			}
+		});
 		
-		int seqCnt = buffer.getInt();
-		buffer.getInt();  // reserved word.
-		
-		for (int s = 0; s < seqCnt; ++s) {
-			int ns = buffer.get();
-			byte[] nameBuffer = new byte[ns];
-			buffer.get(nameBuffer);
-			int offset = buffer.getInt();
-			String name = new String(nameBuffer);
-			seqOffsets.put(name, offset);
+		int first = 0;
+		while (first < order.length) {
+			long segStart = offsets[order[first]];
+			int last = first;
+			long segEnd = segStart;
+			while (last < order.length) {
+				long recEnd = last + 1 < order.length ? offsets[order[last + 1]] : size;
+				if (recEnd - segStart > MAX_SEGMENT_SIZE) {
+					break;
+				}
+				segEnd = recEnd;
+				++last;
+			}
+			if (last == first) {
+				throw new BioException(String.format("Record for %s is too large to map", names[order[first]]));
+			}
+			ByteBuffer seg = fc.map(FileChannel.MapMode.READ_ONLY, segStart, segEnd - segStart);
+			seg.order(buffer.order());
+			for (int i = first; i < last; ++i) {
+				seqOffsets.put(names[order[i]], (int) (offsets[order[i]] - segStart));
+				seqBuffers.put(names[order[i]], seg);
+			}
+			first = last;
 		}
 	}
 
+	/**
+	 * Set the maximum number of sequences whose metadata is cached by this
+	 * database.  Evicted sequences are re-parsed on their next use.
+	 */
+	public void setMaxCachedSequences(int i) {
+		seqCache.setMaxSize(i);
+	}
+	
+	public int getMaxCachedSequences() {
+		return seqCache.getMaxSize();
+	}
+	
+	/**
+	 * Make room to cache at least <code>i</code> sequences, for instance so
+	 * that a warm-up of every sequence isn't evicted again straight away.
+	 */
+	public void ensureCacheCapacity(int i) {
+		seqCache.ensureCapacity(i);
+	}
+	
+	public boolean isElideRepeats() {
+		return elideRepeats;
+	}
+	
 	public FeatureHolder filter(FeatureFilter filter) {
 		return FeatureHolder.EMPTY_FEATURE_HOLDER;
 	}
@@ -105,7 +198,11 @@ public class JKSequenceDB extends Unchangeable implements SequenceDB {
 			throw new IllegalIDException(String.format("Can't find %s", id));
 		}
 
-		return new JKSequence(id, buffer, idx.intValue(), elideRepeats);
+		JKSequence seq = seqCache.get(id);
+		if (seq == null) {
+			seq = seqCache.put(id, new JKSequence(id, seqBuffers.get(id), idx.intValue(), elideRepeats));
+		}
+		return seq;
 	}
 
 	public void removeSequence(String id) throws IllegalIDException,
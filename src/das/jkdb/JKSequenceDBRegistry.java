@@ -0,0 +1,173 @@
+package das.jkdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.biojava.bio.seq.FeatureFilter;
+import org.biojava.bio.seq.FeatureHolder;
+import org.biojava.bio.seq.db.SequenceDB;
+import org.biojava.bio.symbol.RangeLocation;
+import org.biojava.servlets.dazzle.datasource.TilingFeatureSource;
+
+import utils.WarmUp;
+
+/**
+ * Process-wide registry of open 2bit databases.  Data sources configured
+ * against the same file share a single mapping (and a single set of parsed
+ * sequence headers) for as long as at least one of them holds a reference.
+ * FASTA files with a <code>.fai</code> index are opened as
+ * {@link FaidxSequenceDB}s.
+ * 
+ */
+public class JKSequenceDBRegistry {
+	private static final Map<Key,Entry> entries = new HashMap<Key, Entry>();
+	
+	private JKSequenceDBRegistry() {
+	}
+	
+	/**
+	 * Return a shared database for <code>f</code>, opening it if no other
+	 * source currently holds it.  Every call should be balanced by a call
+	 * to {@link #release(SequenceDB)}.
+	 */
+	public static synchronized SequenceDB acquire(File f, boolean elideRepeats)
+		throws Exception
+	{
+		Key k = new Key(f.getCanonicalPath(), elideRepeats);
+		Entry e = entries.get(k);
+		if (e == null) {
+			File cf = new File(k.path);
+			if (FaidxSequenceDB.indexFile(cf).exists()) {
+				e = new Entry(new FaidxSequenceDB(cf, elideRepeats));
+			} else {
+				e = new Entry(new JKSequenceDB(cf, elideRepeats));
+			}
+			entries.put(k, e);
+		}
+		++e.refCount;
+		return e.db;
+	}
+	
+	/**
+	 * Drop a reference obtained from {@link #acquire(File, boolean)}.  The
+	 * database is forgotten once its last reference has been released.
+	 */
+	public static synchronized void release(SequenceDB db) {
+		for (Iterator<Entry> i = entries.values().iterator(); i.hasNext(); ) {
+			Entry e = i.next();
+			if (e.db == db) {
+				if (--e.refCount <= 0) {
+					i.remove();
+					if (db instanceof FaidxSequenceDB) {
+						try {
+							((FaidxSequenceDB) db).close();
+						} catch (IOException ex) {
+							// Nothing useful to do here.
+						}
+					}
+				}
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Queue warm-up tasks for a source using <code>db</code>: one per
+	 * sequence, parsing its metadata and faulting in its bases, then one per
+	 * hot region, requesting the region from <code>source</code>.  The
+	 * database's cache is grown to hold every sequence, since otherwise on
+	 * assemblies with many sequences most of the warmed metadata would be
+	 * evicted again before any traffic arrived.
+	 */
+	/**
+	 * Add tasks warming the sequences of <code>db</code> and requesting the
+	 * hot <code>regions</code> of <code>source</code>.  Unless
+	 * <code>all</code> is set only the sequences holding hot regions, then
+	 * others in order up to the database's existing cache size, are warmed,
+	 * so that a file with many sequences doesn't have all of them pinned.
+	 */
+	static void addWarmUpTasks(WarmUp w, final SequenceDB db, final TilingFeatureSource source, final int maxbins, String regions, boolean all) {
+		List<WarmUp.Region> hot = WarmUp.parseRegions(regions);
+		Set<String> names = new LinkedHashSet<String>();
+		for (WarmUp.Region r : hot) {
+			names.add(r.ref);
+		}
+		int limit;
+		if (db instanceof JKSequenceDB) {
+			JKSequenceDB jk = (JKSequenceDB) db;
+			jk.ensureCacheCapacity(all ? db.ids().size() : names.size());
+			limit = jk.getMaxCachedSequences();
+		} else if (db instanceof FaidxSequenceDB) {
+			FaidxSequenceDB fai = (FaidxSequenceDB) db;
+			fai.ensureCacheCapacity(all ? db.ids().size() : names.size());
+			limit = fai.getMaxCachedSequences();
+		} else {
+			limit = all ? db.ids().size() : names.size();
+		}
+		for (Iterator<?> i = db.ids().iterator(); i.hasNext() && names.size() < limit; ) {
+			names.add(i.next().toString());
+		}
+		names.retainAll(db.ids());
+		for (final String name : names) {
+			w.add(new Callable<Object>() {
+				public Object call()
+					throws Exception
+				{
+					((BulkSequence) db.getSequence(name)).warm();
+					return null;
+				}
+			});
+		}
+		for (final WarmUp.Region r : hot) {
+			w.add(new Callable<Object>() {
+				public Object call()
+					throws Exception
+				{
+					FeatureHolder fh = source.getFeatures(r.ref, maxbins);
+					if (r.start > 0) {
+						fh = fh.filter(new FeatureFilter.OverlapsLocation(new RangeLocation(r.start, r.end)));
+					}
+					return fh.countFeatures();
+				}
+			});
+		}
+	}
+	
+	private static class Key {
+		final String path;
+		final boolean elideRepeats;
+		
+		Key(String path, boolean elideRepeats) {
+			this.path = path;
+			this.elideRepeats = elideRepeats;
+		}
+		
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return path.equals(k.path) && elideRepeats == k.elideRepeats;
+		}
+		
+		public int hashCode() {
+			return path.hashCode() * 2 + (elideRepeats ? 1 : 0);
+		}
+	}
+	
+	private static class Entry {
+		final SequenceDB db;
+		int refCount = 0;
+		
+		Entry(SequenceDB db) {
+			this.db = db;
+		}
+	}
+}
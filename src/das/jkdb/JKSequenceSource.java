@@ -23,6 +23,7 @@ package das.jkdb;
 
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.servlet.ServletContext;
 
@@ -30,12 +31,19 @@ import javax.servlet.ServletContext;
 import org.biojava.bio.*;
 import org.biojava.bio.seq.*;
 import org.biojava.bio.seq.db.SequenceDB;
+import org.biojava.bio.seq.impl.SimpleSequence;
 import org.biojava.bio.seq.io.*;
 import org.biojava.servlets.dazzle.datasource.AbstractDataSource;
 import org.biojava.servlets.dazzle.datasource.DataSourceException;
 import org.biojava.servlets.dazzle.datasource.DazzleReferenceSource;
+import org.biojava.servlets.dazzle.datasource.TilingFeatureSource;
+import org.biojava.utils.SmallSet;
 import org.biojava.utils.xml.*;
 
+import io.FileFingerprint;
+import utils.ConcurrencyLimiter;
+import utils.WarmUp;
+
 /**
  * Simple example datasource backed by an EMBL file.
  *
@@ -43,10 +51,23 @@ import org.biojava.utils.xml.*;
  * @version 1.00
  */
 
-public class JKSequenceSource extends AbstractDataSource implements DazzleReferenceSource {
+public class JKSequenceSource extends AbstractDataSource implements DazzleReferenceSource, TilingFeatureSource {
     private String fileName;
-    private Map<String,Sequence> seqs = new HashMap<String, Sequence>();
     private SequenceDB db;
+    private FileFingerprint fingerprint;
+    private boolean warmUp = false;
+    private int warmUpThreads = 2;
+    private String warmRegions;
+    private boolean warmAllSequences = false;
+    private WarmUp warmer;
+    private int maxConcurrent = 0;
+    private int maxQueued = 16;
+    private long maxQueueMillis = 5000;
+    private ConcurrencyLimiter.Overload overload = ConcurrencyLimiter.Overload.REJECT;
+    private ConcurrencyLimiter limiter;
+    private boolean softMask = false;
+
+    private static final int DEFAULT_MAX_BINS = 500;
     
     public String getDataSourceType() {
         return "2bit";
@@ -56,10 +77,91 @@ public class JKSequenceSource extends AbstractDataSource implements DazzleRefere
         return "1.00";
     }
 
+    /**
+     * A 2bit file, or a FASTA file with a samtools <code>.fai</code> index.
+     */
     public void setFileName(String s) {
         fileName = s;
     }
 
+    /**
+     * If true, sequence written by the streaming methods is upper case
+     * except for soft-masked (repeat) regions.
+     */
+    public void setSoftMask(boolean b) {
+        softMask = b;
+    }
+
+    /**
+     * If true, <code>init</code> starts a background warm-up which parses
+     * the sequence headers, faults in the mapped file and requests any
+     * {@link #setWarmRegions(String) hot regions}.  See {@link #isReady()}.
+     */
+    public void setWarmUp(boolean b) {
+        warmUp = b;
+    }
+
+    public void setWarmUpThreads(int i) {
+        warmUpThreads = i;
+    }
+
+    /**
+     * Regions to request during warm-up, as a comma-separated list of
+     * <code>ref:start-end</code> or <code>ref</code>.
+     */
+    public void setWarmRegions(String s) {
+        warmRegions = s;
+    }
+
+    /**
+     * If true, warm-up parses every sequence in the file and grows the
+     * shared sequence cache to hold them all.  By default only the
+     * sequences holding hot regions, then others up to the cache's size,
+     * are warmed.
+     */
+    public void setWarmAllSequences(boolean b) {
+        warmAllSequences = b;
+    }
+
+    /**
+     * Let at most this many requests work in this source at once, or any
+     * number if zero or less (the default).  See {@link ConcurrencyLimiter}.
+     */
+    public void setMaxConcurrent(int i) {
+        maxConcurrent = i;
+    }
+
+    /**
+     * How many requests may wait for a turn before more are turned away.
+     */
+    public void setMaxQueued(int i) {
+        maxQueued = i;
+    }
+
+    /**
+     * How long a request may wait for a turn, or zero or less to wait
+     * indefinitely.
+     */
+    public void setMaxQueueMillis(long l) {
+        maxQueueMillis = l;
+    }
+
+    /**
+     * What to do with requests which can't get a turn: <code>reject</code>
+     * (the default) fails them, <code>run</code> lets them in anyway.
+     */
+    public void setOverload(String s) {
+        overload = ConcurrencyLimiter.Overload.valueOf(s.toUpperCase());
+    }
+
+    /**
+     * False until any warm-up started by <code>init</code> has finished,
+     * and false again once a warm-up is cancelled by <code>destroy</code>.
+     */
+    public boolean isReady() {
+        return warmer == null || warmer.isReady();
+    }
+
     public String getMapMaster() {
         return null;
     }
@@ -69,46 +171,174 @@ public class JKSequenceSource extends AbstractDataSource implements DazzleRefere
     {
         super.init(ctx);
         try {
-        	db = new JKSequenceDB(new File(fileName));
+        	db = JKSequenceDBRegistry.acquire(new File(fileName), false);
+        	fingerprint = FileFingerprint.of(new File(fileName), new File(fileName + ".fai"));
         } catch (Exception ex) {
             throw new DataSourceException(ex, "Couldn't load sequence file");
         }
+        limiter = new ConcurrencyLimiter(getName() + " (" + getDataSourceType() + ":" + fileName + ")", maxConcurrent, maxQueued, maxQueueMillis, overload);
+        limiter.register();
+        if (warmUp) {
+            warmer = new WarmUp(fileName);
+            JKSequenceDBRegistry.addWarmUpTasks(warmer, db, this, DEFAULT_MAX_BINS, warmRegions, warmAllSequences);
+            warmer.start(warmUpThreads);
+        }
+    }
+
+    public void destroy() {
+        if (warmer != null) {
+            warmer.cancel();
+        }
+        if (limiter != null) {
+            limiter.unregister();
+        }
+        if (db != null) {
+            JKSequenceDBRegistry.release(db);
+            db = null;
+        }
+        super.destroy();
     }
 
 
+    /**
+     * A fingerprint of the sequence file taken at <code>init</code>, so it
+     * changes whenever the file does.  Every sequence shares it.
+     */
     public String getLandmarkVersion(String ref)
         throws DataSourceException, NoSuchElementException
     {
-        return getVersion();
+        return fingerprint.version(getVersion());
     }
 
+    /**
+     * The sequence, read under this source's concurrency limit (see
+     * {@link #setMaxConcurrent(int)}).
+     */
     public Sequence getSequence(String ref)
         throws NoSuchElementException, DataSourceException
     {
-        Sequence seq = (Sequence) seqs.get(ref);
-        if (seq == null) {
-        	if (db.ids().contains(ref)) {
-        		try {
-        			seq = db.getSequence(ref);
-        		} catch (Exception ex) {
-        			throw new DataSourceException(ex);
-        		}
-        	} else if (!ref.startsWith("chr") && db.ids().contains("chr" + ref)) {
-        		try {
-        			seq = db.getSequence("chr" + ref);
-        		} catch (Exception ex) {
-        			throw new DataSourceException(ex);
-        		}
-        	} else {
-        		throw new NoSuchElementException("No sequence " + ref);
-        	}
-        	seqs.put(ref, seq);
+        return new LimitedSequence(lookup(ref), limiter);
+    }
+
+    private BulkSequence lookup(String ref)
+        throws NoSuchElementException, DataSourceException
+    {
+    	String id;
+    	if (db.ids().contains(ref)) {
+    		id = ref;
+    	} else if (!ref.startsWith("chr") && db.ids().contains("chr" + ref)) {
+    		id = "chr" + ref;
+    	} else {
+    		throw new NoSuchElementException("No sequence " + ref);
+    	}
+    	
+    	// The shared database caches sequences (and their parsed metadata).
+    	Sequence seq;
+    	try {
+    		seq = db.getSequence(id);
+    	} catch (Exception ex) {
+    		throw new DataSourceException(ex);
+    	}
+        return (BulkSequence) seq;
+    }
+
+    /**
+     * Stream the (one-based, inclusive) region <code>min</code>..<code>max</code>
+     * of <code>ref</code> as text, decoding straight from the mapped file
+     * rather than via BioJava symbols.
+     */
+    public void writeSequence(String ref, int min, int max, Writer w)
+        throws NoSuchElementException, DataSourceException, IOException
+    {
+        boolean held = admit();
+        try {
+            lookup(ref).writeBases(min, max, w, softMask);
+        } finally {
+            limiter.release(held);
+        }
+    }
+
+    /**
+     * Stream the (one-based, inclusive) region <code>min</code>..<code>max</code>
+     * of <code>ref</code> as ASCII bytes.
+     */
+    public void writeSequence(String ref, int min, int max, OutputStream os)
+        throws NoSuchElementException, DataSourceException, IOException
+    {
+        boolean held = admit();
+        try {
+            lookup(ref).writeBases(min, max, os, softMask);
+        } finally {
+            limiter.release(held);
+        }
+    }
+
+    /**
+     * Repeats, switching to <code>repeat-density</code> tiles when there are
+     * more repeats in the requested region than <code>maxbins</code>.
+     */
+    public FeatureHolder getFeatures(String ref, int maxbins)
+        throws DataSourceException, NoSuchElementException
+    {
+        return new Tiled(lookup(ref), maxbins);
+    }
+
+    private boolean admit()
+        throws DataSourceException
+    {
+        try {
+            return limiter.acquire();
+        } catch (RejectedExecutionException ex) {
+            throw new DataSourceException(ex, ex.getMessage());
+        }
+    }
+
+    private class Tiled extends SimpleSequence {
+        private final BulkSequence seq;
+        private final int maxbins;
+
+        public Tiled(BulkSequence seq, int maxbins) {
+            super(seq, seq.getName(), seq.getURN(), Annotation.EMPTY_ANNOTATION);
+            this.seq = seq;
+            this.maxbins = maxbins;
+        }
+
+        public FeatureHolder filter(FeatureFilter ff) {
+            boolean held = limiter.acquire();
+            try {
+                return seq.filter(ff, maxbins < 0 ? DEFAULT_MAX_BINS : maxbins);
+            } finally {
+                limiter.release(held);
+            }
+        }
+
+        public FeatureHolder filter(FeatureFilter ff, boolean rec) {
+            return filter(ff);
+        }
+
+        public Iterator features() {
+            return filter(FeatureFilter.all).features();
+        }
+
+        public int countFeatures() {
+            return filter(FeatureFilter.all).countFeatures();
+        }
+    }
+
+    public String getScore(Feature f) {
+        Annotation fa = f.getAnnotation();
+        if (fa.containsProperty("score")) {
+            return fa.getProperty("score").toString();
+        } else {
+            return super.getScore(f);
         }
-        return seq;
     }
 
     public Set getAllTypes() {
-        return Collections.emptySet();
+        Set<String> s = new SmallSet();
+        s.add("repeat");
+        s.add("repeat-density");
+        return s;
     }
     
     public Set getEntryPoints() {
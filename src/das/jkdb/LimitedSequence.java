@@ -0,0 +1,125 @@
+package das.jkdb;
+
+import java.util.Iterator;
+
+import org.biojava.bio.Annotation;
+import org.biojava.bio.seq.FeatureFilter;
+import org.biojava.bio.seq.FeatureHolder;
+import org.biojava.bio.seq.impl.SimpleSequence;
+import org.biojava.bio.symbol.AbstractSymbolList;
+import org.biojava.bio.symbol.Alphabet;
+import org.biojava.bio.symbol.Symbol;
+import org.biojava.bio.symbol.SymbolList;
+
+import utils.ConcurrencyLimiter;
+
+/**
+ * A sequence as handed out by a datasource's <code>getSequence</code>.
+ * Reading bases (or repeat features) takes a turn from the source's
+ * {@link ConcurrencyLimiter}, so sequence requests are admitted the same
+ * way as feature requests, even though the reading happens after
+ * <code>getSequence</code> has returned.  Each bulk read holds one
+ * permit; reading symbol by symbol takes one per symbol.
+ */
+class LimitedSequence extends SimpleSequence {
+	private final BulkSequence seq;
+	private final ConcurrencyLimiter limiter;
+	
+	LimitedSequence(BulkSequence seq, ConcurrencyLimiter limiter) {
+		super(seq, seq.getURN(), seq.getName(), Annotation.EMPTY_ANNOTATION);
+		this.seq = seq;
+		this.limiter = limiter;
+	}
+	
+	public Symbol symbolAt(int index) {
+		boolean held = limiter.acquire();
+		try {
+			return seq.symbolAt(index);
+		} finally {
+			limiter.release(held);
+		}
+	}
+	
+	public String subStr(int min, int max) {
+		boolean held = limiter.acquire();
+		try {
+			return seq.subStr(min, max);
+		} finally {
+			limiter.release(held);
+		}
+	}
+	
+	public String seqString() {
+		return subStr(1, length());
+	}
+	
+	public SymbolList subList(int min, int max) {
+		return new Limited(seq.subList(min, max));
+	}
+	
+	public FeatureHolder filter(FeatureFilter ff) {
+		boolean held = limiter.acquire();
+		try {
+			return seq.filter(ff);
+		} finally {
+			limiter.release(held);
+		}
+	}
+	
+	public FeatureHolder filter(FeatureFilter ff, boolean rec) {
+		return filter(ff);
+	}
+	
+	public Iterator features() {
+		return filter(FeatureFilter.all).features();
+	}
+	
+	public int countFeatures() {
+		return filter(FeatureFilter.all).countFeatures();
+	}
+	
+	/**
+	 * A view of part of the sequence, read under the same limiter.
+	 */
+	private class Limited extends AbstractSymbolList {
+		private final SymbolList sl;
+		
+		Limited(SymbolList sl) {
+			this.sl = sl;
+		}
+		
+		public Alphabet getAlphabet() {
+			return sl.getAlphabet();
+		}
+		
+		public int length() {
+			return sl.length();
+		}
+		
+		public Symbol symbolAt(int index) {
+			boolean held = limiter.acquire();
+			try {
+				return sl.symbolAt(index);
+			} finally {
+				limiter.release(held);
+			}
+		}
+		
+		public String subStr(int min, int max) {
+			boolean held = limiter.acquire();
+			try {
+				return sl.subStr(min, max);
+			} finally {
+				limiter.release(held);
+			}
+		}
+		
+		public String seqString() {
+			return subStr(1, length());
+		}
+		
+		public SymbolList subList(int min, int max) {
+			return new Limited(sl.subList(min, max));
+		}
+	}
+}
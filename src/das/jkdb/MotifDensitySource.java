@@ -0,0 +1,361 @@
+package das.jkdb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import javax.servlet.ServletContext;
+
+import org.biojava.bio.Annotation;
+import org.biojava.bio.SmallAnnotation;
+import org.biojava.bio.seq.Feature;
+import org.biojava.bio.seq.FeatureFilter;
+import org.biojava.bio.seq.FeatureHolder;
+import org.biojava.bio.seq.Sequence;
+import org.biojava.bio.seq.SimpleFeatureHolder;
+import org.biojava.bio.seq.StrandedFeature;
+import org.biojava.bio.seq.db.SequenceDB;
+import org.biojava.bio.seq.impl.SimpleSequence;
+import org.biojava.bio.symbol.Location;
+import org.biojava.bio.symbol.RangeLocation;
+import org.biojava.servlets.dazzle.datasource.AbstractDataSource;
+import org.biojava.servlets.dazzle.datasource.DataSourceException;
+import org.biojava.servlets.dazzle.datasource.TilingFeatureSource;
+import org.biojava.utils.SmallSet;
+
+import das.QueryPlan;
+import io.FileFingerprint;
+import utils.ConcurrencyLimiter;
+
+/**
+ * Motif hit density computed on the fly from a 2bit (or indexed FASTA)
+ * sequence.  Motifs are configured as a comma-separated list of
+ * <code>name:PATTERN</code> pairs using IUPAC codes, e.g.
+ * <code>CTCF:CCRSNAGRKGGCRS,EcoRI:GAATTC</code>.
+ * 
+ * <p>
+ * Each motif gives two feature types: <code>name</code> for individual
+ * (stranded) hits, returned when the requested region is no longer than
+ * <code>maxHitRegion</code>, and <code>name-density</code> for hits per kb
+ * in each tile, returned otherwise.
+ * </p>
+ */
+public class MotifDensitySource extends AbstractDataSource implements TilingFeatureSource {
+    private String fileName;
+    private SequenceDB db;
+    private FileFingerprint fingerprint;
+    private List<String> motifNames = new ArrayList<String>();
+    private List<String> motifPatterns = new ArrayList<String>();
+    private boolean bothStrands = true;
+    private MotifMatcher matcher;
+    private int maxConcurrent = 0;
+    private int maxQueued = 16;
+    private long maxQueueMillis = 5000;
+    private ConcurrencyLimiter.Overload overload = ConcurrencyLimiter.Overload.REJECT;
+    private ConcurrencyLimiter limiter;
+    
+	private int minTile = 10;
+	private int defaultMaxBins = 500;
+	private int maxHitRegion = 20000;
+    
+    public String getDataSourceType() {
+        return "2bit-motif";
+    }
+    
+    public String getDataSourceVersion() {
+        return "1.00";
+    }
+
+    /**
+     * A 2bit file, or a FASTA file with a samtools <code>.fai</code> index.
+     */
+    public void setFileName(String s) {
+        fileName = s;
+    }
+    
+    public void setMotifs(String s) {
+    	motifNames.clear();
+    	motifPatterns.clear();
+    	for (String m : s.split(",")) {
+    		m = m.trim();
+    		int colon = m.indexOf(':');
+    		if (colon > 0) {
+    			motifNames.add(m.substring(0, colon).trim());
+    			motifPatterns.add(m.substring(colon + 1).trim());
+    		} else if (m.length() > 0) {
+    			motifNames.add(m);
+    			motifPatterns.add(m);
+    		}
+    	}
+    }
+    
+    public void setBothStrands(boolean b) {
+    	this.bothStrands = b;
+    }
+    
+    public void setMinTile(int i) {
+    	this.minTile = i;
+    }
+    
+    public void setMaxHitRegion(int i) {
+    	this.maxHitRegion = i;
+    }
+
+    /**
+     * Let at most this many requests work in this source at once, or any
+     * number if zero or less (the default).  See {@link ConcurrencyLimiter}.
+     */
+    public void setMaxConcurrent(int i) {
+        maxConcurrent = i;
+    }
+
+    /**
+     * How many requests may wait for a turn before more are turned away.
+     */
+    public void setMaxQueued(int i) {
+        maxQueued = i;
+    }
+
+    /**
+     * How long a request may wait for a turn, or zero or less to wait
+     * indefinitely.
+     */
+    public void setMaxQueueMillis(long l) {
+        maxQueueMillis = l;
+    }
+
+    /**
+     * What to do with requests which can't get a turn: <code>reject</code>
+     * (the default) fails them, <code>run</code> lets them in anyway.
+     */
+    public void setOverload(String s) {
+        overload = ConcurrencyLimiter.Overload.valueOf(s.toUpperCase());
+    }
+
+    public String getMapMaster() {
+        return null;
+    }
+
+    public void init(ServletContext ctx) 
+        throws DataSourceException
+    {
+        super.init(ctx);
+        try {
+        	matcher = new MotifMatcher(motifPatterns, bothStrands);
+        } catch (IllegalArgumentException ex) {
+        	throw new DataSourceException(ex, "Bad motif");
+        }
+        try {
+        	db = JKSequenceDBRegistry.acquire(new File(fileName), true);
+        	fingerprint = FileFingerprint.of(new File(fileName), new File(fileName + ".fai"));
+        } catch (Exception ex) {
+            throw new DataSourceException(ex, "Couldn't load sequence file");
+        }
+        limiter = new ConcurrencyLimiter(getName() + " (" + getDataSourceType() + ":" + fileName + ")", maxConcurrent, maxQueued, maxQueueMillis, overload);
+        limiter.register();
+    }
+
+    public void destroy() {
+        if (limiter != null) {
+            limiter.unregister();
+        }
+        if (db != null) {
+            JKSequenceDBRegistry.release(db);
+            db = null;
+        }
+        super.destroy();
+    }
+
+    /**
+     * Fingerprint of the sequence file (and index) taken at <code>init</code>.
+     */
+    public String getLandmarkVersion(String ref)
+        throws DataSourceException, NoSuchElementException
+    {
+        return fingerprint.version(getVersion());
+    }
+
+    /**
+     * The sequence, read under this source's concurrency limit (see
+     * {@link #setMaxConcurrent(int)}).
+     */
+    public Sequence getSequence(String ref)
+        throws NoSuchElementException, DataSourceException
+    {
+        return new LimitedSequence(lookup(ref), limiter);
+    }
+
+    private BulkSequence lookup(String ref)
+        throws NoSuchElementException, DataSourceException
+    {
+    	String id;
+    	if (db.ids().contains(ref)) {
+    		id = ref;
+    	} else if (!ref.startsWith("chr") && db.ids().contains("chr" + ref)) {
+    		id = "chr" + ref;
+    	} else {
+    		throw new NoSuchElementException("No sequence " + ref);
+    	}
+    	
+    	try {
+    		return (BulkSequence) db.getSequence(id);
+    	} catch (Exception ex) {
+    		throw new DataSourceException(ex);
+    	}
+    }
+    
+    public Set getEntryPoints() {
+    	return db.ids();
+    }
+
+    public FeatureHolder getFeatures(String ref) throws DataSourceException, NoSuchElementException {
+    	return new Seq(lookup(ref), -1);
+    }
+    
+	public FeatureHolder getFeatures(String ref, int maxbins) throws DataSourceException, NoSuchElementException {
+		return new Seq(lookup(ref), maxbins);
+	}
+	
+	public Set getAllTypes() {
+		Set<String> s = new SmallSet();
+		for (String name : motifNames) {
+			s.add(name);
+			s.add(name + "-density");
+		}
+		return s;
+	}
+	
+	public String getScore(Feature f) {
+		Annotation fa = f.getAnnotation();
+		if (fa.containsProperty("score")) {
+			return fa.getProperty("score").toString();
+		} else {
+			return super.getScore(f);
+		}
+	}
+	
+	private class Seq extends SimpleSequence {
+		private final BulkSequence seq;
+		private int maxbins;
+		
+		public Seq(Sequence p, int maxbins) {
+			super(
+					p, 
+					p.getName(), 
+					p.getURN(), 
+					Annotation.EMPTY_ANNOTATION
+			);
+			this.seq = (BulkSequence) p;
+			this.maxbins = maxbins;
+		}
+		
+		public FeatureHolder filter(final FeatureFilter ff) {
+			boolean held = limiter.acquire();
+			try {
+				QueryPlan plan = QueryPlan.compile(ff);
+				Location loc = plan.getLocation();
+				if (loc == null) {
+					loc = new RangeLocation(1, length());
+				}
+				int min = Math.max(1, loc.getMin());
+				int max = Math.min(length(), loc.getMax());
+				final SimpleFeatureHolder result = new SimpleFeatureHolder();
+				if (max < min || !plan.acceptsSource("motif")) {
+					return result;
+				}
+				if (maxbins < 0) {
+					maxbins = defaultMaxBins;
+				}
+				
+				Set<String> types = plan.getTypes();
+				
+				if (max - min + 1 <= maxHitRegion) {
+					final StrandedFeature.Template templ = new StrandedFeature.Template();
+					templ.source = "motif";
+					templ.annotation = Annotation.EMPTY_ANNOTATION;
+					if (!anyRequested(types, "")) {
+						return result;
+					}
+					matcher.scan(seq, min - 1, max, new MotifMatcher.HitHandler() {
+						public void hit(int motif, int start, boolean reverse) {
+							templ.type = motifNames.get(motif);
+							templ.location = new RangeLocation(start + 1, start + matcher.getMotifLength(motif));
+							templ.strand = reverse ? StrandedFeature.NEGATIVE : StrandedFeature.POSITIVE;
+							try {
+								Feature f = createFeature(templ);
+								if (ff.accept(f)) {
+									result.addFeature(f);
+								}
+							} catch (Exception ex) {
+								throw new RuntimeException(ex);
+							}
+						}
+					});
+				} else {
+					if (!anyRequested(types, "-density")) {
+						return result;
+					}
+					final int tileSize = Math.max(minTile, (max - min + 1) / maxbins);
+					final int minTile = (min - 1) / tileSize;
+					int maxTile = (max - 1) / tileSize;
+					final int[][] counts = new int[motifNames.size()][maxTile - minTile + 1];
+					matcher.scan(seq, minTile * tileSize, Math.min(length(), (maxTile + 1) * tileSize), new MotifMatcher.HitHandler() {
+						public void hit(int motif, int start, boolean reverse) {
+							++counts[motif][start / tileSize - minTile];
+						}
+					});
+					
+					Feature.Template templ = new Feature.Template();
+					templ.source = "motif";
+					templ.annotation = new SmallAnnotation();
+					for (int m = 0; m < counts.length; ++m) {
+						templ.type = motifNames.get(m) + "-density";
+						if (types != null && !types.contains(templ.type)) {
+							continue;
+						}
+						for (int t = 0; t < counts[m].length; ++t) {
+							templ.location = new RangeLocation((minTile + t) * tileSize + 1, (minTile + t + 1) * tileSize);
+							templ.annotation.setProperty("score", new Double((1000.0 * counts[m][t]) / tileSize));
+							Feature f = this.createFeature(templ);
+							if (ff.accept(f)) {
+								result.addFeature(f);
+							}
+						}
+					}
+				}
+				return result;
+			} catch (Exception ex) {
+				throw new RuntimeException(ex);
+			} finally {
+				limiter.release(held);
+			}
+		}
+		
+		private boolean anyRequested(Set<String> types, String suffix) {
+			if (types == null) {
+				return true;
+			}
+			for (String name : motifNames) {
+				if (types.contains(name + suffix)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		public FeatureHolder filter(FeatureFilter ff, boolean rec) {
+			return filter(ff);
+		}
+		
+		public Iterator features() {
+			return filter(FeatureFilter.all).features();
+		}
+		
+		public int countFeatures() {
+			return filter(FeatureFilter.all).countFeatures();
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package das.jkdb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bit-parallel (shift-and) matcher for a set of IUPAC motifs, working
+ * directly on 2bit codes.  Patterns are packed side by side into 64-bit
+ * state words, so one shift, OR and AND per word advances every motif
+ * by one base.  Reverse-strand matches are found by also matching the
+ * reverse complement of each non-palindromic motif.
+ */
+class MotifMatcher {
+	private static final int CHUNK = 1 << 16;
+	private static final String BASES = "TCAG";   // 2bit code order.
+
+	/**
+	 * Receives the matches found by {@link MotifMatcher#scan}.
+	 */
+	interface HitHandler {
+		/**
+		 * @param motif index of the motif in the list the matcher was built from
+		 * @param start zero-based position of the first base of the hit
+		 * @param reverse true if the hit is on the reverse strand
+		 */
+		public void hit(int motif, int start, boolean reverse);
+	}
+
+	private final int maxLength;
+	private final long[][] masks;   // [word][code]
+	private final long[] starts;
+	private final long[] accepts;
+	private final int[][] bitMotif;     // [word][bit] -> motif index, for accept bits
+	private final boolean[][] bitReverse;
+	private final int[] motifLengths;
+
+	/**
+	 * @param motifs IUPAC patterns, each at most 64 bases long
+	 * @param bothStrands also report matches on the reverse strand
+	 */
+	MotifMatcher(List<String> motifs, boolean bothStrands) {
+		List<long[]> patterns = new ArrayList<long[]>();    // per-position code masks
+		List<Integer> owners = new ArrayList<Integer>();
+		List<Boolean> reverse = new ArrayList<Boolean>();
+		motifLengths = new int[motifs.size()];
+		int ml = 0;
+		for (int m = 0; m < motifs.size(); ++m) {
+			long[] fwd = compile(motifs.get(m));
+			motifLengths[m] = fwd.length;
+			ml = Math.max(ml, fwd.length);
+			patterns.add(fwd);
+			owners.add(m);
+			reverse.add(Boolean.FALSE);
+			if (bothStrands) {
+				long[] rev = reverseComplement(fwd);
+				if (!Arrays.equals(fwd, rev)) {
+					patterns.add(rev);
+					owners.add(m);
+					reverse.add(Boolean.TRUE);
+				}
+			}
+		}
+		maxLength = ml;
+
+		// Pack patterns into as few 64-bit words as possible, in order.
+		List<List<Integer>> words = new ArrayList<List<Integer>>();
+		int used = 64;
+		for (int p = 0; p < patterns.size(); ++p) {
+			int len = patterns.get(p).length;
+			if (used + len > 64) {
+				words.add(new ArrayList<Integer>());
+				used = 0;
+			}
+			words.get(words.size() - 1).add(p);
+			used += len;
+		}
+
+		masks = new long[words.size()][4];
+		starts = new long[words.size()];
+		accepts = new long[words.size()];
+		bitMotif = new int[words.size()][64];
+		bitReverse = new boolean[words.size()][64];
+		for (int w = 0; w < words.size(); ++w) {
+			int bit = 0;
+			for (int p : words.get(w)) {
+				long[] pat = patterns.get(p);
+				starts[w] |= 1L << bit;
+				for (int i = 0; i < pat.length; ++i) {
+					for (int c = 0; c < 4; ++c) {
+						if ((pat[i] & (1L << c)) != 0) {
+							masks[w][c] |= 1L << (bit + i);
+						}
+					}
+				}
+				int last = bit + pat.length - 1;
+				accepts[w] |= 1L << last;
+				bitMotif[w][last] = owners.get(p);
+				bitReverse[w][last] = reverse.get(p);
+				bit += pat.length;
+			}
+		}
+	}
+
+	/**
+	 * Length of the longest motif.
+	 */
+	int getMaxLength() {
+		return maxLength;
+	}
+
+	int getMotifLength(int motif) {
+		return motifLengths[motif];
+	}
+
+	/**
+	 * Per-position sets of acceptable 2bit codes, as bitmasks.
+	 */
+	private static long[] compile(String motif) {
+		if (motif.length() == 0 || motif.length() > 64) {
+			throw new IllegalArgumentException("Motifs must be 1-64 bases long: " + motif);
+		}
+		long[] pat = new long[motif.length()];
+		for (int i = 0; i < motif.length(); ++i) {
+			String bases = iupac(Character.toUpperCase(motif.charAt(i)));
+			if (bases == null) {
+				throw new IllegalArgumentException("Bad IUPAC code in motif: " + motif);
+			}
+			for (int b = 0; b < bases.length(); ++b) {
+				pat[i] |= 1L << BASES.indexOf(bases.charAt(b));
+			}
+		}
+		return pat;
+	}
+
+	private static long[] reverseComplement(long[] pat) {
+		long[] rev = new long[pat.length];
+		for (int i = 0; i < pat.length; ++i) {
+			long p = pat[pat.length - 1 - i];
+			// Complementing a 2bit code flips its high bit: T<->A, C<->G.
+			for (int c = 0; c < 4; ++c) {
+				if ((p & (1L << c)) != 0) {
+					rev[i] |= 1L << (c ^ 2);
+				}
+			}
+		}
+		return rev;
+	}
+
+	private static String iupac(char c) {
+		switch (c) {
+		case 'A': return "A";
+		case 'C': return "C";
+		case 'G': return "G";
+		case 'T': case 'U': return "T";
+		case 'R': return "AG";
+		case 'Y': return "CT";
+		case 'S': return "CG";
+		case 'W': return "AT";
+		case 'K': return "GT";
+		case 'M': return "AC";
+		case 'B': return "CGT";
+		case 'D': return "AGT";
+		case 'H': return "ACT";
+		case 'V': return "ACG";
+		case 'N': return "ACGT";
+		}
+		return null;
+	}
+
+	/**
+	 * Report every hit starting within the zero-based, half-open region
+	 * <code>min</code>..<code>max</code> of <code>seq</code>.  Hits never
+	 * span N bases.
+	 */
+	void scan(BulkSequence seq, int min, int max, HitHandler handler) {
+		int scanMax = Math.min(seq.length(), max + maxLength - 1);
+		byte[] codes = new byte[CHUNK];
+		long[] state = new long[starts.length];
+		int nw = starts.length;
+
+		for (int pos = min; pos < scanMax; pos += CHUNK) {
+			int len = Math.min(CHUNK, scanMax - pos);
+			seq.unpack(pos, len, codes, 0, false);
+			for (int i = 0; i < len; ++i) {
+				int c = codes[i];
+				if ((c & BulkSequence.N_FLAG) != 0) {
+					for (int w = 0; w < nw; ++w) {
+						state[w] = 0;
+					}
+					continue;
+				}
+				for (int w = 0; w < nw; ++w) {
+					long d = ((state[w] << 1) | starts[w]) & masks[w][c];
+					state[w] = d;
+					long hits = d & accepts[w];
+					while (hits != 0) {
+						int bit = Long.numberOfTrailingZeros(hits);
+						hits &= hits - 1;
+						int motif = bitMotif[w][bit];
+						int start = pos + i - motifLengths[motif] + 1;
+						if (start >= min && start < max) {
+							handler.hit(motif, start, bitReverse[w][bit]);
+						}
+					}
+				}
+			}
+		}
+	}
+}
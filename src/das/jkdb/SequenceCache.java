@@ -0,0 +1,61 @@
+package das.jkdb;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bounded, thread-safe cache of sequence objects by ID.  Once the cache is
+ * full the oldest entries are evicted first.
+ */
+class SequenceCache<S> {
+	private final ConcurrentMap<String,S> cache = new ConcurrentHashMap<String, S>();
+	private final Queue<String> order = new ConcurrentLinkedQueue<String>();
+	private volatile int maxSize;
+	
+	SequenceCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+	
+	void setMaxSize(int i) {
+		this.maxSize = i;
+	}
+	
+	int getMaxSize() {
+		return maxSize;
+	}
+	
+	/**
+	 * Grow the cache, if need be, to hold at least <code>i</code> entries.
+	 */
+	synchronized void ensureCapacity(int i) {
+		if (maxSize < i) {
+			maxSize = i;
+		}
+	}
+	
+	S get(String id) {
+		return cache.get(id);
+	}
+	
+	/**
+	 * Cache <code>seq</code> unless another thread got there first, and return
+	 * whichever object ended up in the cache.
+	 */
+	S put(String id, S seq) {
+		S old = cache.putIfAbsent(id, seq);
+		if (old != null) {
+			return old;
+		}
+		order.add(id);
+		while (cache.size() > maxSize) {
+			String eldest = order.poll();
+			if (eldest == null) {
+				break;
+			}
+			cache.remove(eldest);
+		}
+		return seq;
+	}
+}
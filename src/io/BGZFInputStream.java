@@ -0,0 +1,254 @@
+package io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses BGZF (blocked gzip, as used by BAM and tabix) input.  Each
+ * BGZF block is an independent gzip member whose compressed size is given
+ * in its header, so blocks are read on the calling thread, inflated on a
+ * worker pool and delivered in their original order.
+ */
+public class BGZFInputStream extends InputStream {
+	private static final int HEADER_SIZE = 12;
+	
+	private final InputStream in;
+	private final ExecutorService workers;
+	private final int maxInFlight;
+	private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+	private boolean eof = false;
+	private byte[] current = new byte[0];
+	private int pos = 0;
+	
+	/**
+	 * @param in the compressed data
+	 * @param workers pool to inflate blocks on
+	 * @param maxInFlight maximum number of blocks read ahead of the consumer
+	 */
+	public BGZFInputStream(InputStream in, ExecutorService workers, int maxInFlight) {
+		this.in = in;
+		this.workers = workers;
+		this.maxInFlight = Math.max(1, maxInFlight);
+	}
+	
+	/**
+	 * Check whether a stream starts with a BGZF block header.  The stream
+	 * must support <code>mark</code>, and is left at its starting position.
+	 */
+	public static boolean isBGZF(InputStream in)
+		throws IOException
+	{
+		byte[] h = new byte[18];
+		in.mark(h.length);
+		try {
+			int n = 0;
+			while (n < h.length) {
+				int r = in.read(h, n, h.length - n);
+				if (r < 0) {
+					return false;
+				}
+				n += r;
+			}
+		} finally {
+			in.reset();
+		}
+		return (h[0] & 0xff) == 0x1f && (h[1] & 0xff) == 0x8b && h[2] == 8 && (h[3] & 0x4) != 0 &&
+			h[12] == 'B' && h[13] == 'C' && h[14] == 2 && h[15] == 0;
+	}
+	
+	private static int u16(byte[] b, int o) {
+		return (b[o] & 0xff) | (b[o + 1] & 0xff) << 8;
+	}
+	
+	private static int i32(byte[] b, int o) {
+		return u16(b, o) | u16(b, o + 2) << 16;
+	}
+	
+	private boolean readFully(byte[] b, int off, int len)
+		throws IOException
+	{
+		int n = 0;
+		while (n < len) {
+			int r = in.read(b, off + n, len - n);
+			if (r < 0) {
+				if (n == 0) {
+					return false;
+				}
+				throw new EOFException("Truncated BGZF block");
+			}
+			n += r;
+		}
+		return true;
+	}
+	
+	/**
+	 * Read the next compressed block, or return null at end of input.
+	 */
+	private byte[] readBlock()
+		throws IOException
+	{
+		byte[] header = new byte[HEADER_SIZE];
+		if (!readFully(header, 0, HEADER_SIZE)) {
+			return null;
+		}
+		if ((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || (header[3] & 0x4) == 0) {
+			throw new IOException("Not a BGZF block");
+		}
+		int xlen = u16(header, 10);
+		byte[] extra = new byte[xlen];
+		if (!readFully(extra, 0, xlen)) {
+			throw new EOFException("Truncated BGZF block");
+		}
+		int bsize = -1;
+		for (int x = 0; x + 4 <= xlen; ) {
+			int slen = u16(extra, x + 2);
+			if (extra[x] == 'B' && extra[x + 1] == 'C' && slen == 2) {
+				bsize = u16(extra, x + 4);
+			}
+			x += 4 + slen;
+		}
+		if (bsize < 0) {
+			throw new IOException("Missing BGZF block size");
+		}
+		
+		// Compressed data plus CRC32 and ISIZE.
+		byte[] block = new byte[bsize + 1 - HEADER_SIZE - xlen];
+		if (!readFully(block, 0, block.length)) {
+			throw new EOFException("Truncated BGZF block");
+		}
+		return block;
+	}
+	
+	private static byte[] inflate(byte[] block)
+		throws IOException
+	{
+		int dataLen = block.length - 8;
+		int crc = i32(block, dataLen);
+		int isize = i32(block, dataLen + 4);
+		byte[] out = new byte[isize];
+		Inflater inf = new Inflater(true);
+		try {
+			inf.setInput(block, 0, dataLen);
+			int n = 0;
+			while (n < isize) {
+				int r = inf.inflate(out, n, isize - n);
+				if (r == 0 && (inf.finished() || inf.needsInput())) {
+					throw new IOException("Short BGZF block");
+				}
+				n += r;
+			}
+		} catch (DataFormatException ex) {
+			IOException e2 = new IOException("Bad BGZF block");
+			e2.initCause(ex);
+			throw e2;
+		} finally {
+			inf.end();
+		}
+		CRC32 check = new CRC32();
+		check.update(out);
+		if ((int) check.getValue() != crc) {
+			throw new IOException("BGZF block CRC mismatch");
+		}
+		return out;
+	}
+	
+	private void fill()
+		throws IOException
+	{
+		while (!eof && pending.size() < maxInFlight) {
+			final byte[] block = readBlock();
+			if (block == null) {
+				eof = true;
+			} else {
+				pending.add(workers.submit(new Callable<byte[]>() {
+					public byte[] call() throws IOException {
+						return inflate(block);
+					}
+				}));
+			}
+		}
+	}
+	
+	/**
+	 * Make sure there's something in <code>current</code>, returning false
+	 * at end of input.
+	 */
+	private boolean advance()
+		throws IOException
+	{
+		while (pos >= current.length) {
+			fill();
+			if (pending.isEmpty()) {
+				return false;
+			}
+			try {
+				current = pending.removeFirst().get();
+			} catch (ExecutionException ex) {
+				if (ex.getCause() instanceof IOException) {
+					throw (IOException) ex.getCause();
+				}
+				IOException e2 = new IOException("Couldn't decompress block");
+				e2.initCause(ex.getCause());
+				throw e2;
+			} catch (InterruptedException ex) {
+				IOException e2 = new IOException("Interrupted");
+				e2.initCause(ex);
+				throw e2;
+			}
+			pos = 0;
+		}
+		return true;
+	}
+
+	@Override
+	public int read()
+		throws IOException
+	{
+		if (!advance()) {
+			return -1;
+		}
+		return current[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len)
+		throws IOException
+	{
+		if (len == 0) {
+			return 0;
+		}
+		if (!advance()) {
+			return -1;
+		}
+		int n = Math.min(len, current.length - pos);
+		System.arraycopy(current, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return current.length - pos;
+	}
+
+	@Override
+	public void close()
+		throws IOException
+	{
+		for (Future<byte[]> f : pending) {
+			f.cancel(false);
+		}
+		pending.clear();
+		eof = true;
+		in.close();
+	}
+}
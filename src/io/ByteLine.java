@@ -0,0 +1,91 @@
+package io;
+
+import java.nio.charset.Charset;
+
+/**
+ * A line of text held as bytes in a reusable buffer.  Readers hand out the
+ * same instance for every line, so its contents are only valid until the
+ * next line is read; use {@link #toString()} to keep a copy.  The
+ * {@link CharSequence} view treats each byte as one (ISO-8859-1) character,
+ * which is exact for ASCII text.
+ */
+public class ByteLine implements CharSequence {
+	private static final Charset DEFAULT_CHARSET = Charset.defaultCharset();
+	
+	private byte[] bytes;
+	private int offset;
+	private int length;
+	
+	public ByteLine() {
+		this(new byte[256], 0, 0);
+	}
+	
+	public ByteLine(byte[] bytes, int offset, int length) {
+		set(bytes, offset, length);
+	}
+	
+	/**
+	 * Point this line at a slice of <code>bytes</code>.
+	 */
+	public void set(byte[] bytes, int offset, int length) {
+		this.bytes = bytes;
+		this.offset = offset;
+		this.length = length;
+	}
+	
+	/**
+	 * Buffer holding the line, starting at {@link #offset()}.
+	 */
+	public byte[] bytes() {
+		return bytes;
+	}
+	
+	public int offset() {
+		return offset;
+	}
+	
+	public int length() {
+		return length;
+	}
+	
+	public byte byteAt(int i) {
+		return bytes[offset + i];
+	}
+	
+	public char charAt(int i) {
+		return (char) (bytes[offset + i] & 0xff);
+	}
+	
+	/**
+	 * Index of the first occurrence of <code>b</code>, or -1.
+	 */
+	public int indexOf(byte b) {
+		for (int i = 0; i < length; ++i) {
+			if (bytes[offset + i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Shorten this line to its first <code>len</code> bytes.
+	 */
+	public void truncate(int len) {
+		if (len < length) {
+			length = len;
+		}
+	}
+	
+	public CharSequence subSequence(int start, int end) {
+		return new ByteLine(bytes, offset + start, end - start);
+	}
+	
+	/**
+	 * Decode the line using the platform default charset, as a
+	 * <code>FileReader</code> would.
+	 */
+	public String toString() {
+		return new String(bytes, offset, length, DEFAULT_CHARSET);
+	}
+}
@@ -0,0 +1,115 @@
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * A cheap identity for the contents of one or more files: their sizes,
+ * modification times and a checksum of a few blocks sampled across each
+ * file.  It changes whenever a file is replaced or rewritten (short of a
+ * same-size edit outside the sampled blocks within one clock tick), and
+ * costs a handful of small reads however large the files are.
+ *
+ * <p>
+ * The {@link #toString()} form is suitable as a DAS landmark version, so
+ * clients caching by version see a change whenever the data does.
+ * </p>
+ */
+public class FileFingerprint {
+	private static final int SAMPLES = 16;
+	private static final int BLOCK_SIZE = 4096;
+
+	private final long size;
+	private final long lastModified;
+	private final long checksum;
+
+	private FileFingerprint(long size, long lastModified, long checksum) {
+		this.size = size;
+		this.lastModified = lastModified;
+		this.checksum = checksum;
+	}
+
+	/**
+	 * Fingerprint <code>files</code> together.  Files which don't exist are
+	 * skipped, so optional files (such as indices) can be included.
+	 */
+	public static FileFingerprint of(File... files)
+		throws IOException
+	{
+		long size = 0, lastModified = 0;
+		CRC32 crc = new CRC32();
+		byte[] block = new byte[BLOCK_SIZE];
+		for (File f : files) {
+			if (f == null || !f.isFile()) {
+				continue;
+			}
+			long len = f.length();
+			size += len;
+			lastModified = Math.max(lastModified, f.lastModified());
+			updateLong(crc, len);
+			RandomAccessFile raf = new RandomAccessFile(f, "r");
+			try {
+				long blocks = (len + BLOCK_SIZE - 1) / BLOCK_SIZE;
+				int samples = (int) Math.min(blocks, SAMPLES);
+				for (int s = 0; s < samples; ++s) {
+					// Evenly spaced, always including the first and last blocks.
+					long b = samples == 1 ? 0 : (s * (blocks - 1)) / (samples - 1);
+					raf.seek(b * BLOCK_SIZE);
+					int n = (int) Math.min(BLOCK_SIZE, len - b * BLOCK_SIZE);
+					raf.readFully(block, 0, n);
+					crc.update(block, 0, n);
+				}
+			} finally {
+				raf.close();
+			}
+		}
+		return new FileFingerprint(size, lastModified, crc.getValue());
+	}
+
+	private static void updateLong(CRC32 crc, long l) {
+		for (int i = 0; i < 8; ++i) {
+			crc.update((int) (l >>> (8 * i)) & 0xff);
+		}
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public long getChecksum() {
+		return checksum;
+	}
+
+	/**
+	 * The fingerprint combined with a configured version, if there is one,
+	 * so that bumping the configured version still invalidates caches.
+	 */
+	public String version(String configured) {
+		if (configured == null || configured.length() == 0) {
+			return toString();
+		}
+		return configured + "-" + toString();
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof FileFingerprint)) {
+			return false;
+		}
+		FileFingerprint ff = (FileFingerprint) o;
+		return size == ff.size && lastModified == ff.lastModified && checksum == ff.checksum;
+	}
+
+	public int hashCode() {
+		return (int) (size ^ lastModified ^ checksum);
+	}
+
+	public String toString() {
+		return String.format("%x-%x-%08x", size, lastModified, checksum);
+	}
+}
@@ -1,21 +1,66 @@
 package io;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.zip.GZIPInputStream;
 
 import utils.Collects;
 import utils.Function;
 
 public class IOTools {
+	private static final int PREFILL_CHARS = 1 << 16;
+	private static ExecutorService decompressionPool;
+	
 	private IOTools() {
 	}
 	
+	/**
+	 * Shared pool used to decompress BGZF blocks.
+	 */
+	private static synchronized ExecutorService decompressionPool() {
+		if (decompressionPool == null) {
+			decompressionPool = Executors.newFixedThreadPool(
+					Runtime.getRuntime().availableProcessors(),
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "IOTools-inflate");
+							t.setDaemon(true);
+							return t;
+						}
+					}
+			);
+		}
+		return decompressionPool;
+	}
+	
+	/**
+	 * Open a gzipped file.  BGZF files are decompressed in parallel, other
+	 * gzip files (which can't be split without inflating them) on a
+	 * read-ahead thread.
+	 */
+	public static InputStream gzipInputStream(File f)
+		throws Exception
+	{
+		InputStream is = new BufferedInputStream(new FileInputStream(f), 1 << 16);
+		if (BGZFInputStream.isBGZF(is)) {
+			return new BGZFInputStream(is, decompressionPool(), 4 * Runtime.getRuntime().availableProcessors());
+		} else {
+			return new ReadAheadInputStream(new GZIPInputStream(is, 1 << 16));
+		}
+	}
+	
 	public static BufferedReader fileBufferedReader(File f) 
 		throws Exception
 	{
@@ -26,7 +71,7 @@ public class IOTools {
 		throws Exception
 	{
 		if (f.getName().endsWith(".gz")) {
-			return new InputStreamReader(new GZIPInputStream(new FileInputStream(f)));
+			return new InputStreamReader(gzipInputStream(f));
 		} else {
 			return new FileReader(f);
 		}
@@ -50,6 +95,16 @@ public class IOTools {
 	
 	public static Reader inputReader(String[] args) 
 		throws Exception
+	{
+		return inputReader(args, 0);
+	}
+	
+	/**
+	 * As {@link #inputReader(String[])}, but with multiple inputs the next
+	 * <code>prefetch</code> files are opened and pre-filled in the background.
+	 */
+	public static Reader inputReader(String[] args, int prefetch) 
+		throws Exception
 	{
 		if (args.length == 0) {
 			return nameReader("-");
@@ -69,14 +124,78 @@ public class IOTools {
 								
 							},
 							Arrays.asList(args)
-					)
+					),
+					prefetch,
+					prefetch > 0 ? PREFILL_CHARS : 0
 			);
 		}
 	}
 	
+	/**
+	 * As {@link #inputReader(String[])}, but if <code>mergeKey</code> is
+	 * non-null the inputs are taken to be sorted by that key and are merged
+	 * rather than concatenated.
+	 * 
+	 * @see MergingReader#positionKey(int, int)
+	 */
+	public static <K extends Comparable<? super K>> Reader inputReader(String[] args, Function<String,K> mergeKey) 
+		throws Exception
+	{
+		if (mergeKey == null || args.length <= 1) {
+			return inputReader(args);
+		}
+		List<Reader> readers = new ArrayList<Reader>();
+		try {
+			for (String arg : args) {
+				readers.add(nameReader(arg));
+			}
+		} catch (Exception ex) {
+			for (Reader r : readers) {
+				r.close();
+			}
+			throw ex;
+		}
+		return MergingReader.naturalOrder(readers, mergeKey);
+	}
+	
 	public static BufferedReader inputBufferedReader(String[] args) 
 		throws Exception
 	{
 		return new BufferedReader(inputReader(args));
 	}
+	
+	/**
+	 * As {@link #inputReader(String[], int)}, buffered.
+	 */
+	public static BufferedReader inputBufferedReader(String[] args, int prefetch) 
+		throws Exception
+	{
+		return new BufferedReader(inputReader(args, prefetch));
+	}
+	
+	/**
+	 * True if every input named in <code>args</code> is an uncompressed
+	 * regular file, and can therefore be read with {@link #mappedLineReader(File)}.
+	 */
+	public static boolean isMappable(String[] args) {
+		if (args.length == 0) {
+			return false;
+		}
+		for (String arg : args) {
+			File f = new File(arg);
+			if ("-".equals(arg) || arg.endsWith(".gz") || !f.isFile()) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Byte-level line reader over a memory-mapped, uncompressed file.
+	 */
+	public static MappedLineReader mappedLineReader(File f)
+		throws Exception
+	{
+		return new MappedLineReader(f);
+	}
 }
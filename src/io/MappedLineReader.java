@@ -0,0 +1,123 @@
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads lines from an uncompressed file by memory-mapping it a window at a
+ * time and scanning for newlines eight bytes at a time.  Lines are copied
+ * into a single reusable {@link ByteLine}, so nothing is allocated per line
+ * and no character decoding is done.
+ */
+public class MappedLineReader {
+	private static final long DEFAULT_WINDOW = 1L << 28;
+	private static final long NEWLINES = 0x0a0a0a0a0a0a0a0aL;
+	private static final long LOW_BITS = 0x0101010101010101L;
+	private static final long HIGH_BITS = 0x8080808080808080L;
+	
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long size;
+	private final long window;
+	private MappedByteBuffer buffer;
+	private long windowStart = 0;
+	private int pos = 0;
+	private byte[] lineBuffer = new byte[1024];
+	private final ByteLine line = new ByteLine();
+	
+	public MappedLineReader(File f)
+		throws IOException
+	{
+		this(f, DEFAULT_WINDOW);
+	}
+	
+	public MappedLineReader(File f, long window)
+		throws IOException
+	{
+		this.file = new RandomAccessFile(f, "r");
+		this.channel = file.getChannel();
+		this.size = channel.size();
+		this.window = Math.min(window, Integer.MAX_VALUE);
+		map(0);
+	}
+	
+	private void map(long start)
+		throws IOException
+	{
+		windowStart = start;
+		pos = 0;
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(window, size - start));
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	/**
+	 * Offset of the next newline at or after <code>from</code> in the
+	 * current window, or -1.
+	 */
+	private static int findNewline(ByteBuffer b, int from) {
+		int limit = b.limit();
+		int i = from;
+		for (; i + 8 <= limit; i += 8) {
+			long x = b.getLong(i) ^ NEWLINES;
+			long t = (x - LOW_BITS) & ~x & HIGH_BITS;
+			if (t != 0) {
+				return i + (Long.numberOfTrailingZeros(t) >>> 3);
+			}
+		}
+		for (; i < limit; ++i) {
+			if (b.get(i) == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Read the next line, without its terminator, or return null at end of
+	 * file.  The returned object is reused by the next call.
+	 */
+	public ByteLine readLine()
+		throws IOException
+	{
+		if (windowStart + pos >= size) {
+			return null;
+		}
+		int nl = findNewline(buffer, pos);
+		if (nl < 0 && windowStart + buffer.limit() < size) {
+			if (pos == 0) {
+				throw new IOException("Line longer than mapping window at offset " + windowStart);
+			}
+			map(windowStart + pos);
+			nl = findNewline(buffer, 0);
+			if (nl < 0 && windowStart + buffer.limit() < size) {
+				throw new IOException("Line longer than mapping window at offset " + windowStart);
+			}
+		}
+		int end = nl < 0 ? buffer.limit() : nl;
+		int len = end - pos;
+		if (len > 0 && buffer.get(end - 1) == '\r') {
+			--len;
+		}
+		if (len > lineBuffer.length) {
+			lineBuffer = new byte[Math.max(len, 2 * lineBuffer.length)];
+		}
+		buffer.position(pos);
+		buffer.get(lineBuffer, 0, len);
+		line.set(lineBuffer, 0, len);
+		pos = nl < 0 ? buffer.limit() : nl + 1;
+		return line;
+	}
+	
+	public void close()
+		throws IOException
+	{
+		buffer = null;
+		channel.close();
+		file.close();
+	}
+}
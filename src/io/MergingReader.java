@@ -0,0 +1,248 @@
+package io;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import utils.Function;
+
+/**
+ * Merges the lines of several sorted inputs into a single sorted stream.
+ * Each input is read a line at a time through its own buffer, and the
+ * current line from each input is kept in a heap, so memory use only
+ * depends on the number of inputs.  This includes unkeyed lines: an input
+ * isn't read past one until it has been returned.
+ *
+ * <p>
+ * Lines are ordered by a key extracted from each line.  Lines for which
+ * the key function returns null (such as headers) are passed through as
+ * soon as they're reached.  Lines with equal keys come out in input order.
+ * An input which turns out not to be sorted is an error.
+ * </p>
+ */
+public class MergingReader<K> extends Reader {
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final BufferedReader[] inputs;
+	private final int[] lineNumbers;
+	private final Object[] lastKeys;
+	private final Function<String,K> keyFunction;
+	private final Comparator<? super K> comparator;
+	private final PriorityQueue<Head> heap;
+	private String current;
+	private int currentPos;
+
+	private class Head {
+		final int input;
+		final String line;
+		final K key;      // null for an unkeyed line, which is passed straight through.
+
+		Head(int input, String line, K key) {
+			this.input = input;
+			this.line = line;
+			this.key = key;
+		}
+
+		boolean passNow() {
+			return key == null;
+		}
+	}
+
+	public MergingReader(Iterable<? extends Reader> readers, Function<String,K> keyFunction, Comparator<? super K> comparator)
+		throws IOException
+	{
+		List<BufferedReader> l = new ArrayList<BufferedReader>();
+		for (Reader r : readers) {
+			l.add(r instanceof BufferedReader ? (BufferedReader) r : new BufferedReader(r, BUFFER_SIZE));
+		}
+		this.inputs = l.toArray(new BufferedReader[l.size()]);
+		this.lineNumbers = new int[inputs.length];
+		this.lastKeys = new Object[inputs.length];
+		this.keyFunction = keyFunction;
+		this.comparator = comparator;
+		this.heap = new PriorityQueue<Head>(Math.max(1, inputs.length), new Comparator<Head>() {
+			public int compare(Head a, Head b) {
+				if (a.passNow() != b.passNow()) {
+					return a.passNow() ? -1 : 1;
+				}
+				int c = a.passNow() ? 0 : MergingReader.this.comparator.compare(a.key, b.key);
+				return c != 0 ? c : a.input - b.input;
+			}
+		});
+		for (int i = 0; i < inputs.length; ++i) {
+			advance(i);
+		}
+	}
+
+	/**
+	 * Merge inputs whose keys have a natural ordering.
+	 */
+	public static <K extends Comparable<? super K>> MergingReader<K> naturalOrder(Iterable<? extends Reader> readers, Function<String,K> keyFunction)
+		throws IOException
+	{
+		return new MergingReader<K>(readers, keyFunction, new Comparator<K>() {
+			public int compare(K a, K b) {
+				return a.compareTo(b);
+			}
+		});
+	}
+
+	/**
+	 * Queue the next line from input <code>i</code>.  Unkeyed lines are
+	 * queued ahead of all keyed lines, so they come out as soon as they're
+	 * reached.
+	 */
+	private void advance(int i)
+		throws IOException
+	{
+		String line = inputs[i].readLine();
+		if (line == null) {
+			return;
+		}
+		++lineNumbers[i];
+		K key = keyFunction.apply(line);
+		if (key == null) {
+			heap.add(new Head(i, line, null));
+			return;
+		}
+		@SuppressWarnings("unchecked")
+		K last = (K) lastKeys[i];
+		if (last != null && comparator.compare(last, key) > 0) {
+			throw new IOException(String.format("Input %d is not sorted at line %d", i + 1, lineNumbers[i]));
+		}
+		lastKeys[i] = key;
+		heap.add(new Head(i, line, key));
+	}
+
+	/**
+	 * The next line of the merged stream, without a terminator, or null at
+	 * the end of all the inputs.
+	 */
+	public String readLine()
+		throws IOException
+	{
+		Head h = heap.poll();
+		if (h == null) {
+			return null;
+		}
+		// Any unkeyed line following this one comes straight after it.
+		advance(h.input);
+		return h.line;
+	}
+
+	public int read(char[] cbuf, int off, int len)
+		throws IOException
+	{
+		if (len == 0) {
+			return 0;
+		}
+		if (current == null || currentPos > current.length()) {
+			current = readLine();
+			currentPos = 0;
+			if (current == null) {
+				return -1;
+			}
+		}
+		int n = 0;
+		while (n < len) {
+			if (currentPos == current.length()) {
+				cbuf[off + n++] = '\n';
+				++currentPos;
+				break;
+			}
+			int chunk = Math.min(len - n, current.length() - currentPos);
+			current.getChars(currentPos, currentPos + chunk, cbuf, off + n);
+			currentPos += chunk;
+			n += chunk;
+		}
+		return n;
+	}
+
+	public void close()
+		throws IOException
+	{
+		IOException first = null;
+		for (BufferedReader r : inputs) {
+			try {
+				r.close();
+			} catch (IOException ex) {
+				if (first == null) {
+					first = ex;
+				}
+			}
+		}
+		heap.clear();
+		if (first != null) {
+			throw first;
+		}
+	}
+
+	/**
+	 * Key for lines of tab-separated genomic records, ordered by sequence name
+	 * then start.
+	 */
+	public static class Position implements Comparable<Position> {
+		public final String chr;
+		public final long start;
+
+		public Position(String chr, long start) {
+			this.chr = chr;
+			this.start = start;
+		}
+
+		public int compareTo(Position o) {
+			int c = chr.compareTo(o.chr);
+			if (c != 0) {
+				return c;
+			}
+			return start < o.start ? -1 : (start > o.start ? 1 : 0);
+		}
+
+		public String toString() {
+			return chr + ":" + start;
+		}
+	}
+
+	/**
+	 * Key function taking the sequence name and start from the given
+	 * (zero-based) tab-separated columns.  Lines starting with '#',
+	 * <code>track</code> or <code>browser</code>, and lines with too few
+	 * columns, are unkeyed.  For BED this is <code>positionKey(0, 1)</code>,
+	 * for GFF <code>positionKey(0, 3)</code>.
+	 */
+	public static Function<String,Position> positionKey(final int chrColumn, final int startColumn) {
+		return new Function<String,Position>() {
+			public Position apply(String line) {
+				if (line.length() == 0 || line.charAt(0) == '#' || line.startsWith("track") || line.startsWith("browser")) {
+					return null;
+				}
+				String chr = column(line, chrColumn);
+				String start = column(line, startColumn);
+				if (chr == null || start == null) {
+					return null;
+				}
+				try {
+					return new Position(chr, Long.parseLong(start));
+				} catch (NumberFormatException ex) {
+					return null;
+				}
+			}
+		};
+	}
+
+	private static String column(String line, int col) {
+		int start = 0;
+		for (int c = 0; c < col; ++c) {
+			start = line.indexOf('\t', start) + 1;
+			if (start == 0) {
+				return null;
+			}
+		}
+		int end = line.indexOf('\t', start);
+		return line.substring(start, end < 0 ? line.length() : end);
+	}
+}
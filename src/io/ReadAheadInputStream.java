@@ -0,0 +1,162 @@
+package io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads an underlying stream on a background thread, so that (for
+ * instance) decompression overlaps with whatever the consumer does with the
+ * data.  Memory use is bounded by a fixed set of recycled buffers.
+ */
+public class ReadAheadInputStream extends InputStream {
+	private static class Chunk {
+		final byte[] data;
+		int length;
+		
+		Chunk(int size) {
+			data = new byte[size];
+		}
+	}
+	
+	private final BlockingQueue<Chunk> free;
+	private final BlockingQueue<Chunk> full;
+	private final Thread reader;
+	private volatile boolean closed = false;
+	private volatile IOException error;
+	private Chunk current;
+	private int pos;
+	private boolean eof = false;
+	
+	public ReadAheadInputStream(InputStream in) {
+		this(in, 1 << 16, 8);
+	}
+	
+	public ReadAheadInputStream(final InputStream in, int bufferSize, int buffers) {
+		free = new ArrayBlockingQueue<Chunk>(buffers);
+		full = new ArrayBlockingQueue<Chunk>(buffers + 1);
+		for (int i = 0; i < buffers; ++i) {
+			free.add(new Chunk(bufferSize));
+		}
+		
+		reader = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (!closed) {
+						Chunk c = free.take();
+						int n = 0;
+						while (n < c.data.length) {
+							int r = in.read(c.data, n, c.data.length - n);
+							if (r < 0) {
+								break;
+							}
+							n += r;
+						}
+						c.length = n;
+						full.put(c);
+						if (n < c.data.length) {
+							break;
+						}
+					}
+				} catch (IOException ex) {
+					error = ex;
+				} catch (InterruptedException ex) {
+					// Closed.
+				} finally {
+					try {
+						in.close();
+					} catch (IOException ex) {
+						if (error == null) {
+							error = ex;
+						}
+					}
+					// Make sure the consumer wakes up.
+					Chunk end = new Chunk(0);
+					end.length = -1;
+					full.offer(end);
+				}
+			}
+		}, "ReadAheadInputStream");
+		reader.setDaemon(true);
+		reader.start();
+	}
+	
+	/**
+	 * Make sure there's something in <code>current</code>, returning false
+	 * at end of input.
+	 */
+	private boolean advance()
+		throws IOException
+	{
+		while (current == null || pos >= current.length) {
+			if (eof) {
+				return false;
+			}
+			if (current != null) {
+				free.offer(current);
+				current = null;
+			}
+			Chunk c;
+			try {
+				c = full.take();
+			} catch (InterruptedException ex) {
+				IOException e2 = new IOException("Interrupted");
+				e2.initCause(ex);
+				throw e2;
+			}
+			if (c.length < 0 || c.length < c.data.length) {
+				eof = true;
+			}
+			if (c.length > 0) {
+				current = c;
+				pos = 0;
+			}
+		}
+		return true;
+	}
+	
+	private boolean more()
+		throws IOException
+	{
+		boolean more = advance();
+		if (!more && error != null) {
+			throw error;
+		}
+		return more;
+	}
+
+	@Override
+	public int read()
+		throws IOException
+	{
+		if (!more()) {
+			return -1;
+		}
+		return current.data[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len)
+		throws IOException
+	{
+		if (len == 0) {
+			return 0;
+		}
+		if (!more()) {
+			return -1;
+		}
+		int n = Math.min(len, current.length - pos);
+		System.arraycopy(current.data, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public void close()
+		throws IOException
+	{
+		closed = true;
+		reader.interrupt();
+	}
+}
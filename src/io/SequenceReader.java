@@ -2,16 +2,41 @@ package io;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class SequenceReader extends Reader {
 
 	private final Iterator<? extends Reader> streams;
 	private Reader currentStream;
 	
+	// Prefetch mode: the next few streams are opened (and their first
+	// prefillChars read) on a background thread.
+	private final int prefetch;
+	private final int prefillChars;
+	private ExecutorService opener;
+	private final LinkedList<Future<Reader>> opened = new LinkedList<Future<Reader>>();
+	// Streams opened in the background but not yet taken by the reader;
+	// guards closed as well.
+	private final Set<Reader> unclaimed = new HashSet<Reader>();
+	private boolean closed = false;
+	
 	private boolean hasNextStream()
 		throws IOException
 	{
+		if (prefetch > 0) {
+			return !opened.isEmpty();
+		}
 		try {
 			return streams.hasNext();
 		} catch (Exception ex) {
@@ -24,6 +49,9 @@ public class SequenceReader extends Reader {
 	private Reader nextStream()
 		throws IOException
 	{
+		if (prefetch > 0) {
+			return nextPrefetchedStream();
+		}
 		try {
 			return streams.next();
 		} catch (Exception ex) {
@@ -35,42 +63,194 @@ public class SequenceReader extends Reader {
 	
 	public SequenceReader(Iterable<? extends Reader> streamSource) 
 		throws IOException
+	{
+		this(streamSource, 0, 0);
+	}
+	
+	/**
+	 * Create a reader which keeps up to <code>prefetch</code> of the
+	 * following streams open in the background, each with up to
+	 * <code>prefillChars</code> characters already read.
+	 */
+	public SequenceReader(Iterable<? extends Reader> streamSource, int prefetch, int prefillChars) 
+		throws IOException
 	{
 		super();
 		streams = streamSource.iterator();
+		this.prefetch = prefetch;
+		this.prefillChars = prefillChars;
+		if (prefetch > 0) {
+			opener = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "SequenceReader-prefetch");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			for (int i = 0; i < prefetch; ++i) {
+				scheduleOpen();
+			}
+		}
 		currentStream = nextStream();
 	}
 	
+	/**
+	 * Queue opening of the next stream.  Tasks run in order on a single
+	 * thread, so streams come back in iteration order.
+	 */
+	private void scheduleOpen() {
+		opened.add(opener.submit(new Callable<Reader>() {
+			public Reader call() throws Exception {
+				synchronized (unclaimed) {
+					if (closed) {
+						return null;
+					}
+				}
+				if (!streams.hasNext()) {
+					return null;
+				}
+				Reader r = streams.next();
+				if (prefillChars > 0) {
+					r = new PrefilledReader(r, prefillChars);
+				}
+				synchronized (unclaimed) {
+					if (!closed) {
+						unclaimed.add(r);
+						return r;
+					}
+				}
+				// Closed while this was opening, so nobody else will close it.
+				r.close();
+				return null;
+			}
+		}));
+	}
+	
+	private Reader nextPrefetchedStream()
+		throws IOException
+	{
+		Future<Reader> f = opened.removeFirst();
+		Reader r;
+		try {
+			r = f.get();
+		} catch (ExecutionException ex) {
+			IOException e2 = new IOException("Couldn't open next stream");
+			e2.initCause(ex.getCause());
+			throw e2;
+		} catch (InterruptedException ex) {
+			IOException e2 = new IOException("Interrupted opening next stream");
+			e2.initCause(ex);
+			throw e2;
+		}
+		synchronized (unclaimed) {
+			unclaimed.remove(r);
+		}
+		if (r == null) {
+			// Source exhausted; nothing else queued can produce a stream.
+			opened.clear();
+			opener.shutdown();
+		} else {
+			scheduleOpen();
+		}
+		return r;
+	}
+	
 	@Override
 	public void close() throws IOException {
-		currentStream.close();
-		
-		/* Should we do this?
-		
-		while (streams.hasNext()) {
-			streams.next().close();
+		if (currentStream != null) {
+			currentStream.close();
 		}
-		
-		*/
 		currentStream = null;
+		
+		// Streams which haven't been opened yet are left alone, but any that
+		// were opened in the background have to be closed.  This doesn't
+		// wait for an open in progress: that task closes its own stream
+		// once it sees the reader has been closed.
+		if (opener != null) {
+			List<Reader> toClose;
+			synchronized (unclaimed) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				toClose = new ArrayList<Reader>(unclaimed);
+				unclaimed.clear();
+			}
+			for (Future<Reader> f : opened) {
+				f.cancel(false);
+			}
+			opened.clear();
+			opener.shutdown();
+			IOException first = null;
+			for (Reader r : toClose) {
+				try {
+					r.close();
+				} catch (IOException ex) {
+					if (first == null) {
+						first = ex;
+					}
+				}
+			}
+			if (first != null) {
+				throw first;
+			}
+		}
 	}
 
 	@Override
 	public int read(char[] cbuf, int off, int len) throws IOException {
-		if (currentStream == null) {
-			return -1;
-		}
-		int read = currentStream.read(cbuf, off, len);
-		if (read < 0) {
+		while (currentStream != null) {
+			int read = currentStream.read(cbuf, off, len);
+			if (read >= 0) {
+				return read;
+			}
 			currentStream.close();
 			if (hasNextStream()) {
 				currentStream = nextStream();
-				return read(cbuf, off, len);
 			} else {
 				currentStream = null;
 			}
 		}
-		return read;
+		return -1;
 	}
 
+	/**
+	 * Reader with some of its input already read into a buffer.
+	 */
+	private static class PrefilledReader extends Reader {
+		private final Reader r;
+		private final char[] prefix;
+		private int pos = 0;
+		private int len = 0;
+		
+		PrefilledReader(Reader r, int size)
+			throws IOException
+		{
+			this.r = r;
+			this.prefix = new char[size];
+			while (len < size) {
+				int n = r.read(prefix, len, size - len);
+				if (n < 0) {
+					break;
+				}
+				len += n;
+			}
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int l) throws IOException {
+			if (pos < len) {
+				int n = Math.min(l, len - pos);
+				System.arraycopy(prefix, pos, cbuf, off, n);
+				pos += n;
+				return n;
+			}
+			return r.read(cbuf, off, l);
+		}
+
+		@Override
+		public void close() throws IOException {
+			r.close();
+		}
+	}
 }
@@ -1,8 +1,19 @@
 package utils;
 
+import io.ByteLine;
 import io.IOTools;
+import io.MappedLineReader;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public abstract class AbstractLineProcessor {
 	private String tokenizationExpression = "\\t";
@@ -10,7 +21,42 @@ public abstract class AbstractLineProcessor {
 	private char commentChar = '#';
 	private boolean commentsAnywhere = false;
 	private boolean ignoreEmptyLines = true;
+	private boolean mappedInput = false;
+	private int prefetch = 0;
 	private int count = 0;
+	private int delimiter = LineFields.delimiterOf(tokenizationExpression);
+	private final boolean customTokenize = overrides("tokenize", String.class);
+	private final boolean customProcessLine = overrides("processLine", String.class);
+	private int threads = 1;
+	private int batchSize = 1024;
+	private boolean ordered = true;
+	private final LineState serialState = new LineState();
+	private final ThreadLocal<LineState> workerState = new ThreadLocal<LineState>() {
+		protected LineState initialValue() {
+			return new LineState();
+		}
+	};
+	
+	// Statistics.  Counts are kept locally and added to stats every
+	// CHECK_INTERVAL lines; one line in SAMPLE_INTERVAL is timed.
+	private static final int CHECK_INTERVAL = 4096;
+	private static final int SAMPLE_INTERVAL = 16;
+	private LineStats stats = new LineStats();
+	private StatsReporter reporter;
+	private long reportInterval = 10000;
+	private long lastReport;
+	private long unflushedLines, unflushedBytes, unflushedComments, unflushedSkipped;
+	
+	/**
+	 * True if the concrete class overrides the named method.
+	 */
+	private boolean overrides(String name, Class<?>... params) {
+		try {
+			return getClass().getMethod(name, params).getDeclaringClass() != AbstractLineProcessor.class;
+		} catch (NoSuchMethodException ex) {
+			return false;
+		}
+	}
 	
 	public void setProcessComments(boolean b) {
 		this.processComments = b;
@@ -28,9 +74,54 @@ public abstract class AbstractLineProcessor {
 		this.ignoreEmptyLines = b;
 	}
 	
+	/**
+	 * If set, uncompressed input files are memory-mapped and lines are passed
+	 * to {@link #processLine(ByteLine)} without being decoded.  Standard input
+	 * and gzipped files are always read as text.
+	 */
+	public void setMappedInput(boolean b) {
+		this.mappedInput = b;
+	}
+	
+	/**
+	 * When reading several files as text, open and pre-fill the next
+	 * <code>n</code> of them in the background (see
+	 * {@link IOTools#inputReader(String[], int)}).  Zero, the default,
+	 * opens each file when the previous one is finished.
+	 */
+	public void setPrefetch(int n) {
+		this.prefetch = Math.max(0, n);
+	}
+	
+	
+	/**
+	 * Process lines on <code>n</code> worker threads.  When <code>n</code> is
+	 * greater than one, lines go to {@link #transformLine(String)} on the
+	 * workers and the results to {@link #collect(Object)}, instead of to
+	 * {@link #processLine(String)}.
+	 */
+	public void setThreads(int n) {
+		this.threads = Math.max(1, n);
+	}
+	
+	/**
+	 * Number of lines handed to a worker at a time in parallel mode.
+	 */
+	public void setBatchSize(int n) {
+		this.batchSize = Math.max(1, n);
+	}
+	
+	/**
+	 * In parallel mode, whether {@link #collect(Object)} sees results in input
+	 * order (the default) or as soon as each batch is finished.
+	 */
+	public void setOrdered(boolean b) {
+		this.ordered = b;
+	}
 	
 	public void setTokenizationExpression(String s) {
 		this.tokenizationExpression = s;
+		this.delimiter = LineFields.delimiterOf(s);
 	}
 	
 	public String getTokenizationExpression() {
@@ -41,28 +132,382 @@ public abstract class AbstractLineProcessor {
 		return count;
 	}
 	
+	/**
+	 * Counters and timings for the current (or last) run of {@link #main(String[])}.
+	 */
+	public LineStats getStats() {
+		return stats;
+	}
+	
+	/**
+	 * Send progress to <code>r</code> while running.  See {@link StatsReporters}
+	 * for some standard reporters.
+	 */
+	public void setStatsReporter(StatsReporter r) {
+		this.reporter = r;
+	}
+	
+	/**
+	 * Minimum time between progress reports, in milliseconds.
+	 */
+	public void setReportInterval(long millis) {
+		this.reportInterval = millis;
+	}
+	
 	public void main(String[] args)
 		throws Exception
 	{
-		pre();
-		BufferedReader br = IOTools.inputBufferedReader(args);
-		for (String line = br.readLine(); line != null; line = br.readLine()) {
+		if (threads > 1 && !overrides("transformLine", String.class) && !overrides("transformFields", LineFields.class)) {
+			throw new IllegalStateException(getClass().getName() + " can't run on " + threads
+					+ " threads: parallel mode needs transformLine or transformFields to be overridden");
+		}
+		stats = new LineStats();
+		stats.start();
+		lastReport = System.currentTimeMillis();
+		// The final report is made even if the job fails, so that reporters
+		// holding resources (such as a registered MBean) can release them.
+		try {
+			long t = System.nanoTime();
+			pre();
+			stats.addNanos(LineStats.Phase.PRE, System.nanoTime() - t);
+			
+			LineInput in = new LineInput(args);
 			try {
-				++count;
-				if (processComments) {
-					line = stripComments(line);
-					if (ignoreEmptyLines && line.length() == 0) {
-						continue;
-					}
-				} 
-				processLine(line);
+				if (threads > 1) {
+					runParallel(in);
+				} else {
+					runSerial(in);
+				}
+			} finally {
+				in.close();
+				flushStats();
+			}
+			
+			t = System.nanoTime();
+			post();
+			stats.addNanos(LineStats.Phase.POST, System.nanoTime() - t);
+		} finally {
+			stats.finish();
+			if (reporter != null) {
+				reporter.report(stats, true);
+			}
+		}
+	}
+	
+	/**
+	 * Read the next line, timing the read if the line is to be sampled.
+	 */
+	private CharSequence nextLine(LineInput in, boolean sample)
+		throws Exception
+	{
+		if (!sample) {
+			return in.next();
+		}
+		long t = System.nanoTime();
+		CharSequence cs = in.next();
+		stats.addNanos(LineStats.Phase.READ, (System.nanoTime() - t) * SAMPLE_INTERVAL);
+		return cs;
+	}
+	
+	/**
+	 * Count a line which has just been read and strip its comments.
+	 * 
+	 * @return the line to process, or null if it should be skipped.
+	 */
+	private CharSequence prepare(CharSequence cs)
+		throws Exception
+	{
+		++count;
+		++unflushedLines;
+		unflushedBytes += cs.length() + 1;
+		if ((count & (CHECK_INTERVAL - 1)) == 0) {
+			flushStats();
+			if (reporter != null && System.currentTimeMillis() - lastReport >= reportInterval) {
+				lastReport = System.currentTimeMillis();
+				reporter.report(stats, false);
+			}
+		}
+		
+		if (processComments) {
+			int len = cs.length();
+			if (cs instanceof ByteLine) {
+				stripComments((ByteLine) cs);
+			} else {
+				cs = stripComments((String) cs);
+			}
+			if (cs.length() != len) {
+				++unflushedComments;
+			}
+			if (ignoreEmptyLines && cs.length() == 0) {
+				++unflushedSkipped;
+				return null;
+			}
+		}
+		return cs;
+	}
+	
+	private void flushStats() {
+		stats.addCounts(unflushedLines, unflushedBytes, unflushedComments, unflushedSkipped);
+		unflushedLines = unflushedBytes = unflushedComments = unflushedSkipped = 0;
+	}
+	
+	private void runSerial(LineInput in)
+		throws Exception
+	{
+		while (true) {
+			boolean sample = (count & (SAMPLE_INTERVAL - 1)) == 0;
+			CharSequence cs = nextLine(in, sample);
+			if (cs == null) {
+				break;
+			}
+			try {
+				cs = prepare(cs);
+				if (cs == null) {
+					continue;
+				}
+				long t = 0;
+				if (sample) {
+					serialState.sampling = true;
+					serialState.tokenizeNanos = 0;
+					t = System.nanoTime();
+				}
+				if (cs instanceof ByteLine) {
+					processLine((ByteLine) cs);
+				} else {
+					processLine((String) cs);
+				}
+				if (sample) {
+					serialState.sampling = false;
+					stats.addNanos(LineStats.Phase.TOKENIZE, serialState.tokenizeNanos * SAMPLE_INTERVAL);
+					stats.addNanos(LineStats.Phase.PROCESS, (System.nanoTime() - t - serialState.tokenizeNanos) * SAMPLE_INTERVAL);
+				}
 			} catch (Exception e) {
-				Exception e2 = new Exception("Error processing line " + count);
-				e2.initCause(e);
-				throw e2;
+				serialState.sampling = false;
+				throw lineError(count, e);
+			}
+		}
+	}
+	
+	private static Exception lineError(int line, Throwable cause) {
+		Exception e2 = new Exception("Error processing line " + line);
+		e2.initCause(cause);
+		return e2;
+	}
+	
+	/**
+	 * Lines are read and comment-stripped on the calling thread and handed to
+	 * the workers in batches.  Results come back to this thread for
+	 * {@link #collect(Object)}.
+	 */
+	private void runParallel(LineInput in)
+		throws Exception
+	{
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		CompletionService<Batch> completion = new ExecutorCompletionService<Batch>(workers);
+		LinkedList<Future<Batch>> pending = new LinkedList<Future<Batch>>();
+		try {
+			Batch batch = new Batch(batchSize);
+			while (true) {
+				CharSequence cs = nextLine(in, (count & (SAMPLE_INTERVAL - 1)) == 0);
+				if (cs == null) {
+					break;
+				}
+				try {
+					cs = prepare(cs);
+				} catch (Exception e) {
+					throw lineError(count, e);
+				}
+				if (cs == null) {
+					continue;
+				}
+				batch.add(count, cs.toString());
+				if (batch.size == batchSize) {
+					pending.add(ordered ? workers.submit(batch) : completion.submit(batch));
+					batch = new Batch(batchSize);
+					while (pending.size() > 2 * threads) {
+						collectNext(completion, pending);
+					}
+				}
+			}
+			if (batch.size > 0) {
+				pending.add(ordered ? workers.submit(batch) : completion.submit(batch));
+			}
+			while (pending.size() > 0) {
+				collectNext(completion, pending);
+			}
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+	
+	private void collectNext(CompletionService<Batch> completion, LinkedList<Future<Batch>> pending)
+		throws Exception
+	{
+		Future<Batch> f;
+		if (ordered) {
+			f = pending.removeFirst();
+		} else {
+			f = completion.take();
+			pending.remove(f);
+		}
+		Batch done;
+		try {
+			done = f.get();
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof Exception) {
+				throw (Exception) ex.getCause();
+			}
+			throw ex;
+		}
+		long t = System.nanoTime();
+		for (int i = 0; i < done.size; ++i) {
+			if (done.results[i] != null) {
+				try {
+					collect(done.results[i]);
+				} catch (Exception e) {
+					throw lineError(done.lineNumbers[i], e);
+				}
+			}
+		}
+		stats.addNanos(LineStats.Phase.PROCESS, System.nanoTime() - t);
+	}
+	
+	private class Batch implements Callable<Batch> {
+		final int[] lineNumbers;
+		final String[] lines;
+		final Object[] results;
+		int size = 0;
+		
+		Batch(int capacity) {
+			lineNumbers = new int[capacity];
+			lines = new String[capacity];
+			results = new Object[capacity];
+		}
+		
+		void add(int lineNumber, String line) {
+			lineNumbers[size] = lineNumber;
+			lines[size] = line;
+			++size;
+		}
+		
+		public Batch call()
+			throws Exception
+		{
+			LineState state = workerState.get();
+			long tokenize = 0, process = 0;
+			for (int i = 0; i < size; ++i) {
+				boolean sample = (lineNumbers[i] & (SAMPLE_INTERVAL - 1)) == 0;
+				long t = 0;
+				if (sample) {
+					state.sampling = true;
+					state.tokenizeNanos = 0;
+					t = System.nanoTime();
+				}
+				try {
+					results[i] = transformLine(lines[i]);
+				} catch (Exception e) {
+					state.sampling = false;
+					throw lineError(lineNumbers[i], e);
+				}
+				if (sample) {
+					state.sampling = false;
+					tokenize += state.tokenizeNanos;
+					process += System.nanoTime() - t - state.tokenizeNanos;
+				}
+				lines[i] = null;
 			}
+			stats.addNanos(LineStats.Phase.TOKENIZE, tokenize * SAMPLE_INTERVAL);
+			stats.addNanos(LineStats.Phase.PROCESS, process * SAMPLE_INTERVAL);
+			return this;
+		}
+	}
+	
+	/**
+	 * Per-thread tokenization state.
+	 */
+	private static class LineState {
+		final LineFields fields = new LineFields();
+		boolean sampling = false;
+		long tokenizeNanos;
+	}
+	
+	/**
+	 * Split a line into <code>state.fields</code>, timing it if the line is
+	 * being sampled.
+	 */
+	private void split(CharSequence line, LineState state)
+		throws Exception
+	{
+		long t = state.sampling ? System.nanoTime() : 0;
+		if (delimiter >= 0 && !customTokenize) {
+			state.fields.split(line, (char) delimiter);
+		} else {
+			state.fields.setTokens(tokenize(line.toString()));
+		}
+		if (state.sampling) {
+			state.tokenizeNanos = System.nanoTime() - t;
+		}
+	}
+	
+	/**
+	 * Lines from either mapped files or a text reader.
+	 */
+	private class LineInput {
+		private final String[] files;
+		private int file = 0;
+		private MappedLineReader mapped;
+		private BufferedReader reader;
+		
+		LineInput(String[] args)
+			throws Exception
+		{
+			if (mappedInput && IOTools.isMappable(args)) {
+				files = args;
+			} else {
+				files = null;
+				reader = IOTools.inputBufferedReader(args, prefetch);
+			}
+		}
+		
+		CharSequence next()
+			throws Exception
+		{
+			if (files == null) {
+				return reader.readLine();
+			}
+			while (true) {
+				if (mapped == null) {
+					if (file == files.length) {
+						return null;
+					}
+					mapped = IOTools.mappedLineReader(new File(files[file++]));
+				}
+				ByteLine line = mapped.readLine();
+				if (line != null) {
+					return line;
+				}
+				mapped.close();
+				mapped = null;
+			}
+		}
+		
+		void close()
+			throws Exception
+		{
+			if (mapped != null) {
+				mapped.close();
+			}
+		}
+	}
+	
+	/**
+	 * In-place equivalent of {@link #stripComments(String)}.
+	 */
+	public void stripComments(ByteLine line) {
+		int i = line.indexOf((byte) commentChar);
+		if (i == 0 || (commentsAnywhere && i > 0)) {
+			line.truncate(i);
 		}
-		post();
 	}
 	
 	public String stripComments(String s)
@@ -78,13 +523,75 @@ public abstract class AbstractLineProcessor {
 		}
 	}
 	
+	/**
+	 * Split a line and pass it to {@link #processFields(LineFields)}.  If the
+	 * tokenization expression is a single character, and {@link #tokenize(String)}
+	 * hasn't been overridden, the line is split in place without using a regex.
+	 */
 	public void processLine(String line) throws Exception  {
-		processTokens(tokenize(line));
+		split(line, serialState);
+		processFields(serialState.fields);
+	}
+	
+	/**
+	 * Called for each line when reading mapped input.  The line is only valid
+	 * until this method returns.  Subclasses which override
+	 * {@link #processLine(String)} get the line decoded to a string.
+	 */
+	public void processLine(ByteLine line) throws Exception {
+		if (customProcessLine || customTokenize || delimiter < 0) {
+			processLine(line.toString());
+		} else {
+			split(line, serialState);
+			processFields(serialState.fields);
+		}
+	}
+	
+	/**
+	 * Handle the fields of one line.  The {@link LineFields} object is reused,
+	 * so is only valid until this method returns.  The default implementation
+	 * converts the fields to strings and calls {@link #processTokens(String[])}.
+	 */
+	public void processFields(LineFields fields) throws Exception {
+		processTokens(fields.toArray());
 	}
 	
 	public void processTokens(String[] toks) throws Exception {
 	}
 	
+	/**
+	 * In parallel mode, called on a worker thread for each line.  Must be
+	 * thread-safe.  The default splits the line as {@link #processLine(String)}
+	 * does and calls {@link #transformFields(LineFields)}.
+	 * 
+	 * @return a result to pass to {@link #collect(Object)}, or null for none.
+	 */
+	public Object transformLine(String line) throws Exception {
+		LineState state = workerState.get();
+		split(line, state);
+		return transformFields(state.fields);
+	}
+	
+	/**
+	 * In parallel mode, called on a worker thread with the fields of each line.
+	 * Must be thread-safe.  Subclasses using parallel mode must override this
+	 * or {@link #transformLine(String)}; {@link #main(String[])} refuses to
+	 * start otherwise.
+	 * 
+	 * @return a result to pass to {@link #collect(Object)}, or null for none.
+	 */
+	public Object transformFields(LineFields fields) throws Exception {
+		return null;
+	}
+	
+	/**
+	 * In parallel mode, receives the non-null results of {@link #transformLine(String)}.
+	 * Always called from the thread running {@link #main(String[])}, before
+	 * {@link #post()}.
+	 */
+	public void collect(Object result) throws Exception {
+	}
+	
 	public String[] tokenize(String line) throws Exception {
 		return line.split(getTokenizationExpression());
 	}
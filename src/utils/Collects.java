@@ -7,6 +7,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 public class Collects {
@@ -50,6 +51,10 @@ public class Collects {
 		}
 	}
 	
+	/**
+	 * Lazily mapped view of <code>list</code>: the mapper is applied on every
+	 * <code>get</code>.  Use {@link Pipeline} to evaluate each element once.
+	 */
 	public static <I,O> List<O> map(final Function<I,O> mapper, final List<I> list) {
 		return new AbstractList<O>() {
 			@Override
@@ -243,4 +248,92 @@ public class Collects {
 		}
 		return tot/l.size();
 	}
+	
+	// Primitive counterparts of the above, which don't box.
+	
+	public static double mean(double[] a) {
+		double tot = 0;
+		for (double d : a) {
+			tot += d;
+		}
+		return tot/a.length;
+	}
+	
+	public static double mean(int[] a) {
+		long tot = 0;
+		for (int i : a) {
+			tot += i;
+		}
+		return (1.0 * tot)/a.length;
+	}
+	
+	public static double mean(DoubleList l) {
+		double tot = 0;
+		for (int i = 0; i < l.size(); ++i) {
+			tot += l.get(i);
+		}
+		return tot/l.size();
+	}
+	
+	public static void pushOntoMap(IntListMultimap m, int k, int v) {
+		m.put(k, v);
+	}
+	
+	public static IntList map(IntFunction mapper, IntList list) {
+		IntList output = new IntList(list.size());
+		for (int i = 0; i < list.size(); ++i) {
+			output.add(mapper.apply(list.get(i)));
+		}
+		return output;
+	}
+	
+	public static DoubleList map(DoubleFunction mapper, DoubleList list) {
+		DoubleList output = new DoubleList(list.size());
+		for (int i = 0; i < list.size(); ++i) {
+			output.add(mapper.apply(list.get(i)));
+		}
+		return output;
+	}
+	
+	public static IntList retainIf(IntPredicate test, IntList list) {
+		IntList output = new IntList();
+		for (int i = 0; i < list.size(); ++i) {
+			if (test.apply(list.get(i))) {
+				output.add(list.get(i));
+			}
+		}
+		return output;
+	}
+	
+	public static DoubleList retainIf(DoublePredicate test, DoubleList list) {
+		DoubleList output = new DoubleList();
+		for (int i = 0; i < list.size(); ++i) {
+			if (test.apply(list.get(i))) {
+				output.add(list.get(i));
+			}
+		}
+		return output;
+	}
+	
+	public static int reduce(IntList input, IntFunction2 f) {
+		if (input.isEmpty()) {
+			throw new NoSuchElementException();
+		}
+		int cum = input.get(0);
+		for (int i = 1; i < input.size(); ++i) {
+			cum = f.apply(cum, input.get(i));
+		}
+		return cum;
+	}
+	
+	public static double reduce(DoubleList input, DoubleFunction2 f) {
+		if (input.isEmpty()) {
+			throw new NoSuchElementException();
+		}
+		double cum = input.get(0);
+		for (int i = 1; i < input.size(); ++i) {
+			cum = f.apply(cum, input.get(i));
+		}
+		return cum;
+	}
 }
@@ -0,0 +1,268 @@
+package utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+/**
+ * Limits how many threads can be working inside something (such as a
+ * datasource) at once.  Threads over the limit wait their turn in a
+ * bounded queue; if the queue is full, or a thread waits longer than
+ * allowed, it's either turned away with a
+ * <code>RejectedExecutionException</code> or, with {@link Overload#RUN},
+ * let in anyway and counted.  Either way a single slow resource can only
+ * hold on to a few threads, rather than every thread in the container.
+ *
+ * <p>
+ * Usage is
+ * </p>
+ * <pre>
+ * boolean held = limiter.acquire();
+ * try {
+ *     ...
+ * } finally {
+ *     limiter.release(held);
+ * }
+ * </pre>
+ */
+public class ConcurrencyLimiter implements ConcurrencyLimiterMBean {
+	public enum Overload {
+		/**
+		 * Throw <code>RejectedExecutionException</code>.
+		 */
+		REJECT,
+		
+		/**
+		 * Go ahead without a permit.
+		 */
+		RUN
+	}
+	
+	private final String name;
+	private final int maxConcurrent;
+	private final int maxQueued;
+	private final long maxWaitNanos;
+	private final Overload overload;
+	private final Semaphore permits;
+	
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong timedOut = new AtomicLong();
+	private final AtomicLong overloaded = new AtomicLong();
+	private final AtomicLong queueNanos = new AtomicLong();
+	private final AtomicLong maxQueueNanos = new AtomicLong();
+	private ObjectName objectName;
+	
+	// Set on threads doing background work (such as a warm-up) which
+	// shouldn't compete with requests for permits.
+	private static final ThreadLocal<Boolean> exempt = new ThreadLocal<Boolean>();
+	
+	/**
+	 * @param maxConcurrent threads allowed in at once, or zero or less for no limit.
+	 * @param maxQueued threads allowed to wait for a permit.
+	 * @param maxWaitMillis how long a thread may wait, or zero or less to wait indefinitely.
+	 */
+	public ConcurrencyLimiter(String name, int maxConcurrent, int maxQueued, long maxWaitMillis, Overload overload) {
+		this.name = name;
+		this.maxConcurrent = maxConcurrent;
+		this.maxQueued = maxQueued;
+		this.maxWaitNanos = maxWaitMillis * 1000000L;
+		this.overload = overload;
+		// Fair, so that waiting threads go in the order they arrived.
+		this.permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent, true) : null;
+	}
+	
+	/**
+	 * Wait for a permit.
+	 *
+	 * @return true if a permit is held, false if the thread was let in
+	 *         without one under {@link Overload#RUN}.  Pass this to
+	 *         {@link #release(boolean)}.
+	 * @throws RejectedExecutionException if the thread is turned away.
+	 */
+	public boolean acquire()
+		throws RejectedExecutionException
+	{
+		if (exempt.get() != null) {
+			active.incrementAndGet();
+			return false;
+		}
+		if (permits == null) {
+			admitted.incrementAndGet();
+			active.incrementAndGet();
+			return false;
+		}
+		
+		long start = System.nanoTime();
+		boolean held = false;
+		try {
+			// Unlike tryAcquire(), this doesn't jump the queue.
+			held = permits.tryAcquire(0, TimeUnit.NANOSECONDS);
+			if (!held) {
+				if (queued.incrementAndGet() > maxQueued) {
+					queued.decrementAndGet();
+					return overloaded("queue full");
+				}
+				try {
+					if (maxWaitNanos > 0) {
+						held = permits.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS);
+					} else {
+						permits.acquire();
+						held = true;
+					}
+				} finally {
+					queued.decrementAndGet();
+				}
+				if (!held) {
+					timedOut.incrementAndGet();
+					return overloaded("timed out waiting");
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("Interrupted waiting for " + name);
+		} finally {
+			long waited = System.nanoTime() - start;
+			queueNanos.addAndGet(waited);
+			for (long max = maxQueueNanos.get(); waited > max; max = maxQueueNanos.get()) {
+				if (maxQueueNanos.compareAndSet(max, waited)) {
+					break;
+				}
+			}
+		}
+		admitted.incrementAndGet();
+		active.incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Run <code>task</code> with every limiter letting the current thread
+	 * straight in, without a permit and without counting it as admitted.
+	 * This is for background work like {@link WarmUp}, which mustn't be
+	 * turned away or take permits from requests.
+	 */
+	public static <T> T callExempt(Callable<T> task)
+		throws Exception
+	{
+		Boolean was = exempt.get();
+		exempt.set(Boolean.TRUE);
+		try {
+			return task.call();
+		} finally {
+			if (was == null) {
+				exempt.remove();
+			}
+		}
+	}
+	
+	private boolean overloaded(String why) {
+		if (overload == Overload.RUN) {
+			overloaded.incrementAndGet();
+			active.incrementAndGet();
+			return false;
+		}
+		rejected.incrementAndGet();
+		throw new RejectedExecutionException(name + " is busy (" + why + ")");
+	}
+	
+	/**
+	 * Give back what {@link #acquire()} got.
+	 */
+	public void release(boolean held) {
+		active.decrementAndGet();
+		if (held) {
+			permits.release();
+		}
+	}
+	
+	/**
+	 * Expose the counters as an MBean named
+	 * <code>utils:type=ConcurrencyLimiter,name=<i>name</i></code>.
+	 * Failure is reported on stderr, since the limiter works regardless.
+	 */
+	public synchronized void register() {
+		try {
+			objectName = ObjectName.getInstance("utils:type=ConcurrencyLimiter,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		} catch (Exception ex) {
+			System.err.println("Couldn't publish statistics for " + name + ": " + ex);
+			objectName = null;
+		}
+	}
+	
+	public synchronized void unregister() {
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (Exception ex) {
+			}
+			objectName = null;
+		}
+	}
+	
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+	
+	public int getActive() {
+		return active.get();
+	}
+	
+	public int getQueued() {
+		return queued.get();
+	}
+	
+	public long getAdmitted() {
+		return admitted.get();
+	}
+	
+	/**
+	 * Threads turned away under {@link Overload#REJECT}, because the queue
+	 * was full or they timed out.
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+	
+	/**
+	 * Threads which timed out waiting, whether they were then turned away
+	 * or let in.
+	 */
+	public long getTimedOut() {
+		return timedOut.get();
+	}
+	
+	/**
+	 * Threads let in without a permit under {@link Overload#RUN}.
+	 */
+	public long getOverloaded() {
+		return overloaded.get();
+	}
+	
+	/**
+	 * Total time spent waiting for permits.
+	 */
+	public long getQueueMillis() {
+		return queueNanos.get() / 1000000;
+	}
+	
+	public long getMaxQueueMillis() {
+		return maxQueueNanos.get() / 1000000;
+	}
+	
+	public String toString() {
+		return String.format(
+				"%s: %d active, %d queued, %d admitted, %d rejected, %d timed out, %d overloaded, %d ms queueing (max %d ms)",
+				name, getActive(), getQueued(), getAdmitted(), getRejected(), getTimedOut(), getOverloaded(),
+				getQueueMillis(), getMaxQueueMillis()
+		);
+	}
+}
@@ -0,0 +1,24 @@
+package utils;
+
+/**
+ * Management interface for {@link ConcurrencyLimiter}.
+ */
+public interface ConcurrencyLimiterMBean {
+	public int getMaxConcurrent();
+	
+	public int getActive();
+	
+	public int getQueued();
+	
+	public long getAdmitted();
+	
+	public long getRejected();
+	
+	public long getTimedOut();
+	
+	public long getOverloaded();
+	
+	public long getQueueMillis();
+	
+	public long getMaxQueueMillis();
+}
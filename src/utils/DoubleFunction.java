@@ -0,0 +1,5 @@
+package utils;
+
+public interface DoubleFunction {
+	public double apply(double param1);
+}
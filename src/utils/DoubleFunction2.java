@@ -0,0 +1,5 @@
+package utils;
+
+public interface DoubleFunction2 {
+	public double apply(double param1, double param2);
+}
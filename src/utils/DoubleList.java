@@ -0,0 +1,82 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive <code>double</code>s, for use where a
+ * <code>List&lt;Double&gt;</code> would box every value.
+ */
+public class DoubleList {
+	private double[] values;
+	private int size = 0;
+	
+	public DoubleList() {
+		this(16);
+	}
+	
+	public DoubleList(int capacity) {
+		values = new double[Math.max(1, capacity)];
+	}
+	
+	public DoubleList(double[] values) {
+		this.values = values.length > 0 ? values.clone() : new double[1];
+		this.size = values.length;
+	}
+	
+	private void grow(int min) {
+		if (min > values.length) {
+			values = Arrays.copyOf(values, Math.max(min, values.length * 2));
+		}
+	}
+	
+	public void add(double v) {
+		if (size == values.length) {
+			grow(size + 1);
+		}
+		values[size++] = v;
+	}
+	
+	public void addAll(DoubleList l) {
+		grow(size + l.size);
+		System.arraycopy(l.values, 0, values, size, l.size);
+		size += l.size;
+	}
+	
+	public double get(int i) {
+		if (i >= size) {
+			throw new IndexOutOfBoundsException(String.format("%d is outside 0:%d", i, size));
+		}
+		return values[i];
+	}
+	
+	public void set(int i, double v) {
+		if (i >= size) {
+			throw new IndexOutOfBoundsException(String.format("%d is outside 0:%d", i, size));
+		}
+		values[i] = v;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public void clear() {
+		size = 0;
+	}
+	
+	public void sort() {
+		Arrays.sort(values, 0, size);
+	}
+	
+	public double[] toArray() {
+		return Arrays.copyOf(values, size);
+	}
+	
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+}
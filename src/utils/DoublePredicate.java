@@ -0,0 +1,5 @@
+package utils;
+
+public interface DoublePredicate {
+	public boolean apply(double param1);
+}
@@ -0,0 +1,115 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * Summary statistics of a <code>double[]</code>.  Count, mean, variance,
+ * minimum and maximum are accumulated in a single pass (using Welford's
+ * method, so the variance is numerically stable); quantiles come from a
+ * sorted copy of the data, made the first time one is asked for, so the
+ * array shouldn't be modified while the summary is in use.
+ */
+public class DoubleSummary {
+	private final double[] data;
+	private final int from;
+	private final int n;
+	private final double mean;
+	private final double m2;
+	private final double min;
+	private final double max;
+	private double[] sorted;
+	
+	public DoubleSummary(double[] data) {
+		this(data, 0, data.length);
+	}
+	
+	public DoubleSummary(DoubleList l) {
+		this(l.toArray());
+	}
+	
+	public DoubleSummary(double[] data, int from, int to) {
+		this.data = data;
+		this.from = from;
+		double mean = 0, m2 = 0;
+		double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+		int k = 0;
+		for (int i = from; i < to; ++i) {
+			double x = data[i];
+			++k;
+			double d = x - mean;
+			mean += d / k;
+			m2 += d * (x - mean);
+			if (x < min) {
+				min = x;
+			}
+			if (x > max) {
+				max = x;
+			}
+		}
+		this.n = k;
+		this.mean = k > 0 ? mean : Double.NaN;
+		this.m2 = m2;
+		this.min = min;
+		this.max = max;
+	}
+	
+	public int count() {
+		return n;
+	}
+	
+	public double mean() {
+		return mean;
+	}
+	
+	/**
+	 * Sample (n - 1) variance.
+	 */
+	public double variance() {
+		return n > 1 ? m2 / (n - 1) : Double.NaN;
+	}
+	
+	public double standardDeviation() {
+		return Math.sqrt(variance());
+	}
+	
+	public double min() {
+		return min;
+	}
+	
+	public double max() {
+		return max;
+	}
+	
+	/**
+	 * The <code>q</code>th quantile, 0 &lt;= q &lt;= 1, interpolating linearly
+	 * between order statistics (R's default, type 7).
+	 */
+	public double quantile(double q) {
+		if (q < 0 || q > 1) {
+			throw new IllegalArgumentException("Quantile must be between 0 and 1: " + q);
+		}
+		if (n == 0) {
+			return Double.NaN;
+		}
+		if (sorted == null) {
+			sorted = Arrays.copyOfRange(data, from, from + n);
+			Arrays.sort(sorted);
+		}
+		double h = (n - 1) * q;
+		int lo = (int) Math.floor(h);
+		int hi = Math.min(lo + 1, n - 1);
+		return sorted[lo] + (h - lo) * (sorted[hi] - sorted[lo]);
+	}
+	
+	public double[] quantiles(double... qs) {
+		double[] r = new double[qs.length];
+		for (int i = 0; i < qs.length; ++i) {
+			r[i] = quantile(qs[i]);
+		}
+		return r;
+	}
+	
+	public double median() {
+		return quantile(0.5);
+	}
+}
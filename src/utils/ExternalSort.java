@@ -0,0 +1,592 @@
+package utils;
+
+import io.MergingReader;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sort line-oriented files which may be larger than memory.
+ *
+ * <p>
+ * Lines are collected into runs sized to fit the memory budget.  Each run
+ * is sorted on a worker thread, using a primitive key per line and falling
+ * back to the line itself only to break ties, and spilled to a gzipped
+ * temporary file.  The runs are then merged, in several passes if there
+ * are very many of them.  Input which fits in a single run is never
+ * spilled.  The sort is stable.
+ * </p>
+ *
+ * <pre>
+ * ExternalSort [-k lexical|chrom|numeric] [-c column] [-s startColumn]
+ *              [-m megabytes] [-T tmpdir] [-threads n] [-o output] [input ...]
+ * </pre>
+ *
+ * <p>
+ * Columns are numbered from one.  <code>chrom</code> orders by the sequence
+ * name in column <code>-c</code> (default 1), with numbered sequences in
+ * numeric order, then by the position in column <code>-s</code> (default 2,
+ * so use <code>-s 4</code> for GFF).  <code>numeric</code> orders by the
+ * number in column <code>-c</code>.  Lines without a usable key, such as
+ * headers, sort first.
+ * </p>
+ */
+public class ExternalSort {
+	private static final int MAX_FAN_IN = 128;
+	private static final int LINE_OVERHEAD = 80;   // rough per-line cost beyond its characters, in bytes.
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	public enum Order {
+		LEXICAL, CHROMOSOME, NUMERIC
+	}
+
+	/**
+	 * Orders sequence names such as <code>chr2</code> before <code>chr10</code>
+	 * by comparing runs of digits numerically.
+	 */
+	public static final Comparator<String> CHROMOSOME_ORDER = new Comparator<String>() {
+		public int compare(String a, String b) {
+			int i = 0, j = 0;
+			while (i < a.length() && j < b.length()) {
+				char ca = a.charAt(i), cb = b.charAt(j);
+				if (Character.isDigit(ca) && Character.isDigit(cb)) {
+					int si = i, sj = j;
+					while (si < a.length() - 1 && a.charAt(si) == '0' && Character.isDigit(a.charAt(si + 1))) {
+						++si;
+					}
+					while (sj < b.length() - 1 && b.charAt(sj) == '0' && Character.isDigit(b.charAt(sj + 1))) {
+						++sj;
+					}
+					int ei = si, ej = sj;
+					while (ei < a.length() && Character.isDigit(a.charAt(ei))) {
+						++ei;
+					}
+					while (ej < b.length() && Character.isDigit(b.charAt(ej))) {
+						++ej;
+					}
+					if (ei - si != ej - sj) {
+						return (ei - si) - (ej - sj);
+					}
+					int c = a.substring(si, ei).compareTo(b.substring(sj, ej));
+					if (c != 0) {
+						return c;
+					}
+					i = ei;
+					j = ej;
+				} else {
+					if (ca != cb) {
+						return ca - cb;
+					}
+					++i;
+					++j;
+				}
+			}
+			int c = (a.length() - i) - (b.length() - j);
+			return c != 0 ? c : a.compareTo(b);
+		}
+	};
+
+	public static void main(String[] args)
+		throws Exception
+	{
+		Order order = Order.LEXICAL;
+		int column = 0, startColumn = 1;
+		long budget = -1;
+		File tmpDir = null, output = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int a = 0;
+		while (a < args.length && args[a].startsWith("-") && args[a].length() > 1) {
+			if (a + 1 >= args.length) {
+				usage();
+				return;
+			}
+			String opt = args[a], val = args[a + 1];
+			if ("-k".equals(opt)) {
+				if ("lexical".equals(val)) {
+					order = Order.LEXICAL;
+				} else if ("chrom".equals(val)) {
+					order = Order.CHROMOSOME;
+				} else if ("numeric".equals(val)) {
+					order = Order.NUMERIC;
+				} else {
+					usage();
+					return;
+				}
+			} else if ("-c".equals(opt)) {
+				column = Integer.parseInt(val) - 1;
+			} else if ("-s".equals(opt)) {
+				startColumn = Integer.parseInt(val) - 1;
+			} else if ("-m".equals(opt)) {
+				budget = Long.parseLong(val) << 20;
+			} else if ("-T".equals(opt)) {
+				tmpDir = new File(val);
+			} else if ("-threads".equals(opt)) {
+				threads = Integer.parseInt(val);
+			} else if ("-o".equals(opt)) {
+				output = new File(val);
+			} else {
+				usage();
+				return;
+			}
+			a += 2;
+		}
+
+		OutputStream os = output == null ? System.out : new FileOutputStream(output);
+		Writer out = new BufferedWriter(new OutputStreamWriter(os), BUFFER_SIZE);
+		Sorter s = new Sorter(out, order);
+		s.setKeyColumn(column);
+		s.setStartColumn(startColumn);
+		if (budget > 0) {
+			s.setMemoryBudget(budget);
+		}
+		s.setTempDir(tmpDir);
+		s.setSortThreads(threads);
+		try {
+			s.main(Arrays.asList(args).subList(a, args.length).toArray(new String[0]));
+		} finally {
+			if (output == null) {
+				out.flush();
+			} else {
+				out.close();
+			}
+		}
+	}
+
+	private static void usage() {
+		System.err.println("Usage: ExternalSort [-k lexical|chrom|numeric] [-c column] [-s startColumn] [-m megabytes] [-T tmpdir] [-threads n] [-o output] [input ...]");
+	}
+
+	/**
+	 * Line processor which sorts its input and writes it to a
+	 * <code>Writer</code> in {@link #post()}.
+	 */
+	public static class Sorter extends AbstractLineProcessor {
+		private final Writer out;
+		private final Order order;
+		private int keyColumn = 0;
+		private int startColumn = 1;
+		private long memoryBudget = Runtime.getRuntime().maxMemory() / 4;
+		private File tempDir = null;
+		private int sortThreads = Runtime.getRuntime().availableProcessors();
+
+		private ExecutorService workers;
+		private final LinkedList<Future<File>> pending = new LinkedList<Future<File>>();
+		private final List<File> runs = new ArrayList<File>();
+		private long runBudget;
+		private List<String> lines;
+		private long runBytes;
+
+		public Sorter(Writer out, Order order) {
+			this.out = out;
+			this.order = order;
+		}
+
+		/**
+		 * Zero-based column holding the key for {@link Order#NUMERIC}, or the
+		 * sequence name for {@link Order#CHROMOSOME}.
+		 */
+		public void setKeyColumn(int i) {
+			this.keyColumn = i;
+		}
+
+		/**
+		 * Zero-based column holding the position for {@link Order#CHROMOSOME}.
+		 */
+		public void setStartColumn(int i) {
+			this.startColumn = i;
+		}
+
+		/**
+		 * Approximate number of bytes of heap to use for lines being sorted.
+		 */
+		public void setMemoryBudget(long bytes) {
+			this.memoryBudget = bytes;
+		}
+
+		/**
+		 * Directory for spilled runs, or null for the system default.
+		 */
+		public void setTempDir(File f) {
+			this.tempDir = f;
+		}
+
+		public void setSortThreads(int n) {
+			this.sortThreads = Math.max(1, n);
+		}
+
+		/**
+		 * Sorts, making sure the workers are stopped and spilled runs
+		 * deleted even if reading the input fails.
+		 */
+		public void main(String[] args)
+			throws Exception
+		{
+			try {
+				super.main(args);
+			} finally {
+				if (workers != null) {
+					workers.shutdownNow();
+					workers = null;
+				}
+				for (File f : runs) {
+					f.delete();
+				}
+				runs.clear();
+			}
+		}
+
+		public void pre()
+			throws Exception
+		{
+			workers = Executors.newFixedThreadPool(sortThreads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ExternalSort");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			// One run being collected and one being sorted per thread.
+			runBudget = Math.max(1 << 20, memoryBudget / (sortThreads + 1));
+			lines = new ArrayList<String>();
+			runBytes = 0;
+		}
+
+		public void processLine(String line)
+			throws Exception
+		{
+			lines.add(line);
+			runBytes += 2L * line.length() + LINE_OVERHEAD;
+			if (runBytes >= runBudget) {
+				spill();
+			}
+		}
+
+		private void spill()
+			throws Exception
+		{
+			while (pending.size() >= sortThreads) {
+				runs.add(pending.removeFirst().get());
+			}
+			final String[] run = lines.toArray(new String[lines.size()]);
+			pending.add(workers.submit(new Callable<File>() {
+				public File call()
+					throws Exception
+				{
+					File f = createRun();
+					Writer w = runWriter(f);
+					try {
+						writeSorted(run, w);
+					} finally {
+						w.close();
+					}
+					return f;
+				}
+			}));
+			lines = new ArrayList<String>();
+			runBytes = 0;
+		}
+
+		public void post()
+			throws Exception
+		{
+			try {
+				if (runs.isEmpty() && pending.isEmpty()) {
+					writeSorted(lines.toArray(new String[lines.size()]), out);
+					return;
+				}
+				if (!lines.isEmpty()) {
+					spill();
+				}
+				lines = null;
+				while (!pending.isEmpty()) {
+					runs.add(pending.removeFirst().get());
+				}
+				// Merge consecutive groups, so that equal lines stay in input order.
+				while (runs.size() > MAX_FAN_IN) {
+					List<File> merged = new ArrayList<File>();
+					while (!runs.isEmpty()) {
+						List<File> group = runs.subList(0, Math.min(MAX_FAN_IN, runs.size()));
+						File f = createRun();
+						merged.add(f);
+						Writer w = runWriter(f);
+						try {
+							merge(new ArrayList<File>(group), w);
+						} finally {
+							w.close();
+						}
+						group.clear();
+					}
+					runs.addAll(merged);
+				}
+				merge(runs, out);
+			} finally {
+				for (File f : runs) {
+					f.delete();
+				}
+			}
+		}
+
+		private File createRun()
+			throws IOException
+		{
+			File f = File.createTempFile("sortrun", ".gz", tempDir);
+			f.deleteOnExit();
+			return f;
+		}
+
+		private Writer runWriter(File f)
+			throws IOException
+		{
+			OutputStream os = new GZIPOutputStream(new FileOutputStream(f), BUFFER_SIZE) {
+				{
+					def.setLevel(Deflater.BEST_SPEED);
+				}
+			};
+			return new BufferedWriter(new OutputStreamWriter(os), BUFFER_SIZE);
+		}
+
+		/**
+		 * Merge runs, deleting them once they've been read.
+		 */
+		private void merge(List<File> files, Writer w)
+			throws Exception
+		{
+			List<Reader> readers = new ArrayList<Reader>();
+			for (File f : files) {
+				readers.add(new InputStreamReader(new GZIPInputStream(new FileInputStream(f), BUFFER_SIZE)));
+			}
+			MergingReader<?> mr;
+			switch (order) {
+			case CHROMOSOME:
+				mr = new MergingReader<MergingReader.Position>(readers, MergingReader.positionKey(keyColumn, startColumn), new Comparator<MergingReader.Position>() {
+					public int compare(MergingReader.Position a, MergingReader.Position b) {
+						int c = CHROMOSOME_ORDER.compare(a.chr, b.chr);
+						if (c != 0) {
+							return c;
+						}
+						long sa = clampStart(a.start), sb = clampStart(b.start);
+						return sa < sb ? -1 : (sa > sb ? 1 : 0);
+					}
+				});
+				break;
+			case NUMERIC:
+				mr = MergingReader.naturalOrder(readers, new Function<String,Double>() {
+					public Double apply(String line) {
+						return numericKey(line, keyColumn);
+					}
+				});
+				break;
+			default:
+				mr = MergingReader.naturalOrder(readers, new Function<String,String>() {
+					public String apply(String line) {
+						return line;
+					}
+				});
+			}
+			try {
+				for (String line = mr.readLine(); line != null; line = mr.readLine()) {
+					w.write(line);
+					w.write('\n');
+				}
+			} finally {
+				mr.close();
+				for (File f : files) {
+					f.delete();
+				}
+			}
+		}
+
+		/**
+		 * Sort one run and write it out.
+		 */
+		private void writeSorted(final String[] run, Writer w)
+			throws IOException
+		{
+			final long[] keys = new long[run.length];
+			IndexComparator tieBreak = null;
+			switch (order) {
+			case CHROMOSOME:
+				chromosomeKeys(run, keys);
+				break;
+			case NUMERIC:
+				for (int i = 0; i < run.length; ++i) {
+					keys[i] = sortableLong(numericKey(run[i], keyColumn));
+				}
+				break;
+			default:
+				for (int i = 0; i < run.length; ++i) {
+					keys[i] = prefixKey(run[i]);
+				}
+				tieBreak = new IndexComparator() {
+					public int compare(int a, int b) {
+						return run[a].compareTo(run[b]);
+					}
+				};
+			}
+
+			int[] index = new int[run.length];
+			for (int i = 0; i < index.length; ++i) {
+				index[i] = i;
+			}
+			sort(index, keys, tieBreak);
+			for (int i : index) {
+				w.write(run[i]);
+				w.write('\n');
+			}
+		}
+
+		/**
+		 * Rank each line's sequence name within the run, and pack the rank and
+		 * position into one key.  Lines without a position get rank zero.
+		 */
+		private void chromosomeKeys(String[] run, long[] keys) {
+			Function<String,MergingReader.Position> pk = MergingReader.positionKey(keyColumn, startColumn);
+			Map<String,Integer> ranks = new HashMap<String,Integer>();
+			long[] starts = new long[run.length];
+			String[] chrs = new String[run.length];
+			for (int i = 0; i < run.length; ++i) {
+				MergingReader.Position p = pk.apply(run[i]);
+				if (p != null) {
+					chrs[i] = p.chr;
+					starts[i] = clampStart(p.start);
+					ranks.put(p.chr, null);
+				}
+			}
+			List<String> names = new ArrayList<String>(ranks.keySet());
+			Collections.sort(names, CHROMOSOME_ORDER);
+			for (int r = 0; r < names.size(); ++r) {
+				ranks.put(names.get(r), r + 1);
+			}
+			for (int i = 0; i < run.length; ++i) {
+				keys[i] = chrs[i] == null ? 0 : ((long) ranks.get(chrs[i]) << START_BITS) | starts[i];
+			}
+		}
+	}
+
+	private static final int START_BITS = 40;
+	private static final long MAX_START = (1L << START_BITS) - 1;
+
+	/**
+	 * Positions are packed into the low bits of chromosome-order keys, so
+	 * are limited to that range.
+	 */
+	static long clampStart(long start) {
+		return Math.max(0, Math.min(start, MAX_START));
+	}
+
+	/**
+	 * Number in the given column, or negative infinity if there isn't one.
+	 */
+	static double numericKey(String line, int column) {
+		int start = 0;
+		for (int c = 0; c < column; ++c) {
+			start = line.indexOf('\t', start) + 1;
+			if (start == 0) {
+				return Double.NEGATIVE_INFINITY;
+			}
+		}
+		int end = line.indexOf('\t', start);
+		try {
+			return Double.parseDouble(line.substring(start, end < 0 ? line.length() : end));
+		} catch (NumberFormatException ex) {
+			return Double.NEGATIVE_INFINITY;
+		}
+	}
+
+	/**
+	 * A long which orders in the same way as <code>Double.compare</code>.
+	 */
+	static long sortableLong(double d) {
+		long bits = Double.doubleToLongBits(d);
+		return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+	}
+
+	/**
+	 * The first four characters of a string, packed so that signed
+	 * comparison of keys agrees with <code>String.compareTo</code> unless
+	 * the keys are equal.
+	 */
+	static long prefixKey(String s) {
+		long k = 0;
+		for (int i = 0; i < 4; ++i) {
+			k = (k << 16) | (i < s.length() ? s.charAt(i) : 0);
+		}
+		return k ^ Long.MIN_VALUE;
+	}
+
+	interface IndexComparator {
+		public int compare(int a, int b);
+	}
+
+	/**
+	 * Stable sort of <code>index</code> by <code>keys[index[i]]</code>, then by
+	 * <code>tieBreak</code> (if not null).
+	 */
+	static void sort(int[] index, long[] keys, IndexComparator tieBreak) {
+		int[] tmp = new int[index.length];
+		mergeSort(index, tmp, 0, index.length, keys, tieBreak);
+	}
+
+	private static int compare(int a, int b, long[] keys, IndexComparator tieBreak) {
+		if (keys[a] != keys[b]) {
+			return keys[a] < keys[b] ? -1 : 1;
+		}
+		return tieBreak == null ? 0 : tieBreak.compare(a, b);
+	}
+
+	private static void mergeSort(int[] a, int[] tmp, int from, int to, long[] keys, IndexComparator tieBreak) {
+		if (to - from <= 16) {
+			for (int i = from + 1; i < to; ++i) {
+				int v = a[i];
+				int j = i - 1;
+				while (j >= from && compare(a[j], v, keys, tieBreak) > 0) {
+					a[j + 1] = a[j];
+					--j;
+				}
+				a[j + 1] = v;
+			}
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		mergeSort(a, tmp, from, mid, keys, tieBreak);
+		mergeSort(a, tmp, mid, to, keys, tieBreak);
+		if (compare(a[mid - 1], a[mid], keys, tieBreak) <= 0) {
+			return;
+		}
+		System.arraycopy(a, from, tmp, from, to - from);
+		int i = from, j = mid, o = from;
+		while (i < mid && j < to) {
+			a[o++] = compare(tmp[j], tmp[i], keys, tieBreak) < 0 ? tmp[j++] : tmp[i++];
+		}
+		while (i < mid) {
+			a[o++] = tmp[i++];
+		}
+		while (j < to) {
+			a[o++] = tmp[j++];
+		}
+	}
+}
@@ -0,0 +1,5 @@
+package utils;
+
+public interface IntFunction {
+	public int apply(int param1);
+}
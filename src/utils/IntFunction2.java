@@ -0,0 +1,5 @@
+package utils;
+
+public interface IntFunction2 {
+	public int apply(int param1, int param2);
+}
@@ -0,0 +1,82 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive <code>int</code>s, for use where a
+ * <code>List&lt;Integer&gt;</code> would box every value.
+ */
+public class IntList {
+	private int[] values;
+	private int size = 0;
+	
+	public IntList() {
+		this(16);
+	}
+	
+	public IntList(int capacity) {
+		values = new int[Math.max(1, capacity)];
+	}
+	
+	public IntList(int[] values) {
+		this.values = values.length > 0 ? values.clone() : new int[1];
+		this.size = values.length;
+	}
+	
+	private void grow(int min) {
+		if (min > values.length) {
+			values = Arrays.copyOf(values, Math.max(min, values.length * 2));
+		}
+	}
+	
+	public void add(int v) {
+		if (size == values.length) {
+			grow(size + 1);
+		}
+		values[size++] = v;
+	}
+	
+	public void addAll(IntList l) {
+		grow(size + l.size);
+		System.arraycopy(l.values, 0, values, size, l.size);
+		size += l.size;
+	}
+	
+	public int get(int i) {
+		if (i >= size) {
+			throw new IndexOutOfBoundsException(String.format("%d is outside 0:%d", i, size));
+		}
+		return values[i];
+	}
+	
+	public void set(int i, int v) {
+		if (i >= size) {
+			throw new IndexOutOfBoundsException(String.format("%d is outside 0:%d", i, size));
+		}
+		values[i] = v;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public void clear() {
+		size = 0;
+	}
+	
+	public void sort() {
+		Arrays.sort(values, 0, size);
+	}
+	
+	public int[] toArray() {
+		return Arrays.copyOf(values, size);
+	}
+	
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+}
@@ -0,0 +1,110 @@
+package utils;
+
+/**
+ * Map from <code>int</code> keys to lists of <code>int</code> values, the
+ * primitive counterpart of a <code>Map&lt;Integer,List&lt;Integer&gt;&gt;</code>
+ * filled with {@link Collects#pushOntoMap(java.util.Map, Object, Object)}.
+ * Keys are held in an open-addressed hash table.
+ */
+public class IntListMultimap {
+	private int[] keys;
+	private IntList[] lists;
+	private boolean[] used;
+	private int size = 0;
+	
+	public IntListMultimap() {
+		this(16);
+	}
+	
+	public IntListMultimap(int expectedKeys) {
+		int cap = 16;
+		while (cap < expectedKeys * 2) {
+			cap <<= 1;
+		}
+		keys = new int[cap];
+		lists = new IntList[cap];
+		used = new boolean[cap];
+	}
+	
+	private static int hash(int k) {
+		k *= 0x9e3779b9;
+		return k ^ (k >>> 16);
+	}
+	
+	private int slot(int key) {
+		int mask = keys.length - 1;
+		int s = hash(key) & mask;
+		while (used[s] && keys[s] != key) {
+			s = (s + 1) & mask;
+		}
+		return s;
+	}
+	
+	private void rehash() {
+		int[] oldKeys = keys;
+		IntList[] oldLists = lists;
+		boolean[] oldUsed = used;
+		keys = new int[oldKeys.length * 2];
+		lists = new IntList[oldKeys.length * 2];
+		used = new boolean[oldKeys.length * 2];
+		for (int i = 0; i < oldKeys.length; ++i) {
+			if (oldUsed[i]) {
+				int s = slot(oldKeys[i]);
+				keys[s] = oldKeys[i];
+				lists[s] = oldLists[i];
+				used[s] = true;
+			}
+		}
+	}
+	
+	/**
+	 * Append <code>value</code> to the list for <code>key</code>.
+	 */
+	public void put(int key, int value) {
+		int s = slot(key);
+		if (!used[s]) {
+			if (2 * (size + 1) > keys.length) {
+				rehash();
+				s = slot(key);
+			}
+			used[s] = true;
+			keys[s] = key;
+			lists[s] = new IntList(4);
+			++size;
+		}
+		lists[s].add(value);
+	}
+	
+	/**
+	 * The values for <code>key</code>, or null if there are none.
+	 */
+	public IntList get(int key) {
+		int s = slot(key);
+		return used[s] ? lists[s] : null;
+	}
+	
+	public boolean containsKey(int key) {
+		return used[slot(key)];
+	}
+	
+	/**
+	 * Number of distinct keys.
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * The keys, in no particular order.
+	 */
+	public int[] keys() {
+		int[] k = new int[size];
+		int o = 0;
+		for (int i = 0; i < keys.length; ++i) {
+			if (used[i]) {
+				k[o++] = keys[i];
+			}
+		}
+		return k;
+	}
+}
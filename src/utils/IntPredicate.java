@@ -0,0 +1,5 @@
+package utils;
+
+public interface IntPredicate {
+	public boolean apply(int param1);
+}
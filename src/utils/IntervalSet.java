@@ -0,0 +1,184 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * Immutable set of integer positions held as sorted, disjoint, closed
+ * intervals in parallel <code>start</code>/<code>end</code> arrays.
+ * Overlapping and adjacent intervals are coalesced, as
+ * <code>LocationTools.union</code> does for <code>Location</code>s, but
+ * without creating an object per block.
+ */
+public class IntervalSet {
+	public static final IntervalSet EMPTY = new IntervalSet(new int[0], new int[0], 0);
+	
+	private final int[] starts;
+	private final int[] ends;
+	private final int size;
+	
+	private IntervalSet(int[] starts, int[] ends, int size) {
+		this.starts = starts;
+		this.ends = ends;
+		this.size = size;
+	}
+	
+	/**
+	 * Coalescing union of the closed intervals <code>starts[i]..ends[i]</code>,
+	 * which needn't be sorted.
+	 */
+	public static IntervalSet of(int[] starts, int[] ends) {
+		return of(starts, ends, starts.length);
+	}
+	
+	public static IntervalSet of(int[] starts, int[] ends, int n) {
+		if (ends.length < n) {
+			throw new IllegalArgumentException("Start and end arrays don't match");
+		}
+		boolean sorted = true;
+		for (int i = 1; i < n && sorted; ++i) {
+			sorted = starts[i - 1] <= starts[i];
+		}
+		int[] s, e;
+		if (sorted) {
+			s = starts;
+			e = ends;
+		} else {
+			// Sort starts and ends together, packed into longs.
+			long[] packed = new long[n];
+			for (int i = 0; i < n; ++i) {
+				packed[i] = ((long) starts[i] << 32) | (i & 0xffffffffL);
+			}
+			Arrays.sort(packed);
+			s = new int[n];
+			e = new int[n];
+			for (int i = 0; i < n; ++i) {
+				int idx = (int) packed[i];
+				s[i] = starts[idx];
+				e[i] = ends[idx];
+			}
+		}
+		
+		int[] os = new int[n];
+		int[] oe = new int[n];
+		int m = 0;
+		for (int i = 0; i < n; ++i) {
+			if (e[i] < s[i]) {
+				continue;
+			}
+			if (m > 0 && s[i] <= oe[m - 1] + 1L) {
+				oe[m - 1] = Math.max(oe[m - 1], e[i]);
+			} else {
+				os[m] = s[i];
+				oe[m] = e[i];
+				++m;
+			}
+		}
+		return new IntervalSet(os, oe, m);
+	}
+	
+	/**
+	 * Number of disjoint intervals.
+	 */
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public int start(int i) {
+		return starts[i];
+	}
+	
+	public int end(int i) {
+		return ends[i];
+	}
+	
+	/**
+	 * Index of the first interval ending at or after <code>pos</code>, or
+	 * {@link #size()} if there's none.
+	 */
+	public int firstEndingAfter(int pos) {
+		int lo = 0, hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (ends[mid] < pos) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+	
+	public boolean contains(int pos) {
+		int i = firstEndingAfter(pos);
+		return i < size && starts[i] <= pos;
+	}
+	
+	/**
+	 * Total number of positions covered.
+	 */
+	public long coverage() {
+		long c = 0;
+		for (int i = 0; i < size; ++i) {
+			c += (long) ends[i] - starts[i] + 1;
+		}
+		return c;
+	}
+	
+	public IntervalSet union(IntervalSet o) {
+		int[] s = new int[size + o.size];
+		int[] e = new int[size + o.size];
+		int i = 0, j = 0, n = 0;
+		while (i < size || j < o.size) {
+			if (j == o.size || (i < size && starts[i] <= o.starts[j])) {
+				s[n] = starts[i];
+				e[n++] = ends[i++];
+			} else {
+				s[n] = o.starts[j];
+				e[n++] = o.ends[j++];
+			}
+		}
+		return of(s, e, n);
+	}
+	
+	public IntervalSet intersection(IntervalSet o) {
+		int[] s = new int[size + o.size];
+		int[] e = new int[size + o.size];
+		int i = 0, j = 0, n = 0;
+		while (i < size && j < o.size) {
+			int lo = Math.max(starts[i], o.starts[j]);
+			int hi = Math.min(ends[i], o.ends[j]);
+			if (lo <= hi) {
+				s[n] = lo;
+				e[n++] = hi;
+			}
+			if (ends[i] < o.ends[j]) {
+				++i;
+			} else {
+				++j;
+			}
+		}
+		return new IntervalSet(s, e, n);
+	}
+	
+	/**
+	 * Intersection with the single interval <code>min..max</code>.
+	 */
+	public IntervalSet intersection(int min, int max) {
+		return intersection(new IntervalSet(new int[] {min}, new int[] {max}, min <= max ? 1 : 0));
+	}
+	
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < size; ++i) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(starts[i]).append("..").append(ends[i]);
+		}
+		return sb.append('}').toString();
+	}
+}
@@ -0,0 +1,304 @@
+package utils;
+
+import io.ByteLine;
+
+/**
+ * Fields of a delimited line, held as offsets into the line rather than as
+ * separate strings.  One instance is reused for every line, so splitting
+ * and the typed accessors don't allocate.  Splitting follows the rules of
+ * <code>String.split</code> with a single-character delimiter: if the
+ * delimiter doesn't occur the whole line is one field, otherwise trailing
+ * empty fields are dropped.
+ *
+ * <p>
+ * Lines tokenized some other way can be wrapped with {@link #setTokens(String[])}
+ * so that the same accessors work on them.
+ * </p>
+ */
+public class LineFields {
+	private static final String REGEX_META = ".$|()[{^?*+\\";
+	private static final double[] POWERS_OF_TEN = new double[23];
+	static {
+		POWERS_OF_TEN[0] = 1.0;
+		for (int i = 1; i < POWERS_OF_TEN.length; ++i) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+		}
+	}
+
+	private CharSequence line;
+	private String[] tokens;
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	private int size;
+
+	/**
+	 * The delimiter matched by a tokenization regex, if it only ever matches
+	 * one fixed character, otherwise -1.
+	 */
+	public static int delimiterOf(String regex) {
+		if (regex.length() == 1 && REGEX_META.indexOf(regex.charAt(0)) < 0) {
+			return regex.charAt(0);
+		} else if (regex.length() == 2 && regex.charAt(0) == '\\') {
+			char c = regex.charAt(1);
+			switch (c) {
+			case 't': return '\t';
+			case 'n': return '\n';
+			case 'r': return '\r';
+			case 'f': return '\f';
+			}
+			if (!Character.isLetterOrDigit(c)) {
+				return c;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Split <code>line</code> on <code>delim</code>.
+	 */
+	public void split(CharSequence line, char delim) {
+		this.line = line;
+		this.tokens = null;
+		size = 0;
+		int len = line.length();
+		int start = 0;
+		if (line instanceof ByteLine && delim < 0x80) {
+			ByteLine bl = (ByteLine) line;
+			byte[] b = bl.bytes();
+			int off = bl.offset();
+			byte d = (byte) delim;
+			for (int i = 0; i < len; ++i) {
+				if (b[off + i] == d) {
+					add(start, i);
+					start = i + 1;
+				}
+			}
+		} else {
+			for (int i = 0; i < len; ++i) {
+				if (line.charAt(i) == delim) {
+					add(start, i);
+					start = i + 1;
+				}
+			}
+		}
+		add(start, len);
+		if (size > 1) {
+			while (size > 0 && starts[size - 1] == ends[size - 1]) {
+				--size;
+			}
+		}
+	}
+
+	/**
+	 * Use fields which have already been split into strings.
+	 */
+	public void setTokens(String[] tokens) {
+		this.line = null;
+		this.tokens = tokens;
+		this.size = tokens.length;
+	}
+
+	private void add(int start, int end) {
+		if (size == starts.length) {
+			int[] ns = new int[size * 2];
+			int[] ne = new int[size * 2];
+			System.arraycopy(starts, 0, ns, 0, size);
+			System.arraycopy(ends, 0, ne, 0, size);
+			starts = ns;
+			ends = ne;
+		}
+		starts[size] = start;
+		ends[size] = end;
+		++size;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private void checkIndex(int i) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException(String.format("Field %d of %d", i, size));
+		}
+	}
+
+	private CharSequence source(int i) {
+		checkIndex(i);
+		return tokens != null ? tokens[i] : line;
+	}
+
+	private int start(int i) {
+		return tokens != null ? 0 : starts[i];
+	}
+
+	private int end(int i) {
+		return tokens != null ? tokens[i].length() : ends[i];
+	}
+
+	public int fieldLength(int i) {
+		checkIndex(i);
+		return end(i) - start(i);
+	}
+
+	public String field(int i) {
+		CharSequence s = source(i);
+		if (tokens != null) {
+			return tokens[i];
+		}
+		return s.subSequence(start(i), end(i)).toString();
+	}
+
+	public boolean fieldEquals(int i, String s) {
+		CharSequence src = source(i);
+		int start = start(i);
+		int len = end(i) - start;
+		if (len != s.length()) {
+			return false;
+		}
+		for (int c = 0; c < len; ++c) {
+			if (src.charAt(start + c) != s.charAt(c)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parse a field as an int, with the same rules as <code>Integer.parseInt</code>.
+	 */
+	public int intField(int i) {
+		long l = longField(i);
+		if (l < Integer.MIN_VALUE || l > Integer.MAX_VALUE) {
+			throw new NumberFormatException("Out of range: " + field(i));
+		}
+		return (int) l;
+	}
+
+	/**
+	 * Parse a field as a long, with the same rules as <code>Long.parseLong</code>.
+	 */
+	public long longField(int i) {
+		CharSequence src = source(i);
+		int pos = start(i), end = end(i);
+		boolean negative = false;
+		if (pos < end && (src.charAt(pos) == '-' || src.charAt(pos) == '+')) {
+			negative = src.charAt(pos) == '-';
+			++pos;
+		}
+		if (pos == end) {
+			throw new NumberFormatException("Not a number: \"" + field(i) + "\"");
+		}
+		// Accumulate negatively so that Long.MIN_VALUE parses.
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long v = 0;
+		for (; pos < end; ++pos) {
+			int d = src.charAt(pos) - '0';
+			if (d < 0 || d > 9) {
+				throw new NumberFormatException("Not a number: \"" + field(i) + "\"");
+			}
+			if (v < limit / 10 || v * 10 < limit + d) {
+				throw new NumberFormatException("Out of range: " + field(i));
+			}
+			v = v * 10 - d;
+		}
+		return negative ? v : -v;
+	}
+
+	/**
+	 * Parse a field as a double.  Plain decimals with up to 15 significant
+	 * digits are converted directly (and exactly rounded); anything else is
+	 * passed to <code>Double.parseDouble</code>.
+	 */
+	public double doubleField(int i) {
+		CharSequence src = source(i);
+		int pos = start(i), end = end(i);
+		boolean negative = false;
+		if (pos < end && (src.charAt(pos) == '-' || src.charAt(pos) == '+')) {
+			negative = src.charAt(pos) == '-';
+			++pos;
+		}
+		long mantissa = 0;
+		int digits = 0, scale = 0;
+		boolean point = false, any = false;
+		for (; pos < end; ++pos) {
+			char c = src.charAt(pos);
+			if (c >= '0' && c <= '9') {
+				any = true;
+				if (mantissa == 0 && c == '0') {
+					if (point) {
+						++scale;
+					}
+					continue;
+				}
+				if (++digits > 15) {
+					return Double.parseDouble(field(i));
+				}
+				mantissa = mantissa * 10 + (c - '0');
+				if (point) {
+					++scale;
+				}
+			} else if (c == '.' && !point) {
+				point = true;
+			} else {
+				break;
+			}
+		}
+		int exp = 0;
+		if (pos < end) {
+			char c = src.charAt(pos);
+			if (!any || (c != 'e' && c != 'E')) {
+				return Double.parseDouble(field(i));
+			}
+			++pos;
+			boolean negExp = false;
+			if (pos < end && (src.charAt(pos) == '-' || src.charAt(pos) == '+')) {
+				negExp = src.charAt(pos) == '-';
+				++pos;
+			}
+			if (pos == end || end - pos > 3) {
+				return Double.parseDouble(field(i));
+			}
+			for (; pos < end; ++pos) {
+				int d = src.charAt(pos) - '0';
+				if (d < 0 || d > 9) {
+					return Double.parseDouble(field(i));
+				}
+				exp = exp * 10 + d;
+			}
+			if (negExp) {
+				exp = -exp;
+			}
+		}
+		if (!any) {
+			return Double.parseDouble(field(i));
+		}
+		exp -= scale;
+		double v;
+		if (mantissa == 0) {
+			v = 0.0;
+		} else if (exp >= 0 && exp + digits <= 15) {
+			// Both the product and its factors are exactly representable.
+			v = mantissa * POWERS_OF_TEN[exp];
+		} else if (exp < 0 && -exp < POWERS_OF_TEN.length) {
+			v = mantissa / POWERS_OF_TEN[-exp];
+		} else {
+			return Double.parseDouble(field(i));
+		}
+		return negative ? -v : v;
+	}
+
+	/**
+	 * The fields as strings, as <code>String.split</code> would have returned
+	 * them.
+	 */
+	public String[] toArray() {
+		if (tokens != null) {
+			return tokens;
+		}
+		String[] a = new String[size];
+		for (int i = 0; i < size; ++i) {
+			a[i] = field(i);
+		}
+		return a;
+	}
+}
@@ -0,0 +1,115 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and per-phase timings for an {@link AbstractLineProcessor} job.
+ * Line counts are exact; read, tokenize and process times are estimated
+ * from a sample of lines.  Read time includes waiting for decompression.
+ * Tokenize time only covers lines split by <code>AbstractLineProcessor</code>
+ * itself, and in parallel mode read time is wall-clock time on the reading
+ * thread while tokenize and process times are summed over the workers.  For
+ * text input, bytes are counted as characters, including line terminators.
+ */
+public class LineStats implements LineStatsMBean {
+	public enum Phase {
+		PRE, READ, TOKENIZE, PROCESS, POST
+	}
+	
+	private volatile long lines;
+	private volatile long bytes;
+	private volatile long commentLines;
+	private volatile long skippedLines;
+	private final AtomicLongArray nanos = new AtomicLongArray(Phase.values().length);
+	private volatile long startTime;
+	private volatile long endTime;
+	
+	void start() {
+		startTime = System.nanoTime();
+	}
+	
+	void finish() {
+		endTime = System.nanoTime();
+	}
+	
+	/**
+	 * Only called from the thread reading input.
+	 */
+	void addCounts(long lines, long bytes, long commentLines, long skippedLines) {
+		this.lines += lines;
+		this.bytes += bytes;
+		this.commentLines += commentLines;
+		this.skippedLines += skippedLines;
+	}
+	
+	void addNanos(Phase phase, long n) {
+		nanos.addAndGet(phase.ordinal(), n);
+	}
+	
+	public long getNanos(Phase phase) {
+		return nanos.get(phase.ordinal());
+	}
+	
+	public long getLines() {
+		return lines;
+	}
+	
+	public long getBytes() {
+		return bytes;
+	}
+	
+	/**
+	 * Lines which had a comment removed.
+	 */
+	public long getCommentLines() {
+		return commentLines;
+	}
+	
+	/**
+	 * Lines which were empty after comment removal, and so not processed.
+	 */
+	public long getSkippedLines() {
+		return skippedLines;
+	}
+	
+	public long getPreMillis() {
+		return getNanos(Phase.PRE) / 1000000;
+	}
+	
+	public long getReadMillis() {
+		return getNanos(Phase.READ) / 1000000;
+	}
+	
+	public long getTokenizeMillis() {
+		return getNanos(Phase.TOKENIZE) / 1000000;
+	}
+	
+	public long getProcessMillis() {
+		return getNanos(Phase.PROCESS) / 1000000;
+	}
+	
+	public long getPostMillis() {
+		return getNanos(Phase.POST) / 1000000;
+	}
+	
+	public long getElapsedMillis() {
+		if (startTime == 0) {
+			return 0;
+		}
+		return ((endTime != 0 ? endTime : System.nanoTime()) - startTime) / 1000000;
+	}
+	
+	public double getLinesPerSecond() {
+		long ms = getElapsedMillis();
+		return ms > 0 ? (1000.0 * lines) / ms : 0.0;
+	}
+	
+	public String toString() {
+		return String.format(
+				"%d lines (%d comment, %d skipped), %.1f MB in %.1fs, %.0f lines/s; pre %dms, read %dms, tokenize %dms, process %dms, post %dms",
+				getLines(), getCommentLines(), getSkippedLines(),
+				getBytes() / 1048576.0, getElapsedMillis() / 1000.0, getLinesPerSecond(),
+				getPreMillis(), getReadMillis(), getTokenizeMillis(), getProcessMillis(), getPostMillis()
+		);
+	}
+}
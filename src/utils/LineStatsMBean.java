@@ -0,0 +1,28 @@
+package utils;
+
+/**
+ * Management interface for {@link LineStats}.
+ */
+public interface LineStatsMBean {
+	public long getLines();
+	
+	public long getBytes();
+	
+	public long getCommentLines();
+	
+	public long getSkippedLines();
+	
+	public long getPreMillis();
+	
+	public long getReadMillis();
+	
+	public long getTokenizeMillis();
+	
+	public long getProcessMillis();
+	
+	public long getPostMillis();
+	
+	public long getElapsedMillis();
+	
+	public double getLinesPerSecond();
+}
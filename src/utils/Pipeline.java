@@ -0,0 +1,313 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A chain of map and filter steps over a list, evaluated in a single pass
+ * when a terminal operation ({@link #materialize()}, {@link #reduce(Function2)},
+ * {@link #fold(Object, Function2)} or {@link #count()}) is called.  Unlike
+ * {@link Collects#map(Function, List)}, nothing is evaluated more than once
+ * and no intermediate lists are built: <code>reduce</code> and
+ * <code>count</code> keep only a running result, in parallel mode one per
+ * chunk.
+ *
+ * <pre>
+ * List&lt;Double&gt; scores = Pipeline.of(features).filter(isRepeat).map(score).materialize();
+ * </pre>
+ *
+ * <p>
+ * After {@link #parallel(ExecutorService)}, the source is split into
+ * contiguous chunks which are run through the steps on the given executor.
+ * Results keep source order, so <code>reduce</code> only needs an
+ * associative function; <code>fold</code> maps and filters in parallel but
+ * folds on the calling thread.  Any <code>ExecutorService</code> will do,
+ * including a <code>ForkJoinPool</code> on Java 7 or later; steps must be
+ * thread-safe.
+ * </p>
+ */
+public class Pipeline<T> {
+	private static final int MIN_CHUNK = 1024;
+
+	private interface Sink {
+		public void accept(Object o);
+	}
+
+	private interface Step {
+		public Sink wrap(Sink down);
+	}
+
+	private final List<?> source;
+	private final Step[] steps;
+	private final ExecutorService executor;
+
+	private Pipeline(List<?> source, Step[] steps, ExecutorService executor) {
+		this.source = source;
+		this.steps = steps;
+		this.executor = executor;
+	}
+
+	public static <T> Pipeline<T> of(List<T> source) {
+		return new Pipeline<T>(source, new Step[0], null);
+	}
+
+	private <O> Pipeline<O> then(Step s) {
+		Step[] ns = Arrays.copyOf(steps, steps.length + 1);
+		ns[steps.length] = s;
+		return new Pipeline<O>(source, ns, executor);
+	}
+
+	public <O> Pipeline<O> map(final Function<? super T, ? extends O> mapper) {
+		return then(new Step() {
+			public Sink wrap(final Sink down) {
+				return new Sink() {
+					@SuppressWarnings("unchecked")
+					public void accept(Object o) {
+						down.accept(mapper.apply((T) o));
+					}
+				};
+			}
+		});
+	}
+
+	public Pipeline<T> filter(final Function<? super T, Boolean> test) {
+		return then(new Step() {
+			public Sink wrap(final Sink down) {
+				return new Sink() {
+					@SuppressWarnings("unchecked")
+					public void accept(Object o) {
+						if (test.apply((T) o)) {
+							down.accept(o);
+						}
+					}
+				};
+			}
+		});
+	}
+
+	/**
+	 * Evaluate on <code>executor</code>.
+	 */
+	public Pipeline<T> parallel(ExecutorService executor) {
+		return new Pipeline<T>(source, steps, executor);
+	}
+
+	public Pipeline<T> sequential() {
+		return new Pipeline<T>(source, steps, null);
+	}
+
+	/**
+	 * Push elements <code>from</code>..<code>to</code> of <code>src</code>
+	 * through the steps into <code>sink</code>.
+	 */
+	private void run(List<?> src, int from, int to, Sink sink) {
+		for (int s = steps.length - 1; s >= 0; --s) {
+			sink = steps[s].wrap(sink);
+		}
+		if (src instanceof RandomAccess) {
+			for (int i = from; i < to; ++i) {
+				sink.accept(src.get(i));
+			}
+		} else {
+			Iterator<?> it = src.listIterator(from);
+			for (int i = from; i < to; ++i) {
+				sink.accept(it.next());
+			}
+		}
+	}
+
+	/**
+	 * The end of a pass over (part of) the source: a sink which keeps just
+	 * what a terminal operation needs, such as a running total.
+	 */
+	private interface Partial<R> extends Sink {
+		public R get();
+	}
+
+	private interface PartialFactory<R> {
+		public Partial<R> create();
+	}
+
+	/**
+	 * Run the whole source through the steps into one partial, or, in
+	 * parallel mode, each chunk into its own, returning the partials in
+	 * source order.
+	 */
+	private <R> List<R> runPartials(final PartialFactory<R> pf) {
+		if (executor == null) {
+			Partial<R> p = pf.create();
+			run(source, 0, source.size(), p);
+			return Collections.singletonList(p.get());
+		}
+		final List<?> src = source instanceof RandomAccess ? source : new ArrayList<Object>(source);
+		int n = src.size();
+		int chunks = Math.max(1, Math.min(4 * Runtime.getRuntime().availableProcessors(), n / MIN_CHUNK));
+		List<Future<R>> futures = new ArrayList<Future<R>>();
+		for (int c = 0; c < chunks; ++c) {
+			final int from = (int) ((1L * n * c) / chunks);
+			final int to = (int) ((1L * n * (c + 1)) / chunks);
+			futures.add(executor.submit(new Callable<R>() {
+				public R call() {
+					Partial<R> p = pf.create();
+					run(src, from, to, p);
+					return p.get();
+				}
+			}));
+		}
+		List<R> results = new ArrayList<R>();
+		try {
+			for (Future<R> f : futures) {
+				results.add(f.get());
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ex);
+		} catch (ExecutionException ex) {
+			for (Future<R> f : futures) {
+				f.cancel(true);
+			}
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			} else if (ex.getCause() instanceof Error) {
+				throw (Error) ex.getCause();
+			}
+			throw new RuntimeException(ex.getCause());
+		}
+		return results;
+	}
+
+	private PartialFactory<List<T>> collector() {
+		return new PartialFactory<List<T>>() {
+			public Partial<List<T>> create() {
+				return new Partial<List<T>>() {
+					private final List<T> out = new ArrayList<T>();
+
+					@SuppressWarnings("unchecked")
+					public void accept(Object o) {
+						out.add((T) o);
+					}
+
+					public List<T> get() {
+						return out;
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Evaluate the pipeline into a new list.
+	 */
+	public List<T> materialize() {
+		List<List<T>> chunks = runPartials(collector());
+		if (chunks.size() == 1) {
+			return chunks.get(0);
+		}
+		int size = 0;
+		for (List<T> l : chunks) {
+			size += l.size();
+		}
+		List<T> out = new ArrayList<T>(size);
+		for (List<T> l : chunks) {
+			out.addAll(l);
+		}
+		return out;
+	}
+
+	/**
+	 * Combine the results with an associative function, as
+	 * {@link Collects#reduce(Iterable, Function2)}.  In parallel mode each
+	 * chunk is reduced as it's evaluated, and only the per-chunk results
+	 * are combined on the calling thread.
+	 *
+	 * @throws NoSuchElementException if there are no results.
+	 */
+	public T reduce(final Function2<T,T,T> f) {
+		// Each partial is an empty list, or a list holding the chunk's reduction.
+		List<T> partials = new ArrayList<T>();
+		for (List<T> p : runPartials(new PartialFactory<List<T>>() {
+			public Partial<List<T>> create() {
+				return new Partial<List<T>>() {
+					private boolean seen = false;
+					private T cum;
+
+					@SuppressWarnings("unchecked")
+					public void accept(Object o) {
+						cum = seen ? f.apply(cum, (T) o) : (T) o;
+						seen = true;
+					}
+
+					public List<T> get() {
+						return seen ? Collections.singletonList(cum) : Collections.<T>emptyList();
+					}
+				};
+			}
+		})) {
+			partials.addAll(p);
+		}
+		if (partials.isEmpty()) {
+			throw new NoSuchElementException();
+		}
+		return Collects.reduce(partials, f);
+	}
+
+	/**
+	 * Fold the results, in order, into <code>seed</code>.  A fold can't be
+	 * split, so in parallel mode chunks are mapped and filtered in parallel
+	 * and their results folded on the calling thread.
+	 */
+	public <A> A fold(A seed, final Function2<A, ? super T, A> f) {
+		A cum = seed;
+		if (executor == null) {
+			final List<A> holder = new ArrayList<A>(1);
+			holder.add(seed);
+			run(source, 0, source.size(), new Sink() {
+				@SuppressWarnings("unchecked")
+				public void accept(Object o) {
+					holder.set(0, f.apply(holder.get(0), (T) o));
+				}
+			});
+			return holder.get(0);
+		}
+		for (List<T> chunk : runPartials(collector())) {
+			for (T t : chunk) {
+				cum = f.apply(cum, t);
+			}
+		}
+		return cum;
+	}
+
+	/**
+	 * Number of results.  In parallel mode each chunk only returns its count.
+	 */
+	public int count() {
+		int n = 0;
+		for (Integer c : runPartials(new PartialFactory<Integer>() {
+			public Partial<Integer> create() {
+				return new Partial<Integer>() {
+					private int n = 0;
+
+					public void accept(Object o) {
+						++n;
+					}
+
+					public Integer get() {
+						return n;
+					}
+				};
+			}
+		})) {
+			n += c;
+		}
+		return n;
+	}
+}
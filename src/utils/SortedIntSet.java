@@ -0,0 +1,152 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * Immutable set of <code>int</code>s held as a sorted array.  Membership is
+ * a binary search, and intersection, union and difference are linear
+ * merges, so large sets can be combined without hashing or boxing.
+ */
+public class SortedIntSet {
+	public static final SortedIntSet EMPTY = new SortedIntSet(new int[0], 0);
+	
+	private final int[] values;
+	private final int size;
+	
+	private SortedIntSet(int[] values, int size) {
+		this.values = values;
+		this.size = size;
+	}
+	
+	/**
+	 * Set of the values in <code>a</code>, which may be unsorted and contain
+	 * duplicates.
+	 */
+	public static SortedIntSet of(int[] a) {
+		int[] v = a.clone();
+		Arrays.sort(v);
+		int n = 0;
+		for (int i = 0; i < v.length; ++i) {
+			if (n == 0 || v[i] != v[n - 1]) {
+				v[n++] = v[i];
+			}
+		}
+		return new SortedIntSet(v, n);
+	}
+	
+	public static SortedIntSet of(IntList l) {
+		return of(l.toArray());
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	/**
+	 * The <code>i</code>th smallest member.
+	 */
+	public int get(int i) {
+		if (i >= size) {
+			throw new IndexOutOfBoundsException(String.format("%d is outside 0:%d", i, size));
+		}
+		return values[i];
+	}
+	
+	public boolean contains(int v) {
+		return Arrays.binarySearch(values, 0, size, v) >= 0;
+	}
+	
+	public SortedIntSet intersection(SortedIntSet o) {
+		int[] out = new int[Math.min(size, o.size)];
+		int i = 0, j = 0, n = 0;
+		while (i < size && j < o.size) {
+			if (values[i] < o.values[j]) {
+				++i;
+			} else if (values[i] > o.values[j]) {
+				++j;
+			} else {
+				out[n++] = values[i];
+				++i;
+				++j;
+			}
+		}
+		return new SortedIntSet(out, n);
+	}
+	
+	public SortedIntSet union(SortedIntSet o) {
+		int[] out = new int[size + o.size];
+		int i = 0, j = 0, n = 0;
+		while (i < size && j < o.size) {
+			if (values[i] < o.values[j]) {
+				out[n++] = values[i++];
+			} else if (values[i] > o.values[j]) {
+				out[n++] = o.values[j++];
+			} else {
+				out[n++] = values[i];
+				++i;
+				++j;
+			}
+		}
+		while (i < size) {
+			out[n++] = values[i++];
+		}
+		while (j < o.size) {
+			out[n++] = o.values[j++];
+		}
+		return new SortedIntSet(out, n);
+	}
+	
+	/**
+	 * Members of this set which aren't in <code>o</code>.
+	 */
+	public SortedIntSet difference(SortedIntSet o) {
+		int[] out = new int[size];
+		int i = 0, j = 0, n = 0;
+		while (i < size) {
+			while (j < o.size && o.values[j] < values[i]) {
+				++j;
+			}
+			if (j == o.size || o.values[j] != values[i]) {
+				out[n++] = values[i];
+			}
+			++i;
+		}
+		return new SortedIntSet(out, n);
+	}
+	
+	public int[] toArray() {
+		return Arrays.copyOf(values, size);
+	}
+	
+	public boolean equals(Object o) {
+		if (!(o instanceof SortedIntSet)) {
+			return false;
+		}
+		SortedIntSet s = (SortedIntSet) o;
+		if (s.size != size) {
+			return false;
+		}
+		for (int i = 0; i < size; ++i) {
+			if (values[i] != s.values[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	public int hashCode() {
+		int h = 1;
+		for (int i = 0; i < size; ++i) {
+			h = 31 * h + values[i];
+		}
+		return h;
+	}
+	
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+}
@@ -0,0 +1,141 @@
+package utils;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable set of strings held as a sorted array.  It can be used anywhere
+ * a read-only <code>Set&lt;String&gt;</code> is expected, but membership is a
+ * binary search and intersection, union and difference are linear merges,
+ * with none of the per-entry overhead of a <code>HashSet</code>.
+ */
+public class SortedStringSet extends AbstractSet<String> {
+	public static final SortedStringSet EMPTY = new SortedStringSet(new String[0], 0);
+	
+	private final String[] values;
+	private final int size;
+	
+	private SortedStringSet(String[] values, int size) {
+		this.values = values;
+		this.size = size;
+	}
+	
+	public static SortedStringSet of(Collection<String> c) {
+		return of(c.toArray(new String[c.size()]));
+	}
+	
+	/**
+	 * Set of the strings in <code>a</code>, which may be unsorted and contain
+	 * duplicates.
+	 */
+	public static SortedStringSet of(String[] a) {
+		String[] v = a.clone();
+		Arrays.sort(v);
+		int n = 0;
+		for (int i = 0; i < v.length; ++i) {
+			if (n == 0 || !v[i].equals(v[n - 1])) {
+				v[n++] = v[i];
+			}
+		}
+		return new SortedStringSet(v, n);
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public String get(int i) {
+		if (i >= size) {
+			throw new IndexOutOfBoundsException(String.format("%d is outside 0:%d", i, size));
+		}
+		return values[i];
+	}
+	
+	public boolean contains(Object o) {
+		return o instanceof String && Arrays.binarySearch(values, 0, size, o) >= 0;
+	}
+	
+	public Iterator<String> iterator() {
+		return new Iterator<String>() {
+			private int i = 0;
+			
+			public boolean hasNext() {
+				return i < size;
+			}
+			
+			public String next() {
+				if (i >= size) {
+					throw new NoSuchElementException();
+				}
+				return values[i++];
+			}
+			
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+	
+	public SortedStringSet intersection(SortedStringSet o) {
+		String[] out = new String[Math.min(size, o.size)];
+		int i = 0, j = 0, n = 0;
+		while (i < size && j < o.size) {
+			int c = values[i].compareTo(o.values[j]);
+			if (c < 0) {
+				++i;
+			} else if (c > 0) {
+				++j;
+			} else {
+				out[n++] = values[i];
+				++i;
+				++j;
+			}
+		}
+		return new SortedStringSet(out, n);
+	}
+	
+	public SortedStringSet union(SortedStringSet o) {
+		String[] out = new String[size + o.size];
+		int i = 0, j = 0, n = 0;
+		while (i < size && j < o.size) {
+			int c = values[i].compareTo(o.values[j]);
+			if (c < 0) {
+				out[n++] = values[i++];
+			} else if (c > 0) {
+				out[n++] = o.values[j++];
+			} else {
+				out[n++] = values[i];
+				++i;
+				++j;
+			}
+		}
+		while (i < size) {
+			out[n++] = values[i++];
+		}
+		while (j < o.size) {
+			out[n++] = o.values[j++];
+		}
+		return new SortedStringSet(out, n);
+	}
+	
+	/**
+	 * Members of this set which aren't in <code>o</code>.
+	 */
+	public SortedStringSet difference(SortedStringSet o) {
+		String[] out = new String[size];
+		int i = 0, j = 0, n = 0;
+		while (i < size) {
+			while (j < o.size && o.values[j].compareTo(values[i]) < 0) {
+				++j;
+			}
+			if (j == o.size || !o.values[j].equals(values[i])) {
+				out[n++] = values[i];
+			}
+			++i;
+		}
+		return new SortedStringSet(out, n);
+	}
+}
@@ -0,0 +1,10 @@
+package utils;
+
+/**
+ * Receives the progress of an {@link AbstractLineProcessor} job, at the
+ * interval set by {@link AbstractLineProcessor#setReportInterval(long)} and
+ * once more when the job has finished.
+ */
+public interface StatsReporter {
+	public void report(LineStats stats, boolean finished);
+}
@@ -0,0 +1,60 @@
+package utils;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class StatsReporters {
+	private StatsReporters() {
+	}
+	
+	/**
+	 * Print a one-line summary to standard error.
+	 */
+	public static StatsReporter stderr(final String name) {
+		return new StatsReporter() {
+			public void report(LineStats stats, boolean finished) {
+				System.err.println(name + (finished ? " finished: " : ": ") + stats);
+			}
+		};
+	}
+	
+	/**
+	 * Expose the statistics as an MBean named <code>utils:type=LineStats,name=<i>name</i></code>
+	 * for as long as the job is running.
+	 */
+	public static StatsReporter jmx(final String name) {
+		return new StatsReporter() {
+			private ObjectName objectName;
+			
+			public synchronized void report(LineStats stats, boolean finished) {
+				try {
+					MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+					if (objectName == null && !finished) {
+						objectName = ObjectName.getInstance("utils:type=LineStats,name=" + ObjectName.quote(name));
+						server.registerMBean(stats, objectName);
+					} else if (objectName != null && finished) {
+						server.unregisterMBean(objectName);
+						objectName = null;
+					}
+				} catch (Exception ex) {
+					throw new RuntimeException("Couldn't publish statistics for " + name, ex);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Send each report to all of <code>reporters</code>.
+	 */
+	public static StatsReporter all(final StatsReporter... reporters) {
+		return new StatsReporter() {
+			public void report(LineStats stats, boolean finished) {
+				for (StatsReporter r : reporters) {
+					r.report(stats, finished);
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,195 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a set of tasks in the background on a few daemon threads, and
+ * records when they've all finished.  Datasources use this to do the work
+ * their first requests would otherwise pay for (parsing metadata, loading
+ * indices, faulting in mapped files) straight after <code>init</code>;
+ * {@link #isReady()} says when it's done, so that traffic can be held back
+ * until then.
+ *
+ * <p>
+ * A failed task is reported on stderr but doesn't stop the others: the
+ * worst it can do is leave the source as cold as it would have been anyway.
+ * Tasks are exempt from any {@link ConcurrencyLimiter}, so that warming a
+ * source neither takes permits from its requests nor gets turned away.
+ * </p>
+ */
+public class WarmUp {
+	private final String name;
+	private final List<Callable<?>> tasks = new ArrayList<Callable<?>>();
+	private final CountDownLatch done = new CountDownLatch(1);
+	private final AtomicInteger failures = new AtomicInteger();
+	private ExecutorService pool;
+	private volatile long elapsed = -1;
+	private volatile boolean cancelled = false;
+
+	public WarmUp(String name) {
+		this.name = name;
+	}
+
+	public synchronized void add(Callable<?> task) {
+		if (pool != null) {
+			throw new IllegalStateException("Already started");
+		}
+		tasks.add(task);
+	}
+
+	/**
+	 * Start running the tasks on <code>threads</code> threads.
+	 */
+	public synchronized void start(int threads) {
+		if (pool != null) {
+			throw new IllegalStateException("Already started");
+		}
+		final long startTime = System.nanoTime();
+		final AtomicInteger remaining = new AtomicInteger(tasks.size());
+		pool = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(threads, tasks.size())),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "WarmUp-" + name);
+						t.setDaemon(true);
+						t.setPriority(Thread.MIN_PRIORITY);
+						return t;
+					}
+				}
+		);
+		if (tasks.isEmpty()) {
+			finish(startTime);
+			return;
+		}
+		for (final Callable<?> task : tasks) {
+			pool.submit(new Runnable() {
+				public void run() {
+					try {
+						ConcurrencyLimiter.callExempt(task);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					} catch (Exception ex) {
+						if (failures.getAndIncrement() == 0) {
+							System.err.println("Warm-up of " + name + " failed: " + ex);
+						}
+					} finally {
+						if (remaining.decrementAndGet() == 0) {
+							finish(startTime);
+						}
+					}
+				}
+			});
+		}
+	}
+
+	private void finish(long startTime) {
+		elapsed = System.nanoTime() - startTime;
+		done.countDown();
+		pool.shutdown();
+	}
+
+	/**
+	 * True once every task has finished (or failed).  Never true after
+	 * {@link #cancel()}.
+	 */
+	public boolean isReady() {
+		return !cancelled && done.getCount() == 0;
+	}
+
+	/**
+	 * Wait for the tasks to finish, or for the warm-up to be cancelled.
+	 *
+	 * @return true if they finished before the timeout, false on timeout
+	 *         or cancellation.
+	 */
+	public boolean awaitReady(long timeout, TimeUnit unit)
+		throws InterruptedException
+	{
+		return done.await(timeout, unit) && !cancelled;
+	}
+
+	/**
+	 * Number of tasks which threw an exception.
+	 */
+	public int getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * Time taken in milliseconds, or -1 if not finished.
+	 */
+	public long getElapsedMillis() {
+		return elapsed < 0 ? -1 : elapsed / 1000000;
+	}
+
+	/**
+	 * Abandon any unfinished tasks, for instance when the datasource is
+	 * destroyed.  Anything waiting in {@link #awaitReady(long, TimeUnit)}
+	 * is released.
+	 */
+	public synchronized void cancel() {
+		cancelled = true;
+		if (pool != null) {
+			pool.shutdownNow();
+		}
+		done.countDown();
+	}
+
+	/**
+	 * A region to prime, as <code>ref:start-end</code> (one-based,
+	 * inclusive) or just <code>ref</code> for the whole sequence, in which
+	 * case <code>start</code> and <code>end</code> are -1.
+	 */
+	public static class Region {
+		public final String ref;
+		public final int start;
+		public final int end;
+
+		public Region(String ref, int start, int end) {
+			this.ref = ref;
+			this.start = start;
+			this.end = end;
+		}
+
+		public String toString() {
+			return start < 0 ? ref : ref + ":" + start + "-" + end;
+		}
+	}
+
+	/**
+	 * Parse a comma- or whitespace-separated list of regions.
+	 */
+	public static List<Region> parseRegions(String s) {
+		List<Region> regions = new ArrayList<Region>();
+		if (s == null) {
+			return regions;
+		}
+		for (String r : s.trim().split("[,\\s]+")) {
+			if (r.length() == 0) {
+				continue;
+			}
+			int colon = r.lastIndexOf(':');
+			int dash = r.indexOf('-', colon + 1);
+			if (colon < 0 || dash < 0) {
+				regions.add(new Region(r, -1, -1));
+			} else {
+				try {
+					int start = Integer.parseInt(r.substring(colon + 1, dash));
+					int end = Integer.parseInt(r.substring(dash + 1));
+					regions.add(new Region(r.substring(0, colon), start, end));
+				} catch (NumberFormatException ex) {
+					throw new IllegalArgumentException("Bad region " + r);
+				}
+			}
+		}
+		return regions;
+	}
+}